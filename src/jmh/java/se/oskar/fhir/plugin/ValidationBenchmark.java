@@ -0,0 +1,180 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.vs.ValidationResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link FhirJsonValidatorPlugin} validation, per payload and
+ * per validation mode. Run with the {@code benchmarks} Maven profile; the GC profiler is
+ * enabled by default to report allocation rates.
+ * <p>
+ * The {@code profile} mode validates against the base resource definitions. They come from
+ * {@code hl7.fhir.r4.core} when {@code -Dfhir.validator.packageDir} contains it, and otherwise
+ * from the core definitions the {@code benchmarks} profile puts on the classpath. The IG and
+ * profile can be changed with {@code -Dbenchmark.ig} and {@code -Dbenchmark.profile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ValidationBenchmark {
+
+    private static final int BUNDLE_ENTRIES = 10_000;
+
+    @Param({"patient", "observation", "bundle", "malformed"})
+    public String payload;
+
+    @Param({"parse", "profile"})
+    public String mode;
+
+    private FhirJsonValidatorPlugin plugin;
+    private Map<String, Object> input;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ValidatorSettings settings = ValidatorSettings.fromSystemProperties();
+        plugin = new FhirJsonValidatorPlugin(settings);
+        content = payload(payload);
+        input = new HashMap<>();
+        input.put("contentToValidate", "benchmark");
+        if ("profile".equals(mode)) {
+            String ig = System.getProperty("benchmark.ig");
+            String profile = System.getProperty("benchmark.profile");
+            if (ig == null && profile == null) {
+                if (IgPackageStore.open(settings).findCorePackage(FhirVersionEnum.R4) != null) {
+                    ig = IgPackageStore.CORE_PACKAGE_NAME;
+                } else {
+                    profile = "http://hl7.org/fhir/StructureDefinition/" + resourceType(payload);
+                }
+            }
+            if (ig != null) {
+                input.put("ig", ig);
+            }
+            if (profile != null) {
+                input.put("profile", profile);
+            }
+            // An unresolved IG would only measure the error path; JMH reports this and moves on
+            for (TestAssertionReportType item : validate().getReport().getReports()) {
+                if (item.getLocation().startsWith("ig:") || item.getLocation().startsWith("profile:")) {
+                    if ("ERROR".equals(item.getType())) {
+                        throw new IllegalStateException("Skipping mode=profile: " + item.getDescription()
+                            + " (build with -Pbenchmarks so the core definitions are on the classpath, or set"
+                            + " -Dfhir.validator.packageDir to a directory with the IG packages)");
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public ValidationResponse validate() {
+        return plugin.validate(input, ContentInput.ofString(content));
+    }
+
+    private static String resourceType(String payload) {
+        switch (payload) {
+            case "patient":
+                return "Patient";
+            case "bundle":
+                return "Bundle";
+            default:
+                return "Observation";
+        }
+    }
+
+    static String payload(String name) {
+        switch (name) {
+            case "patient":
+                return patient("example");
+            case "observation":
+                return observation();
+            case "bundle":
+                return bundle(BUNDLE_ENTRIES);
+            case "malformed":
+                // Broken half way through, after the parser has done real work
+                String observation = observation();
+                return observation.substring(0, observation.length() / 2);
+            default:
+                throw new IllegalArgumentException("Unknown payload: " + name);
+        }
+    }
+
+    private static String patient(String id) {
+        return "{\"resourceType\":\"Patient\",\"id\":\"" + id + "\","
+            + "\"identifier\":[{\"system\":\"http://example.org/mrn\",\"value\":\"" + id + "\"}],"
+            + "\"name\":[{\"family\":\"Doe\",\"given\":[\"John\"]}],"
+            + "\"gender\":\"male\",\"birthDate\":\"1980-01-01\"}";
+    }
+
+    /**
+     * A blood pressure panel with components and reference ranges, about 3 KB.
+     */
+    private static String observation() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"resourceType\":\"Observation\",\"id\":\"blood-pressure\",\"status\":\"final\",")
+            .append("\"category\":[{\"coding\":[{\"system\":\"http://terminology.hl7.org/CodeSystem/observation-category\",")
+            .append("\"code\":\"vital-signs\",\"display\":\"Vital Signs\"}]}],")
+            .append("\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"85354-9\",")
+            .append("\"display\":\"Blood pressure panel with all children optional\"}]},")
+            .append("\"subject\":{\"reference\":\"Patient/example\"},")
+            .append("\"effectiveDateTime\":\"2024-01-15T10:30:00+01:00\",")
+            .append("\"performer\":[{\"reference\":\"Practitioner/example\"}],")
+            .append("\"interpretation\":[{\"coding\":[{\"system\":\"http://terminology.hl7.org/CodeSystem/v3-ObservationInterpretation\",")
+            .append("\"code\":\"N\",\"display\":\"Normal\"}]}],")
+            .append("\"bodySite\":{\"coding\":[{\"system\":\"http://snomed.info/sct\",\"code\":\"368209003\",\"display\":\"Right arm\"}]},")
+            .append("\"component\":[");
+        String[][] components = {
+            {"8480-6", "Systolic blood pressure", "120", "90", "140"},
+            {"8462-4", "Diastolic blood pressure", "80", "60", "90"},
+            {"8478-0", "Mean blood pressure", "93", "70", "105"},
+        };
+        for (int i = 0; i < components.length; i++) {
+            String[] component = components[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"").append(component[0])
+                .append("\",\"display\":\"").append(component[1]).append("\"}]},")
+                .append("\"valueQuantity\":{\"value\":").append(component[2])
+                .append(",\"unit\":\"mmHg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"mm[Hg]\"},")
+                .append("\"referenceRange\":[{\"low\":{\"value\":").append(component[3])
+                .append(",\"unit\":\"mmHg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"mm[Hg]\"},")
+                .append("\"high\":{\"value\":").append(component[4])
+                .append(",\"unit\":\"mmHg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"mm[Hg]\"}}]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String bundle(int entries) {
+        StringBuilder json = new StringBuilder(entries * 300);
+        json.append("{\"resourceType\":\"Bundle\",\"id\":\"benchmark\",\"type\":\"collection\",\"entry\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"fullUrl\":\"urn:uuid:00000000-0000-0000-0000-").append(String.format("%012d", i))
+                .append("\",\"resource\":").append(patient("p" + i)).append('}');
+        }
+        return json.append("]}").toString();
+    }
+}
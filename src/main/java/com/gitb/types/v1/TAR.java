@@ -6,6 +6,7 @@ import java.util.List;
 public class TAR {
   private TestResultType result;
   private final List<TestAssertionReportType> reports = new ArrayList<>();
+  private final ValidationCounters counters = new ValidationCounters();
 
   public TestResultType getResult() {
     return result;
@@ -18,5 +19,9 @@ public class TAR {
   public List<TestAssertionReportType> getReports() {
     return reports;
   }
+
+  public ValidationCounters getCounters() {
+    return counters;
+  }
 }
 
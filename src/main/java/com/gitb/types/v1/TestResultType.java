@@ -3,7 +3,8 @@ package com.gitb.types.v1;
 public enum TestResultType {
   SUCCESS,
   WARNING,
-  FAILURE
+  FAILURE,
+  UNDEFINED
 }
 
 
@@ -0,0 +1,31 @@
+package com.gitb.types.v1;
+
+public class ValidationCounters {
+  private long nrOfAssertions;
+  private long nrOfErrors;
+  private long nrOfWarnings;
+
+  public long getNrOfAssertions() {
+    return nrOfAssertions;
+  }
+
+  public void setNrOfAssertions(long nrOfAssertions) {
+    this.nrOfAssertions = nrOfAssertions;
+  }
+
+  public long getNrOfErrors() {
+    return nrOfErrors;
+  }
+
+  public void setNrOfErrors(long nrOfErrors) {
+    this.nrOfErrors = nrOfErrors;
+  }
+
+  public long getNrOfWarnings() {
+    return nrOfWarnings;
+  }
+
+  public void setNrOfWarnings(long nrOfWarnings) {
+    this.nrOfWarnings = nrOfWarnings;
+  }
+}
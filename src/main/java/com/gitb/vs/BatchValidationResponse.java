@@ -0,0 +1,95 @@
+package com.gitb.vs;
+
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchValidationResponse {
+  private List<ValidationResponse> responses = new ArrayList<>();
+  private int successCount;
+  private int warningCount;
+  private int failureCount;
+  private int undefinedCount;
+  private long errorFindings;
+  private long warningFindings;
+  private long elapsedMillis;
+
+  /**
+   * Builds a response with the summary counters computed from {@code responses}. Only a
+   * SUCCESS result counts as a success; UNDEFINED (turned away or timed out) is counted apart.
+   */
+  public static BatchValidationResponse of(List<ValidationResponse> responses, long elapsedMillis) {
+    BatchValidationResponse batch = new BatchValidationResponse();
+    batch.setResponses(responses);
+    batch.setElapsedMillis(elapsedMillis);
+    for (ValidationResponse response : responses) {
+      TestResultType result = response.getReport().getResult();
+      if (result == TestResultType.FAILURE) {
+        batch.failureCount++;
+      } else if (result == TestResultType.WARNING) {
+        batch.warningCount++;
+      } else if (result == TestResultType.SUCCESS) {
+        batch.successCount++;
+      } else {
+        batch.undefinedCount++;
+      }
+      for (TestAssertionReportType item : response.getReport().getReports()) {
+        if ("ERROR".equals(item.getType())) {
+          batch.errorFindings++;
+        } else if ("WARNING".equals(item.getType())) {
+          batch.warningFindings++;
+        }
+      }
+    }
+    return batch;
+  }
+
+  public List<ValidationResponse> getResponses() {
+    return responses;
+  }
+
+  public void setResponses(List<ValidationResponse> responses) {
+    this.responses = responses;
+  }
+
+  public int getTotalCount() {
+    return responses.size();
+  }
+
+  public int getSuccessCount() {
+    return successCount;
+  }
+
+  public int getWarningCount() {
+    return warningCount;
+  }
+
+  public int getFailureCount() {
+    return failureCount;
+  }
+
+  /**
+   * Number of items without a verdict: turned away by admission control or timed out.
+   */
+  public int getUndefinedCount() {
+    return undefinedCount;
+  }
+
+  public long getErrorFindings() {
+    return errorFindings;
+  }
+
+  public long getWarningFindings() {
+    return warningFindings;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public void setElapsedMillis(long elapsedMillis) {
+    this.elapsedMillis = elapsedMillis;
+  }
+}
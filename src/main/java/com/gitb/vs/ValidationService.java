@@ -1,7 +1,23 @@
 package com.gitb.vs;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public interface ValidationService {
   ValidationResponse validate(ValidateRequest request);
+
+  /**
+   * Validates several requests, returning one response per request in the same order.
+   * The default implementation validates them one after the other.
+   */
+  default BatchValidationResponse validateBatch(List<ValidateRequest> requests) {
+    long start = System.nanoTime();
+    List<ValidationResponse> responses = new ArrayList<>(requests.size());
+    for (ValidateRequest request : requests) {
+      responses.add(validate(request));
+    }
+    return BatchValidationResponse.of(responses, (System.nanoTime() - start) / 1_000_000);
+  }
 }
 
 
@@ -0,0 +1,114 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.vs.BatchValidationResponse;
+import com.gitb.vs.ValidationResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs batch validations on a dedicated fork-join pool.
+ * The item list is split recursively until single items remain, so idle workers steal
+ * the remaining halves and uneven item sizes even out across the pool.
+ * <p>
+ * The pool bounds the work of all batches, so their items do not take the plugin's
+ * validation slots; a batch larger than that limit would otherwise reject its own items.
+ */
+final class BatchValidator {
+
+  private final FhirJsonValidatorPlugin plugin;
+  private final ForkJoinPool pool;
+
+  BatchValidator(FhirJsonValidatorPlugin plugin, int parallelism) {
+    this.plugin = plugin;
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  BatchValidationResponse validate(List<Item> items) {
+    long start = System.nanoTime();
+    return BatchValidationResponse.of(validateAll(items), (System.nanoTime() - start) / 1_000_000);
+  }
+
+  /**
+   * Validates items as {@code items} produces them, {@link NdjsonValidator#WINDOW} at a time,
+   * so that only the responses, not the content of every item, are held at once.
+   */
+  BatchValidationResponse validate(Items items) throws IOException {
+    long start = System.nanoTime();
+    List<ValidationResponse> responses = new ArrayList<>();
+    List<Item> window = new ArrayList<>(NdjsonValidator.WINDOW);
+    Item item;
+    do {
+      window.clear();
+      while (window.size() < NdjsonValidator.WINDOW && (item = items.next()) != null) {
+        window.add(item);
+      }
+      responses.addAll(validateAll(window));
+    } while (window.size() == NdjsonValidator.WINDOW);
+    return BatchValidationResponse.of(responses, (System.nanoTime() - start) / 1_000_000);
+  }
+
+  private List<ValidationResponse> validateAll(List<Item> items) {
+    ValidationResponse[] responses = new ValidationResponse[items.size()];
+    if (!items.isEmpty()) {
+      pool.invoke(new ValidateRange(items, responses, 0, items.size()));
+    }
+    return Arrays.asList(responses);
+  }
+
+  /**
+   * Produces the items of a batch one at a time.
+   */
+  @FunctionalInterface
+  interface Items {
+    /**
+     * Returns the next item, or null when there are no more.
+     */
+    Item next() throws IOException;
+  }
+
+  /**
+   * One resource of a batch: its inputs and where to read its content from.
+   */
+  static final class Item {
+    private final Map<String, Object> input;
+    private final ContentInput.Source source;
+
+    Item(Map<String, Object> input, ContentInput.Source source) {
+      this.input = input;
+      this.source = source;
+    }
+  }
+
+  private final class ValidateRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Item> items;
+    private final ValidationResponse[] responses;
+    private final int from;
+    private final int to;
+
+    private ValidateRange(List<Item> items, ValidationResponse[] responses, int from, int to) {
+      this.items = items;
+      this.responses = responses;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        Item item = items.get(from);
+        responses[from] = plugin.validateBatchItem(item.input, item.source);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new ValidateRange(items, responses, from, middle), new ValidateRange(items, responses, middle, to));
+    }
+  }
+}
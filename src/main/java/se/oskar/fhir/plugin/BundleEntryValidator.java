@@ -0,0 +1,377 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.google.common.hash.HashCode;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Validates a Bundle one entry at a time.
+ * <p>
+ * The Bundle is read with a streaming JSON tokenizer; each {@code entry[].resource} is
+ * copied out, parsed and validated on its own, and its findings are handed to the sink
+ * before the next entry is read. Only one resource is materialized at a time, so memory
+ * grows with the number of entries rather than with the size of their resources.
+ * <p>
+ * The rest of the Bundle, including every entry with its {@code fullUrl}, {@code request},
+ * {@code response} and {@code search} but without its resource, is validated at the end.
+ * Findings of that pass that only hold for the missing resources are dropped, and the
+ * Bundle invariants that look into the resources (bdl-5, bdl-7, bdl-11, bdl-12) are
+ * checked while streaming instead. References between entries are not resolved in this
+ * mode.
+ * <p>
+ * Within a validation session, entries (and the Bundle without entry resources) that are unchanged
+ * since the session's last submission are not parsed or validated again; their earlier
+ * findings are reported at their current position.
+ */
+final class BundleEntryValidator {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String CONTENT_INPUT = "contentToValidate";
+  private static final String BUNDLE_LOCATION = "Bundle";
+  /** Invariants of Bundle that look into {@code entry.resource}, as HAPI reports them ("Rule bdl-11: ..."). */
+  private static final Pattern ENTRY_RESOURCE_INVARIANT = Pattern.compile("\\b(bdl-5|bdl-7|bdl-11|bdl-12):");
+  /** HAPI's Bundle checks that report missing entry resources. */
+  private static final Set<String> ENTRY_RESOURCE_MESSAGE_IDS = Set.of("Bundle_BUNDLE_Entry_NoFirstResource",
+      "Bundle_BUNDLE_Entry_Document", "BUNDLE_SEARCH_ENTRY_NO_RESOURCE", "BUNDLE_SEARCH_ENTRY_NO_RESOURCE_ID");
+
+  private final FhirContext fhirContext;
+  private final ResourceValidator entryEngine;
+  private final ResourceValidator bundleEngine;
+  private final MessageCatalog.Messages messages;
+  private final ValidationMetrics metrics;
+  private final ValidationSessions.Run session;
+
+  /**
+   * @param entryEngine engine for the entry resources, or null for parsing only
+   * @param bundleEngine engine for the Bundle itself, or null for parsing only
+   */
+  BundleEntryValidator(FhirContext fhirContext, ResourceValidator entryEngine, ResourceValidator bundleEngine, String locale,
+      ValidationMetrics metrics) {
+    this(fhirContext, entryEngine, bundleEngine, locale, metrics, null);
+  }
+
+  /**
+   * @param session submission of the validation session to reuse findings from, or null
+   */
+  BundleEntryValidator(FhirContext fhirContext, ResourceValidator entryEngine, ResourceValidator bundleEngine, String locale,
+      ValidationMetrics metrics, ValidationSessions.Run session) {
+    this.fhirContext = fhirContext;
+    this.entryEngine = entryEngine;
+    this.bundleEngine = bundleEngine;
+    this.messages = MessageCatalog.forLocale(locale);
+    this.metrics = metrics;
+    this.session = session;
+  }
+
+  /**
+   * Returns true when the top-level {@code resourceType} read from {@code reader} is
+   * Bundle. Only the top level is tokenized and reading stops at {@code resourceType};
+   * malformed JSON yields false so that full parsing can report it.
+   */
+  static boolean isBundle(Reader reader) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(reader)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("resourceType".equals(field)) {
+          return value == JsonToken.VALUE_STRING && "Bundle".equals(parser.getText());
+        }
+        parser.skipChildren();
+      }
+      return false;
+    } catch (JsonProcessingException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Streams the Bundle from {@code reader}, passing findings to {@code findings} as soon
+   * as each entry is done.
+   *
+   * @return the number of entries read
+   */
+  int validate(Reader reader, Consumer<TestAssertionReportType> findings) throws IOException {
+    return validate(reader, findings, () -> false);
+  }
+
+  /**
+   * Like {@link #validate(Reader, Consumer)}, but asks {@code stop} before each entry and
+   * before the Bundle itself, and stops reading once it returns true.
+   *
+   * @return the number of entries validated
+   */
+  int validate(Reader reader, Consumer<TestAssertionReportType> findings, BooleanSupplier stop) throws IOException {
+    StringWriter shell = new StringWriter();
+    EntryChecks checks = new EntryChecks();
+    int entryCount = 0;
+
+    try (JsonParser parser = JSON_FACTORY.createParser(reader);
+         JsonGenerator shellGenerator = JSON_FACTORY.createGenerator(shell)) {
+      parser.nextToken();
+      shellGenerator.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        shellGenerator.writeFieldName(field);
+        if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+          shellGenerator.writeStartArray();
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (stop.getAsBoolean()) {
+              return entryCount;
+            }
+            validateEntry(parser, shellGenerator, entryCount, checks, findings);
+            entryCount++;
+          }
+          shellGenerator.writeEndArray();
+        } else {
+          if ("type".equals(field) && value == JsonToken.VALUE_STRING) {
+            checks.bundleType = parser.getText();
+          }
+          shellGenerator.copyCurrentStructure(parser);
+        }
+      }
+      shellGenerator.writeEndObject();
+    } catch (JsonProcessingException e) {
+      JsonLocation location = e.getLocation();
+      findings.accept(ReportItems.create(ReportItems.ERROR,
+          messages.format("error.parsing.failed", e.getOriginalMessage()),
+          location == null ? ReportItems.inputLocation(CONTENT_INPUT, 0, 0)
+              : ReportItems.inputLocation(CONTENT_INPUT, location.getLineNr(), location.getColumnNr())));
+      return entryCount;
+    }
+
+    if (!stop.getAsBoolean()) {
+      if (bundleEngine != null) {
+        checks.finish(findings);
+      }
+      validateResource("bundle", shell.toString(), bundleEngine, "Bundle", findings);
+    }
+    return entryCount;
+  }
+
+  /**
+   * Reads one element of {@code Bundle.entry}, validates its resource and copies the rest
+   * to the Bundle validated at the end.
+   */
+  private void validateEntry(JsonParser parser, JsonGenerator shellGenerator, int index, EntryChecks checks,
+      Consumer<TestAssertionReportType> findings) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      shellGenerator.copyCurrentStructure(parser);
+      return;
+    }
+    shellGenerator.writeStartObject();
+    String fullUrl = null;
+    String resourceType = null;
+    String versionId = null;
+    boolean content = false;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("resource".equals(field) && value == JsonToken.START_OBJECT) {
+        StringWriter resource = new StringWriter();
+        String[] header;
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(resource)) {
+          header = copyResource(parser, generator);
+        }
+        resourceType = header[0];
+        versionId = header[1];
+        content = true;
+        validateResource("entry", resource.toString(), entryEngine, entryPrefix(index), findings);
+      } else {
+        if ("fullUrl".equals(field) && value == JsonToken.VALUE_STRING) {
+          fullUrl = parser.getText();
+        }
+        content |= "request".equals(field) || "response".equals(field);
+        shellGenerator.writeFieldName(field);
+        shellGenerator.copyCurrentStructure(parser);
+      }
+    }
+    shellGenerator.writeEndObject();
+    if (bundleEngine != null) {
+      checks.entry(index, fullUrl, resourceType, versionId, content, findings);
+    }
+  }
+
+  /**
+   * Copies the resource object at the parser's current position, returning its
+   * {@code resourceType} and {@code meta.versionId} (each null when absent).
+   */
+  private static String[] copyResource(JsonParser parser, JsonGenerator generator) throws IOException {
+    String[] header = new String[2];
+    String field = null;
+    boolean inMeta = false;
+    int depth = 0;
+    do {
+      JsonToken token = parser.currentToken();
+      generator.copyCurrentEvent(parser);
+      if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+        depth++;
+        inMeta |= depth == 2 && token == JsonToken.START_OBJECT && "meta".equals(field);
+      } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+        inMeta &= depth != 2;
+        depth--;
+      } else if (token == JsonToken.FIELD_NAME) {
+        field = parser.getCurrentName();
+      } else if (token == JsonToken.VALUE_STRING) {
+        if (depth == 1 && "resourceType".equals(field)) {
+          header[0] = parser.getText();
+        } else if (inMeta && "versionId".equals(field)) {
+          header[1] = parser.getText();
+        }
+      }
+    } while (depth > 0 && parser.nextToken() != null);
+    return header;
+  }
+
+  /**
+   * Validates one resource, or reports the findings of the same resource in the session's
+   * last submission.
+   *
+   * @param kind what the resource is in the Bundle; resources of different kinds are
+   *     validated with different engines
+   */
+  private void validateResource(String kind, String json, ResourceValidator engine, String locationPrefix,
+      Consumer<TestAssertionReportType> findings) {
+    boolean shell = "bundle".equals(kind);
+    if (session == null) {
+      check(json, engine, shell, locationPrefix, findings);
+      return;
+    }
+    HashCode fingerprint = ValidationSessions.fingerprint(kind, json);
+    List<TestAssertionReportType> reused = session.replay(fingerprint, locationPrefix);
+    if (reused != null) {
+      reused.forEach(findings);
+      return;
+    }
+    List<TestAssertionReportType> produced = new ArrayList<>();
+    check(json, engine, shell, locationPrefix, item -> {
+      produced.add(item);
+      findings.accept(item);
+    });
+    session.record(fingerprint, locationPrefix, produced);
+  }
+
+  /**
+   * @param shell whether {@code json} is the Bundle without its entry resources
+   */
+  private void check(String json, ResourceValidator engine, boolean shell, String locationPrefix,
+      Consumer<TestAssertionReportType> findings) {
+    IBaseResource resource;
+    long start = System.nanoTime();
+    try {
+      resource = fhirContext.newJsonParser().parseResource(json);
+      metrics.recordPhase(ValidationMetrics.Phase.PARSE, System.nanoTime() - start);
+    } catch (Exception parseException) {
+      findings.accept(ReportItems.create(ReportItems.ERROR,
+          messages.format("error.parsing.failed", parseException.getMessage()),
+          locationPrefix));
+      return;
+    }
+    if (engine != null) {
+      long profileStart = System.nanoTime();
+      ValidationResult result = engine.validate(resource);
+      long reportStart = System.nanoTime();
+      metrics.recordPhase(ValidationMetrics.Phase.PROFILE, reportStart - profileStart);
+      for (SingleValidationMessage message : result.getMessages()) {
+        if (!shell || !dependsOnEntryResources(message)) {
+          findings.accept(ReportItems.fromMessage(message, relocate(locationPrefix, message.getLocationString())));
+        }
+      }
+      metrics.recordPhase(ValidationMetrics.Phase.REPORT, System.nanoTime() - reportStart);
+    }
+  }
+
+  /**
+   * Whether a finding on the Bundle without entry resources is caused by their absence: the
+   * invariants checked by {@link EntryChecks} and the validator's own checks of entry resources.
+   */
+  static boolean dependsOnEntryResources(SingleValidationMessage message) {
+    return message.getMessageId() != null && ENTRY_RESOURCE_MESSAGE_IDS.contains(message.getMessageId())
+        || message.getMessage() != null && ENTRY_RESOURCE_INVARIANT.matcher(message.getMessage()).find();
+  }
+
+  static String entryPrefix(int index) {
+    return new StringBuilder(32).append("Bundle.entry[").append(index).append("].resource").toString();
+  }
+
+  /**
+   * Replaces the leading resource type of a HAPI location ({@code Patient.name[0]}) with
+   * the given prefix ({@code Bundle.entry[3].resource.name[0]}).
+   */
+  static String relocate(String prefix, String location) {
+    if (location == null || location.isEmpty()) {
+      return prefix;
+    }
+    int dot = location.indexOf('.');
+    return dot < 0 ? prefix : prefix + location.substring(dot);
+  }
+
+  /**
+   * The invariants of Bundle that involve entry resources, checked as the entries stream by.
+   * Only the fullUrl and version of each entry are kept, for bdl-7.
+   */
+  private final class EntryChecks {
+    private String bundleType;
+    private String firstResourceType;
+    private final Set<String> versionedUrls = new HashSet<>();
+    private final Set<String> duplicateUrls = new LinkedHashSet<>();
+
+    private void entry(int index, String fullUrl, String resourceType, String versionId, boolean content,
+        Consumer<TestAssertionReportType> findings) {
+      if (index == 0) {
+        firstResourceType = resourceType;
+      }
+      if (!content) {
+        findings.accept(ReportItems.create(ReportItems.ERROR, messages.format("error.bundle.entry.empty"),
+            new StringBuilder(32).append("Bundle.entry[").append(index).append(']').toString()));
+      }
+      if (fullUrl != null && !versionedUrls.add(fullUrl + "|" + versionId)) {
+        duplicateUrls.add(fullUrl);
+      }
+    }
+
+    /**
+     * Reports the invariants that need the Bundle type, which may follow the entries.
+     */
+    private void finish(Consumer<TestAssertionReportType> findings) {
+      if (!"history".equals(bundleType)) {
+        for (String fullUrl : duplicateUrls) {
+          findings.accept(ReportItems.create(ReportItems.ERROR,
+              messages.format("error.bundle.full.url.not.unique", fullUrl), BUNDLE_LOCATION));
+        }
+      }
+      if ("document".equals(bundleType) && !"Composition".equals(firstResourceType)) {
+        findings.accept(ReportItems.create(ReportItems.ERROR,
+            messages.format("error.bundle.document.first.resource"), BUNDLE_LOCATION));
+      }
+      if ("message".equals(bundleType) && !"MessageHeader".equals(firstResourceType)) {
+        findings.accept(ReportItems.create(ReportItems.ERROR,
+            messages.format("error.bundle.message.first.resource"), BUNDLE_LOCATION));
+      }
+    }
+  }
+}
@@ -0,0 +1,423 @@
+package se.oskar.fhir.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+/**
+ * Opens the content to validate as a stream so that the parser never needs the whole
+ * payload as a {@code String}. Large files are memory-mapped instead of being copied
+ * through a heap buffer, and anything above the configured maximum size is rejected
+ * before a single byte is read.
+ * <p>
+ * Content passed in memory is read in place: {@link #of(Object)} tells file paths, raw
+ * JSON, base64 and byte arrays apart without writing anything to disk.
+ */
+final class ContentInput {
+
+  /** Files at least this large are memory-mapped rather than read through a buffer. */
+  static final long MEMORY_MAP_THRESHOLD = 16L * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Strings longer than this are never taken for file paths. */
+  private static final int MAX_PATH_LENGTH = 4096;
+
+  /** Number of base64 characters decoded to check that a string is encoded JSON. */
+  private static final int BASE64_PROBE_LENGTH = 64;
+
+  private ContentInput() {
+  }
+
+  /**
+   * Content that can be (re)opened as a reader, for example to peek at it before it is
+   * validated.
+   */
+  @FunctionalInterface
+  interface Source {
+    Reader open(long maxSize) throws IOException;
+  }
+
+  /**
+   * Source for a {@code contentToValidate} input, detected as follows:
+   * <ol>
+   *   <li>{@code byte[]} and {@link ByteBuffer}: the UTF-8 content itself;</li>
+   *   <li>{@link Path}: the file at that path;</li>
+   *   <li>a string whose first non-whitespace character is <code>{</code> or {@code [}:
+   *       raw JSON (or NDJSON);</li>
+   *   <li>a string naming an existing regular file: that file;</li>
+   *   <li>a string made of base64 characters (line breaks allowed) that decodes to
+   *       JSON: the decoded content, decoded while it is read;</li>
+   *   <li>anything else: a file path, so that a missing file is reported as such.</li>
+   * </ol>
+   */
+  static Source of(Object content) {
+    if (content instanceof byte[]) {
+      return ofBytes((byte[]) content);
+    }
+    if (content instanceof ByteBuffer) {
+      return ofByteBuffer((ByteBuffer) content);
+    }
+    if (content instanceof Path) {
+      return ofPath(content.toString());
+    }
+    if (content == null) {
+      return ofPath(null);
+    }
+    String text = content.toString();
+    char first = firstNonWhitespace(text);
+    if (first == '{' || first == '[') {
+      return ofString(text);
+    }
+    if (isRegularFile(text)) {
+      return ofPath(text);
+    }
+    long decodedSize = base64DecodedSize(text);
+    if (decodedSize >= 0 && isEncodedJson(text)) {
+      return ofBase64(text, decodedSize);
+    }
+    return ofPath(text);
+  }
+
+  /**
+   * Source reading the file at {@code contentPath}.
+   */
+  static Source ofPath(String contentPath) {
+    return maxSize -> openReader(contentPath, maxSize);
+  }
+
+  /**
+   * Source over JSON that is already in memory, such as a single NDJSON line. Its size is
+   * that of its UTF-8 encoding, as for content read from bytes.
+   */
+  static Source ofString(String json) {
+    return maxSize -> {
+      // A char takes one to three bytes, so the exact count is only needed in between
+      if (maxSize > 0 && json.length() <= maxSize && (long) json.length() * 3 > maxSize) {
+        checkSize(utf8Length(json), maxSize);
+      } else {
+        checkSize(json.length(), maxSize);
+      }
+      return new StringReader(json);
+    };
+  }
+
+  /**
+   * Source over UTF-8 content that was received in full, such as a request body.
+   */
+  static Source ofBytes(byte[] content) {
+    return maxSize -> {
+      checkSize(content.length, maxSize);
+      return new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8);
+    };
+  }
+
+  /**
+   * Source over UTF-8 content in a byte buffer, for example a slice of a larger message.
+   * The buffer's position is left untouched, so the source can be opened repeatedly.
+   */
+  static Source ofByteBuffer(ByteBuffer content) {
+    return maxSize -> {
+      checkSize(content.remaining(), maxSize);
+      return new InputStreamReader(new ByteBufferInputStream(content.duplicate()), StandardCharsets.UTF_8);
+    };
+  }
+
+  /**
+   * Source over base64 text whose decoded form is {@code decodedSize} bytes long. The text
+   * is decoded as the reader consumes it, so the decoded bytes are never held in full.
+   */
+  private static Source ofBase64(String base64, long decodedSize) {
+    return maxSize -> {
+      checkSize(decodedSize, maxSize);
+      InputStream decoded = Base64.getMimeDecoder().wrap(new AsciiInputStream(base64));
+      return new InputStreamReader(new BufferedInputStream(decoded, BUFFER_SIZE), StandardCharsets.UTF_8);
+    };
+  }
+
+  /**
+   * Opens a UTF-8 reader over the file at {@code contentPath}.
+   */
+  static Reader openReader(String contentPath, long maxSize) throws IOException {
+    return new InputStreamReader(openStream(contentPath, maxSize), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Opens the file at {@code contentPath}, failing with {@link ContentTooLargeException}
+   * when it exceeds {@code maxSize} bytes (a non-positive value disables the check).
+   */
+  static InputStream openStream(String contentPath, long maxSize) throws IOException {
+    if (contentPath == null) {
+      throw new IllegalArgumentException("contentToValidate is required");
+    }
+    Path path = Path.of(contentPath);
+    if (!Files.isRegularFile(path)) {
+      throw new NoSuchFileException(contentPath);
+    }
+
+    long size = Files.size(path);
+    checkSize(size, maxSize);
+    if (size >= MEMORY_MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      }
+    }
+    return new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+  }
+
+  private static char firstNonWhitespace(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isRegularFile(String text) {
+    if (text.length() > MAX_PATH_LENGTH) {
+      return false;
+    }
+    try {
+      return Files.isRegularFile(Path.of(text));
+    } catch (InvalidPathException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Decoded size of {@code text} if it is well-formed base64, ignoring line breaks and
+   * other whitespace, or -1 if it is not.
+   */
+  private static long base64DecodedSize(String text) {
+    long significant = 0;
+    int padding = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) {
+        continue;
+      }
+      if (c == '=') {
+        padding++;
+      } else if (padding > 0 || !isBase64Character(c)) {
+        return -1;
+      }
+      significant++;
+    }
+    if (significant == 0 || significant % 4 != 0 || padding > 2) {
+      return -1;
+    }
+    return significant / 4 * 3 - padding;
+  }
+
+  private static boolean isBase64Character(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/';
+  }
+
+  /**
+   * Whether the first decoded bytes of {@code base64} start a JSON object or array, so that
+   * a short file name that happens to be valid base64 is not mistaken for content.
+   */
+  private static boolean isEncodedJson(String base64) {
+    StringBuilder probe = new StringBuilder(BASE64_PROBE_LENGTH);
+    for (int i = 0; i < base64.length() && probe.length() < BASE64_PROBE_LENGTH; i++) {
+      char c = base64.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        probe.append(c);
+      }
+    }
+    probe.setLength(probe.length() - probe.length() % 4);
+    byte[] decoded;
+    try {
+      decoded = Base64.getDecoder().decode(probe.toString());
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    for (byte b : decoded) {
+      if (!Character.isWhitespace(b)) {
+        return b == '{' || b == '[';
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Length of the text encoded as UTF-8, without encoding it. An unpaired surrogate counts
+   * as the one byte it is replaced by.
+   */
+  static long utf8Length(CharSequence text) {
+    long length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  static void checkSize(long size, long maxSize) throws ContentTooLargeException {
+    if (maxSize > 0 && size > maxSize) {
+      throw new ContentTooLargeException(size, maxSize);
+    }
+  }
+
+  /**
+   * Thrown when the content is larger than the configured maximum.
+   */
+  static final class ContentTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long size;
+    private final long maxSize;
+
+    ContentTooLargeException(long size, long maxSize) {
+      super("Content size " + size + " exceeds the maximum of " + maxSize + " bytes");
+      this.size = size;
+      this.maxSize = maxSize;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getMaxSize() {
+      return maxSize;
+    }
+  }
+
+  /**
+   * Reader that measures the time spent waiting for the underlying reader, so that I/O
+   * and decoding can be told apart from the parsing that consumes the characters.
+   */
+  static final class TimedReader extends FilterReader {
+    private long nanos;
+
+    TimedReader(Reader in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      try {
+        return super.read();
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+      long start = System.nanoTime();
+      try {
+        return super.read(chars, offset, length);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+    }
+
+    /**
+     * Time spent in reads so far; the reader is used by one thread at a time.
+     */
+    long getNanos() {
+      return nanos;
+    }
+  }
+
+  /**
+   * Input stream over the characters of a string known to be ASCII, such as base64 text,
+   * one byte per character.
+   */
+  private static final class AsciiInputStream extends InputStream {
+    private final String text;
+    private int position;
+
+    private AsciiInputStream(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public int read() {
+      return position < text.length() ? text.charAt(position++) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (position >= text.length()) {
+        return -1;
+      }
+      int count = Math.min(length, text.length() - position);
+      for (int i = 0; i < count; i++) {
+        bytes[offset + i] = (byte) text.charAt(position++);
+      }
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return text.length() - position;
+    }
+  }
+
+  /**
+   * Input stream over a (memory-mapped) byte buffer.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
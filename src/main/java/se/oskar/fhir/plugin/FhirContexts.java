@@ -0,0 +1,64 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide FHIR contexts.
+ * Creating a context scans the model classes of its FHIR version, which takes seconds, and
+ * a context is thread-safe once created, so every plugin instance in the JVM shares one.
+ */
+final class FhirContexts {
+
+  // Contexts of the versions other than R4, created when content of that version first arrives
+  private static final Map<FhirVersionEnum, FhirContext> OTHER_VERSIONS = new ConcurrentHashMap<>();
+
+  private FhirContexts() {
+  }
+
+  /**
+   * Returns the shared context of a FHIR version, creating it on first use. Concurrent
+   * first requests for the same version wait for a single creation.
+   */
+  static FhirContext forVersion(FhirVersionEnum version) {
+    if (version == FhirVersionEnum.R4) {
+      return r4();
+    }
+    FhirContext context = OTHER_VERSIONS.get(version);
+    return context != null ? context : OTHER_VERSIONS.computeIfAbsent(version, FhirContext::new);
+  }
+
+  /**
+   * Whether the model classes of a FHIR version are on the classpath, so that a context
+   * can be created for it.
+   */
+  static boolean isAvailable(FhirVersionEnum version) {
+    return version.isPresentOnClasspath();
+  }
+
+  /**
+   * Returns the shared R4 context, creating it on first use.
+   */
+  static FhirContext r4() {
+    return R4.CONTEXT;
+  }
+
+  /**
+   * Loads the definition of every resource type and the core StructureDefinitions of the
+   * context. Both are cached by the context, so only the first call does any work.
+   */
+  static void preload(FhirContext fhirContext) {
+    for (String resourceType : fhirContext.getResourceTypes()) {
+      fhirContext.getResourceDefinition(resourceType);
+    }
+    fhirContext.getValidationSupport().fetchAllStructureDefinitions();
+  }
+
+  // Initialized by the JVM on first access, which also makes creation thread-safe
+  private static final class R4 {
+    private static final FhirContext CONTEXT = FhirContext.forR4();
+  }
+}
@@ -3,27 +3,72 @@ package se.oskar.fhir.plugin;
 import com.gitb.types.v1.TAR;
 import com.gitb.types.v1.TestAssertionReportType;
 import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.BatchValidationResponse;
 import com.gitb.vs.ValidateRequest;
 import com.gitb.vs.ValidationResponse;
 import com.gitb.vs.ValidationService;
 
-import java.util.Locale;
-import java.util.ResourceBundle;
-
 import ca.uhn.fhir.context.FhirContext;
-import org.apache.commons.io.FileUtils;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Validator plugin entry point for JSON FHIR (R4) using HAPI FHIR.
+ * Validator plugin entry point for JSON FHIR (R4, R4B and R5) using HAPI FHIR.
  * Expected inputs per README:
  * - contentToValidate: the resource content (bytes, base64 string, or file path)
- * - contentType: MIME type (default application/fhir+json)
+ * - contentType: MIME type (default application/fhir+json; application/fhir+ndjson for one resource per line),
+ *   optionally with a fhirVersion parameter; without one the version is read from meta.profile
  * - ig: IG URL (optional)
- * - profile: Profile URL (optional)
+ * - profile: Profile URL, or several separated by commas or whitespace, or a list of them (optional)
+ * - bundleStreaming: validate Bundles entry by entry (optional, default false)
+ * - failFast: stop at the first error (optional, default false)
+ * - maxFindings: stop after this many errors and warnings (optional, default unlimited)
+ * - lenientParsing: report every structural parse problem instead of the first (optional, default false)
+ * - sessionId: re-validate only the Bundle entries or NDJSON lines changed since the last
+ *   submission with this id (optional)
+ * <p>
+ * Thread safety: a single instance may be shared by any number of threads calling
+ * {@link #validate(ValidateRequest)} concurrently. The {@link FhirContext}s, the cached
+ * validation engines (support chains, snapshots, instance validators) and the IG package
+ * store are immutable once built and shared without locking. HAPI parsers are not
+ * thread-safe, so a new, cheap parser is created for every parse. The only blocking
+ * points are the first request for a FHIR version other than R4, which creates its
+ * context, and the first request for a new IG + profile, which builds its engine once
+ * while concurrent requests for the same key wait for it.
+ * <p>
+ * With {@link ValidatorSettings#getMaxConcurrentValidations()} set, requests beyond the
+ * limit wait for a slot and are rejected as overloaded when none becomes free in time; with
+ * {@link ValidatorSettings#getRequestTimeout()} set, validation stops at the next checkpoint
+ * once the time is up, and the request stops waiting for an instance validation still
+ * running then. Both outcomes are reported with the result UNDEFINED.
  */
 public class FhirJsonValidatorPlugin implements ValidationService {
 
@@ -37,97 +82,478 @@ public class FhirJsonValidatorPlugin implements ValidationService {
   private static final String INPUT_CONTENT_TYPE = "contentType";
   private static final String INPUT_IG = "ig";
   private static final String INPUT_PROFILE = "profile";
+  private static final String INPUT_BUNDLE_STREAMING = "bundleStreaming";
+  private static final String INPUT_FAIL_FAST = "failFast";
+  private static final String INPUT_MAX_FINDINGS = "maxFindings";
+  private static final String INPUT_LENIENT_PARSING = "lenientParsing";
+  private static final String INPUT_SESSION_ID = "sessionId";
+  private static final Pattern PROFILE_SEPARATOR = Pattern.compile("[,\\s]+");
   private static final String DEFAULT_CONTENT_TYPE = "application/fhir+json";
+  private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+  private static final String WARM_UP_RESOURCE = "{\"resourceType\":\"Patient\",\"id\":\"warm-up\","
+      + "\"name\":[{\"family\":\"Doe\",\"given\":[\"John\"]}],\"gender\":\"male\",\"birthDate\":\"1980-01-01\"}";
+
+  // Locations of findings about an input as a whole
+  private static final String CONTENT_LOCATION = ReportItems.inputLocation(INPUT_CONTENT_TO_VALIDATE, 0, 0);
+  private static final String CONTENT_TYPE_LOCATION = ReportItems.inputLocation(INPUT_CONTENT_TYPE, 0, 0);
+  private static final String IG_LOCATION = ReportItems.inputLocation(INPUT_IG, 0, 0);
+  private static final String PROFILE_LOCATION = ReportItems.inputLocation(INPUT_PROFILE, 0, 0);
+  private static final String MAX_FINDINGS_LOCATION = ReportItems.inputLocation(INPUT_MAX_FINDINGS, 0, 0);
+
+  /** Inputs that affect the report, and therefore the result cache key, besides the content. */
+  private static final String[] RESULT_INPUTS = {
+      INPUT_CONTENT_TYPE, INPUT_IG, INPUT_PROFILE, INPUT_LOCALE, INPUT_BUNDLE_STREAMING, INPUT_FAIL_FAST,
+      INPUT_MAX_FINDINGS, INPUT_LENIENT_PARSING};
 
+  private final ValidatorSettings settings;
   private final FhirContext fhirContext;
+  private final ResultCache resultCache;
+  private final ValidationSessions sessions;
+  private final Semaphore admission;
+  private final ValidationMetrics metrics;
+  private final long startupTimeMillis;
+  private volatile Engines engines;
+  private volatile BatchValidator batchValidator;
+  private volatile ExecutorService workers;
+  private volatile ExecutorService timedValidations;
 
   public FhirJsonValidatorPlugin() {
-    this.fhirContext = FhirContext.forR4();
+    this(ValidatorSettings.fromSystemProperties());
+  }
+
+  public FhirJsonValidatorPlugin(ValidatorSettings settings) {
+    long start = System.nanoTime();
+    this.settings = settings;
+    this.metrics = settings.getMetrics();
+    this.fhirContext = FhirContexts.r4();
+    this.engines = new Engines(IgPackageStore.open(settings));
+    this.resultCache = settings.getResultCacheSize() > 0
+        ? new ResultCache(settings.getResultCacheSize(), settings.getResultCacheTtl())
+        : null;
+    this.sessions = settings.getMaxSessions() > 0
+        ? new ValidationSessions(settings.getMaxSessions(), settings.getSessionIdleTimeout())
+        : null;
+    this.admission = settings.getMaxConcurrentValidations() > 0
+        ? new Semaphore(settings.getMaxConcurrentValidations(), true)
+        : null;
+    if (settings.isWarmUp()) {
+      warmUp();
+    }
+    this.startupTimeMillis = (System.nanoTime() - start) / 1_000_000;
+  }
+
+  /**
+   * Time in milliseconds it took this instance to become ready, including the creation of
+   * the shared FHIR context if this was the first instance, and the warm-up if enabled.
+   */
+  public long getStartupTimeMillis() {
+    return startupTimeMillis;
+  }
+
+  FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  /**
+   * Re-opens the IG packages of the package directory, e.g. after they were replaced.
+   * Requests started afterwards use the new packages, and cached results are dropped.
+   */
+  public void reloadPackages() {
+    engines = new Engines(IgPackageStore.open(settings));
+    invalidateResultCache();
+  }
+
+  /**
+   * Number of requests answered from the result cache; zero when the cache is disabled.
+   */
+  public long getResultCacheHits() {
+    return resultCache == null ? 0 : resultCache.hitCount();
+  }
+
+  /**
+   * Number of requests that were validated because their result was not cached.
+   */
+  public long getResultCacheMisses() {
+    return resultCache == null ? 0 : resultCache.missCount();
+  }
+
+  /**
+   * Number of Bundle entries and NDJSON lines whose findings were reused from an earlier
+   * submission of their session.
+   */
+  public long getSessionUnitsReused() {
+    return sessions == null ? 0 : sessions.reusedCount();
+  }
+
+  /**
+   * Number of Bundle entries and NDJSON lines of session submissions that were validated
+   * because they were new or changed.
+   */
+  public long getSessionUnitsValidated() {
+    return sessions == null ? 0 : sessions.validatedCount();
+  }
+
+  public void invalidateResultCache() {
+    if (resultCache != null) {
+      resultCache.invalidateAll();
+    }
   }
 
   public ValidationResponse validate(ValidateRequest request) {
     Map<String, Object> input = request.getInput();
-    
+    return validate(input, ContentInput.of(input.get(INPUT_CONTENT_TO_VALIDATE)));
+  }
+
+  /**
+   * Validates many requests in parallel on a fork-join pool sized by
+   * {@link ValidatorSettings#getBatchParallelism()}. Responses keep the order of the requests.
+   */
+  @Override
+  public BatchValidationResponse validateBatch(List<ValidateRequest> requests) {
+    List<BatchValidator.Item> items = new ArrayList<>(requests.size());
+    for (ValidateRequest request : requests) {
+      Map<String, Object> input = request.getInput();
+      items.add(new BatchValidator.Item(input, ContentInput.of(input.get(INPUT_CONTENT_TO_VALIDATE))));
+    }
+    return batchValidator().validate(items);
+  }
+
+  /**
+   * Validates every {@code .json} file in a directory, in file name order, applying the
+   * given inputs (contentType, ig, profile, ...) to each of them.
+   */
+  public BatchValidationResponse validateDirectory(Path directory, Map<String, Object> commonInput) throws IOException {
+    List<Path> files;
+    try (Stream<Path> listing = Files.list(directory)) {
+      files = listing.filter(file -> file.getFileName().toString().endsWith(".json") && Files.isRegularFile(file))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    List<BatchValidator.Item> items = new ArrayList<>(files.size());
+    for (Path file : files) {
+      Map<String, Object> input = new HashMap<>(commonInput);
+      input.put(INPUT_CONTENT_TO_VALIDATE, file.toString());
+      items.add(new BatchValidator.Item(input, ContentInput.ofPath(file.toString())));
+    }
+    return batchValidator().validate(items);
+  }
+
+  /**
+   * Validates every non-blank line of an NDJSON file as a separate resource, applying the
+   * given inputs (contentType, ig, profile, ...) to each of them. The file is read as the
+   * lines are validated, so only a window of lines is held in memory.
+   */
+  public BatchValidationResponse validateNdjsonFile(Path file, Map<String, Object> commonInput) throws IOException {
+    long maxLineSize = settings.getMaxContentSize();
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      NdjsonValidator.LineReader lines = new NdjsonValidator.LineReader(reader, maxLineSize);
+      return batchValidator().validate(() -> {
+        while (lines.next()) {
+          if (lines.isBlank()) {
+            continue;
+          }
+          String text = lines.getText();
+          long length = lines.getLength();
+          // A line longer than the maximum size was skipped while reading
+          ContentInput.Source source = text != null
+              ? ContentInput.ofString(text)
+              : maxSize -> {
+                throw new ContentInput.ContentTooLargeException(length, maxLineSize);
+              };
+          return new BatchValidator.Item(commonInput, source);
+        }
+        return null;
+      });
+    }
+  }
+
+  ValidationResponse validate(Map<String, Object> input, ContentInput.Source source) {
+    long start = System.nanoTime();
+    ValidationResponse response;
+    if (admission == null) {
+      response = validateCached(input, source, start);
+    } else if (admit()) {
+      try {
+        response = validateCached(input, source, start);
+      } finally {
+        admission.release();
+      }
+    } else {
+      response = overloaded(getString(input.get(INPUT_LOCALE), "en"));
+    }
+    recordResult(response.getReport(), System.nanoTime() - start);
+    return response;
+  }
+
+  /**
+   * Validates one item of a batch. The batch pool bounds the work of batches, so their items
+   * do not wait for a validation slot.
+   */
+  ValidationResponse validateBatchItem(Map<String, Object> input, ContentInput.Source source) {
+    long start = System.nanoTime();
+    ValidationResponse response = validateCached(input, source, start);
+    recordResult(response.getReport(), System.nanoTime() - start);
+    return response;
+  }
+
+  /**
+   * Waits for a validation slot for up to the admission timeout.
+   */
+  private boolean admit() {
+    try {
+      return admission.tryAcquire(settings.getAdmissionTimeout().toNanos(), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private ValidationResponse overloaded(String locale) {
+    TAR report = createReport(null, null, locale);
+    ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+        getLocalizedMessage(locale, "error.validation.overloaded", settings.getAdmissionTimeout().toMillis()),
+        CONTENT_LOCATION));
+    report.setResult(TestResultType.UNDEFINED);
+
+    ValidationResponse response = new ValidationResponse();
+    response.setReport(report);
+    return response;
+  }
+
+  private ValidationResponse validateCached(Map<String, Object> input, ContentInput.Source source, long start) {
+    // A session needs to see every submission to know the parts of the last one
+    if (resultCache == null || hasSession(input)) {
+      return validateContent(input, source, start);
+    }
+    ResultCache.Key key = resultCacheKey(input, source);
+    if (key == null) {
+      return validateContent(input, source, start);
+    }
+    TAR cached = resultCache.get(key);
+    if (cached != null) {
+      ValidationResponse response = new ValidationResponse();
+      response.setReport(cached);
+      return response;
+    }
+    ValidationResponse response = validateContent(input, source, start);
+    // A timed-out report is incomplete; the next request validates the content again
+    if (response.getReport().getResult() != TestResultType.UNDEFINED) {
+      resultCache.put(key, response.getReport());
+    }
+    return response;
+  }
+
+  /**
+   * Reads the content once to build its result cache key. Returns null when the content
+   * is larger than {@link ValidatorSettings#getResultCacheMaxContentSize()}, which sources
+   * tell before reading anything, or cannot be read; validation then reports why.
+   */
+  private ResultCache.Key resultCacheKey(Map<String, Object> input, ContentInput.Source source) {
+    List<String> values = new ArrayList<>(RESULT_INPUTS.length);
+    for (String name : RESULT_INPUTS) {
+      values.add(getOptionalString(input.get(name)));
+    }
+    long start = System.nanoTime();
+    try (Reader content = source.open(resultCacheMaxContentSize())) {
+      return ResultCache.key(content, values, engines.packageStore.getVersions());
+    } catch (IOException | RuntimeException e) {
+      return null;
+    } finally {
+      metrics.recordPhase(ValidationMetrics.Phase.READ, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * The smaller of the maximum content size and the maximum size of cached content.
+   */
+  private long resultCacheMaxContentSize() {
+    long maxSize = settings.getMaxContentSize();
+    long cacheMaxSize = settings.getResultCacheMaxContentSize();
+    if (cacheMaxSize <= 0) {
+      return maxSize;
+    }
+    return maxSize <= 0 ? cacheMaxSize : Math.min(maxSize, cacheMaxSize);
+  }
+
+  /**
+   * @param start {@link System#nanoTime()} at which the request arrived, for its timeout
+   */
+  private ValidationResponse validateContent(Map<String, Object> input, ContentInput.Source source, long start) {
     // Extract standard ITB inputs
-    String contentToValidatePath = getString(input.get(INPUT_CONTENT_TO_VALIDATE), null);
     String domain = getString(input.get(INPUT_DOMAIN), "unknown");
     String validationType = getString(input.get(INPUT_VALIDATION_TYPE), "unknown");
     String locale = getString(input.get(INPUT_LOCALE), "en");
     
     // Extract custom FHIR inputs
     String contentType = getString(input.get(INPUT_CONTENT_TYPE), DEFAULT_CONTENT_TYPE);
-    String ig = getString(input.get(INPUT_IG), null);
-    String profile = getString(input.get(INPUT_PROFILE), null);
+    String ig = getOptionalString(input.get(INPUT_IG));
+    List<String> profiles = getProfiles(input.get(INPUT_PROFILE));
 
     // Create TAR report with proper ITB structure
     TAR report = createReport(domain, validationType, locale);
+    Engines engines = this.engines;
 
     try {
       // Validate content type
       if (!isValidContentType(contentType)) {
-        TestAssertionReportType item = new TestAssertionReportType();
-        item.setDescription(getLocalizedMessage(locale, "error.unsupported.content.type", contentType));
-        item.setLocation(String.format("%s:0:0", INPUT_CONTENT_TYPE));
-        item.setType("ERROR");
-        report.getReports().add(item);
-        report.setResult(TestResultType.FAILURE);
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.unsupported.content.type", contentType), CONTENT_TYPE_LOCATION));
         
         ValidationResponse response = new ValidationResponse();
         response.setReport(report);
         return response;
       }
 
-      // Parse content to validate
-      String json = parseContent(contentToValidatePath);
-      
-      // Try to parse the JSON as a FHIR resource
-      try {
-        fhirContext.newJsonParser().parseResource(json);
-        
-        // If parsing succeeds, the JSON is valid FHIR
-        report.setResult(TestResultType.SUCCESS);
-        
-        // Add success message
-        TestAssertionReportType item = new TestAssertionReportType();
-        item.setDescription(getLocalizedMessage(locale, "info.success.parsing"));
-        item.setLocation(String.format("%s:0:0", INPUT_CONTENT_TO_VALIDATE));
-        item.setType("INFO");
-        report.getReports().add(item);
-        
-        // Add IG and profile information if provided
-        if (ig != null && !ig.trim().isEmpty()) {
-          TestAssertionReportType igItem = new TestAssertionReportType();
-          igItem.setDescription(getLocalizedMessage(locale, "info.ig.specified", ig));
-          igItem.setLocation(String.format("%s:0:0", INPUT_IG));
-          igItem.setType("INFO");
-          report.getReports().add(igItem);
+      FhirVersionEnum version = selectVersion(report, locale, contentType, source, engines.packageStore);
+      if (version == null) {
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+      ValidationEngineCache engineCache = engines.forVersion(version);
+
+      FindingBudget budget = createBudget(report, locale, input, start);
+      if (budget == null) {
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+
+      ValidationSessions.Run session = beginSession(input, version, engines.packageStore);
+
+      if (isNdjsonContentType(contentType)) {
+        validateNdjson(report, budget, locale, source, engineCache, ig, profiles, session);
+        finishSession(session, budget);
+        budget.finish(locale);
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+
+      if (isEnabled(input.get(INPUT_BUNDLE_STREAMING))) {
+        // Validate Bundles entry by entry; anything else falls through to full validation
+        if (validateBundleEntries(report, budget, locale, source, engineCache, ig, profiles, session)) {
+          finishSession(session, budget);
+          budget.finish(locale);
+          ValidationResponse response = new ValidationResponse();
+          response.setReport(report);
+          return response;
         }
-        
-        if (profile != null && !profile.trim().isEmpty()) {
-          TestAssertionReportType profileItem = new TestAssertionReportType();
-          profileItem.setDescription(getLocalizedMessage(locale, "info.profile.specified", profile));
-          profileItem.setLocation(String.format("%s:0:0", INPUT_PROFILE));
-          profileItem.setType("INFO");
-          report.getReports().add(profileItem);
+      }
+
+      // Reject content that is not a FHIR resource at all before an object model is built
+      long scanStart = System.nanoTime();
+      long scanReadNanos;
+      TestAssertionReportType structureError;
+      try (ContentInput.TimedReader reader = new ContentInput.TimedReader(source.open(settings.getMaxContentSize()))) {
+        try {
+          structureError = StructureScanner.forContext(engineCache.getFhirContext())
+              .scan(reader, INPUT_CONTENT_TO_VALIDATE, locale);
+        } finally {
+          scanReadNanos = reader.getNanos();
+          metrics.recordPhase(ValidationMetrics.Phase.STRUCTURE, System.nanoTime() - scanStart - scanReadNanos);
+        }
+      } catch (ContentInput.ContentTooLargeException tooLarge) {
+        ReportItems.add(report, contentTooLarge(locale, tooLarge));
+
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+      if (structureError != null) {
+        metrics.recordPhase(ValidationMetrics.Phase.READ, scanReadNanos);
+        ReportItems.add(report, structureError);
+
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+
+      if (budget.shouldStop()) {
+        // Timed out before parsing
+        budget.finish(locale);
+
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+
+      // Open content to validate; the parser reads it as a stream
+      long openStart = System.nanoTime();
+      Reader content;
+      try {
+        content = source.open(settings.getMaxContentSize());
+      } catch (ContentInput.ContentTooLargeException tooLarge) {
+        ReportItems.add(report, contentTooLarge(locale, tooLarge));
+
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+      long parseStart = System.nanoTime();
+
+      // Try to parse the JSON as a FHIR resource
+      ParseErrorCollector parseErrors = isEnabled(input.get(INPUT_LENIENT_PARSING))
+          ? new ParseErrorCollector(INPUT_CONTENT_TO_VALIDATE, locale)
+          : null;
+      IBaseResource resource;
+      try (ContentInput.TimedReader reader = new ContentInput.TimedReader(content)) {
+        try {
+          IParser parser = engineCache.getFhirContext().newJsonParser();
+          if (parseErrors != null) {
+            parser.setParserErrorHandler(parseErrors);
+          }
+          resource = parser.parseResource(reader);
+        } finally {
+          // Reading is interleaved with parsing; split the time between the two phases
+          metrics.recordPhase(ValidationMetrics.Phase.READ, scanReadNanos + parseStart - openStart + reader.getNanos());
+          metrics.recordPhase(ValidationMetrics.Phase.PARSE, System.nanoTime() - parseStart - reader.getNanos());
         }
-        
       } catch (Exception parseException) {
         // If parsing fails, add an error
-        TestAssertionReportType item = new TestAssertionReportType();
-        item.setDescription(getLocalizedMessage(locale, "error.parsing.failed", parseException.getMessage()));
-        item.setLocation(String.format("%s:0:0", INPUT_CONTENT_TO_VALIDATE));
-        item.setType("ERROR");
-        report.getReports().add(item);
-        report.setResult(TestResultType.FAILURE);
-      }
-      
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.parsing.failed", parseException.getMessage()),
+            ParseErrorCollector.syntaxErrorLocation(INPUT_CONTENT_TO_VALIDATE, parseException)));
+
+        ValidationResponse response = new ValidationResponse();
+        response.setReport(report);
+        return response;
+      }
+
+      if (parseErrors != null && parseErrors.hasProblems()) {
+        // Lenient parsing collected structural problems; read the content again to locate them
+        long reportStart = System.nanoTime();
+        try (Reader located = source.open(settings.getMaxContentSize())) {
+          parseErrors.toReportItems(located).forEach(budget);
+        }
+        metrics.recordPhase(ValidationMetrics.Phase.REPORT, System.nanoTime() - reportStart);
+      }
+      if (parseErrors == null || !parseErrors.hasErrors()) {
+        // If parsing succeeds, the JSON is valid FHIR; lenient warnings keep their WARNING result
+
+        // Add success message
+        ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+            getLocalizedMessage(locale, "info.success.parsing"),
+            CONTENT_LOCATION));
+      }
+
+      // Validate against the requested IG and profile; plain parsing is enough otherwise
+      long profileStart = System.nanoTime();
+      ResourceValidator engine = resolveEngine(report, locale, engineCache, ig, profiles);
+      if (engine != null && !budget.shouldSkip()) {
+        ValidationResult result = validateInTime(engine, resource, budget);
+        long reportStart = System.nanoTime();
+        metrics.recordPhase(ValidationMetrics.Phase.PROFILE, reportStart - profileStart);
+        if (result != null) {
+          ReportItems.addAll(budget, result);
+          metrics.recordPhase(ValidationMetrics.Phase.REPORT, System.nanoTime() - reportStart);
+        }
+      }
+      budget.finish(locale);
+
     } catch (Exception e) {
-      TestAssertionReportType item = new TestAssertionReportType();
-      item.setDescription(getLocalizedMessage(locale, "error.content.processing", e.getMessage()));
-      item.setLocation(String.format("%s:0:0", INPUT_CONTENT_TO_VALIDATE));
-      item.setType("ERROR");
-      report.getReports().add(item);
-      report.setResult(TestResultType.FAILURE);
+      ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+          getLocalizedMessage(locale, "error.content.processing", e.getMessage()), CONTENT_LOCATION));
     }
 
     ValidationResponse response = new ValidationResponse();
@@ -137,21 +563,393 @@ public class FhirJsonValidatorPlugin implements ValidationService {
 
 
 
+  /**
+   * Preloads the model definitions, core StructureDefinitions and messages, builds the default
+   * validation engine and runs a sample resource through the parser and the validator,
+   * so that class loading and the first JIT compilations happen before the first request.
+   */
+  private void warmUp() {
+    FhirContexts.preload(fhirContext);
+    MessageCatalog.forLocale("en");
+    IBaseResource resource = fhirContext.newJsonParser().parseResource(WARM_UP_RESOURCE);
+    engines.forVersion(FhirVersions.DEFAULT).getEngine(null, null).validate(resource);
+  }
+
+  private void recordResult(TAR report, long nanos) {
+    metrics.recordResult(report.getResult(), nanos);
+    metrics.recordFindings(ReportItems.ERROR, (int) report.getCounters().getNrOfErrors());
+    metrics.recordFindings(ReportItems.WARNING, (int) report.getCounters().getNrOfWarnings());
+    metrics.recordFindings(ReportItems.INFO, (int) report.getCounters().getNrOfAssertions());
+  }
+
+
+  /**
+   * The IG package store and the engine caches built from it, one per FHIR version in use.
+   * Replaced as a whole when the packages are reloaded.
+   */
+  private static final class Engines {
+    private final IgPackageStore packageStore;
+    private final ConcurrentMap<FhirVersionEnum, ValidationEngineCache> caches = new ConcurrentHashMap<>();
+
+    private Engines(IgPackageStore packageStore) {
+      this.packageStore = packageStore;
+    }
+
+    ValidationEngineCache forVersion(FhirVersionEnum version) {
+      ValidationEngineCache cache = caches.get(version);
+      return cache != null ? cache
+          : caches.computeIfAbsent(version, v -> new ValidationEngineCache(FhirContexts.forVersion(v), packageStore));
+    }
+  }
+
+  private BatchValidator batchValidator() {
+    BatchValidator validator = batchValidator;
+    if (validator == null) {
+      synchronized (this) {
+        validator = batchValidator;
+        if (validator == null) {
+          validator = new BatchValidator(this, settings.getBatchParallelism());
+          batchValidator = validator;
+        }
+      }
+    }
+    return validator;
+  }
+
+  /**
+   * Threads that parse and validate NDJSON lines, shared by all requests.
+   */
+  private ExecutorService workers() {
+    ExecutorService pool = workers;
+    if (pool == null) {
+      synchronized (this) {
+        pool = workers;
+        if (pool == null) {
+          pool = Executors.newFixedThreadPool(settings.getBatchParallelism(), runnable -> {
+            Thread thread = new Thread(runnable, "validation-worker");
+            thread.setDaemon(true);
+            return thread;
+          });
+          workers = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Validates the resource, giving up once the request timeout has passed. The instance
+   * validator cannot be stopped at a checkpoint, so with a timeout it runs on a timed
+   * validation thread while the request waits for it; a validation still running at the
+   * timeout is cancelled and left to finish in the background, and null is returned.
+   */
+  private ValidationResult validateInTime(ResourceValidator engine, IBaseResource resource, FindingBudget budget)
+      throws InterruptedException {
+    long remaining = budget.remainingNanos();
+    if (remaining == Long.MAX_VALUE) {
+      return engine.validate(resource);
+    }
+    Future<ValidationResult> validation = timedValidations().submit(() -> engine.validate(resource));
+    try {
+      return validation.get(remaining, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      validation.cancel(true);
+      budget.timeOut();
+      return null;
+    } catch (InterruptedException e) {
+      validation.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Threads that run the instance validations of requests with a timeout, shared by all
+   * requests. With a limit on concurrent validations there are as many threads, so that
+   * validations abandoned at their timeout hold up later ones instead of piling up.
+   */
+  private ExecutorService timedValidations() {
+    ExecutorService pool = timedValidations;
+    if (pool == null) {
+      synchronized (this) {
+        pool = timedValidations;
+        if (pool == null) {
+          ThreadFactory threads = runnable -> {
+            Thread thread = new Thread(runnable, "timed-validation");
+            thread.setDaemon(true);
+            return thread;
+          };
+          int limit = settings.getMaxConcurrentValidations();
+          pool = limit > 0 ? Executors.newFixedThreadPool(limit, threads) : Executors.newCachedThreadPool(threads);
+          timedValidations = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
   private static String getString(Object any, String def) {
     return (any == null) ? def : any.toString();
   }
 
+  private static String getOptionalString(Object any) {
+    String value = getString(any, null);
+    return (value == null || value.trim().isEmpty()) ? null : value.trim();
+  }
+
+  /**
+   * Profiles of the profile input: a list of URLs, or URLs separated by commas or
+   * whitespace; duplicates are dropped.
+   */
+  static List<String> getProfiles(Object any) {
+    Collection<?> values = any instanceof Collection ? (Collection<?>) any : Collections.singletonList(any);
+    LinkedHashSet<String> profiles = new LinkedHashSet<>();
+    for (Object value : values) {
+      String text = getOptionalString(value);
+      if (text != null) {
+        for (String profile : PROFILE_SEPARATOR.split(text)) {
+          if (!profile.isEmpty()) {
+            profiles.add(profile);
+          }
+        }
+      }
+    }
+    return new ArrayList<>(profiles);
+  }
+
   private static boolean isValidContentType(String contentType) {
-    return contentType != null && contentType.startsWith("application/fhir+json");
+    return contentType != null && (contentType.startsWith(DEFAULT_CONTENT_TYPE) || isNdjsonContentType(contentType));
+  }
+
+  private static boolean isNdjsonContentType(String contentType) {
+    return contentType != null && contentType.startsWith(NDJSON_CONTENT_TYPE);
+  }
+
+  private static boolean isEnabled(Object any) {
+    return Boolean.parseBoolean(getString(any, "false").trim());
   }
 
-  private static String parseContent(String contentPath) throws Exception {
-    if (contentPath == null) {
-      throw new IllegalArgumentException("contentToValidate is required");
+  /**
+   * Creates the finding budget from the failFast and maxFindings inputs and the request
+   * timeout. Returns null when maxFindings is not a number, which is reported as an error.
+   */
+  private FindingBudget createBudget(TAR report, String locale, Map<String, Object> input, long start) {
+    String maxFindings = getOptionalString(input.get(INPUT_MAX_FINDINGS));
+    int limit = 0;
+    if (maxFindings != null) {
+      try {
+        limit = Integer.parseInt(maxFindings);
+      } catch (NumberFormatException e) {
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.invalid.max.findings", maxFindings),
+            MAX_FINDINGS_LOCATION));
+        return null;
+      }
     }
-    
-    // For ITB plugins, contentToValidate is always a file path
-    return FileUtils.readFileToString(new File(contentPath), StandardCharsets.UTF_8);
+    return new FindingBudget(report, isEnabled(input.get(INPUT_FAIL_FAST)), limit, start,
+        settings.getRequestTimeout().toNanos());
+  }
+
+  /**
+   * Selects the FHIR version from the fhirVersion parameter of the content type or, without
+   * one, from the profiles in meta.profile, defaulting to R4. Returns null when the version
+   * is not supported or its model is not on the classpath, which is reported as an error.
+   */
+  private FhirVersionEnum selectVersion(TAR report, String locale, String contentType, ContentInput.Source source,
+      IgPackageStore packageStore) {
+    String parameter = FhirVersions.mimeParameter(contentType);
+    FhirVersionEnum version;
+    if (parameter != null) {
+      version = FhirVersions.parse(parameter);
+      if (version == null) {
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.unsupported.fhir.version", parameter), CONTENT_TYPE_LOCATION));
+        return null;
+      }
+    } else {
+      version = sniffVersion(source, packageStore);
+    }
+    if (!FhirContexts.isAvailable(version)) {
+      ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+          getLocalizedMessage(locale, "error.fhir.version.unavailable", version.name()),
+          parameter != null ? CONTENT_TYPE_LOCATION : CONTENT_LOCATION));
+      return null;
+    }
+    return version;
+  }
+
+  /**
+   * Reads the version from the header of the content; problems reading it are left to
+   * validation to report. Like the Bundle check, this peek is not timed as a read of its own.
+   */
+  private static FhirVersionEnum sniffVersion(ContentInput.Source source, IgPackageStore packageStore) {
+    // Only the header is read, so the size limit does not apply here
+    try (Reader content = source.open(0)) {
+      FhirVersionEnum version = FhirVersions.sniff(content, packageStore);
+      return version != null ? version : FhirVersions.DEFAULT;
+    } catch (IOException | RuntimeException e) {
+      return FhirVersions.DEFAULT;
+    }
+  }
+
+  /**
+   * Starts the submission of the request's validation session, or returns null when the
+   * request has no session id or sessions are disabled. The session starts over whenever
+   * the inputs affecting the findings, the FHIR version or the IG packages change.
+   */
+  private ValidationSessions.Run beginSession(Map<String, Object> input, FhirVersionEnum version,
+      IgPackageStore packageStore) {
+    String sessionId = getOptionalString(input.get(INPUT_SESSION_ID));
+    if (sessions == null || sessionId == null) {
+      return null;
+    }
+    List<String> values = new ArrayList<>(RESULT_INPUTS.length + 2);
+    for (String name : RESULT_INPUTS) {
+      values.add(getOptionalString(input.get(name)));
+    }
+    values.add(version.name());
+    values.add(packageStore.getVersions());
+    return sessions.begin(sessionId, values);
+  }
+
+  private boolean hasSession(Map<String, Object> input) {
+    return sessions != null && getOptionalString(input.get(INPUT_SESSION_ID)) != null;
+  }
+
+  private static void finishSession(ValidationSessions.Run session, FindingBudget budget) {
+    if (session != null) {
+      session.finish(!budget.isTruncated());
+    }
+  }
+
+  /**
+   * Reports the requested IG and profiles and returns the validator to validate with: the
+   * engine of the IG and profile, or a {@link ProfileSetValidator} for several profiles.
+   * Returns null when nothing is requested or when the IG or a profile cannot be resolved;
+   * the latter is reported as an error.
+   */
+  private ResourceValidator resolveEngine(TAR report, String locale, ValidationEngineCache engineCache, String ig,
+      List<String> profiles) {
+    // Add IG and profile information if provided
+    if (ig != null) {
+      ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+          getLocalizedMessage(locale, "info.ig.specified", ig), IG_LOCATION));
+    }
+    for (String profile : profiles) {
+      ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+          getLocalizedMessage(locale, "info.profile.specified", profile), PROFILE_LOCATION));
+    }
+    if (ig == null && profiles.isEmpty()) {
+      return null;
+    }
+
+    if (profiles.size() < 2) {
+      ValidationEngine engine = engineCache.getEngine(ig, profiles.isEmpty() ? null : profiles.get(0));
+      if (!engine.isIgResolved()) {
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.ig.not.found", ig), IG_LOCATION));
+        return null;
+      }
+      if (!engine.isProfileResolved()) {
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.profile.not.found", engine.getProfile()), PROFILE_LOCATION));
+        return null;
+      }
+      return engine;
+    }
+
+    List<ValidationEngine> engines = new ArrayList<>(profiles.size());
+    for (String profile : profiles) {
+      engines.add(engineCache.getEngine(ig, profile));
+    }
+    if (!engines.get(0).isIgResolved()) {
+      ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+          getLocalizedMessage(locale, "error.ig.not.found", ig), IG_LOCATION));
+      return null;
+    }
+    boolean resolved = true;
+    for (ValidationEngine engine : engines) {
+      if (!engine.isProfileResolved()) {
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+            getLocalizedMessage(locale, "error.profile.not.found", engine.getProfile()), PROFILE_LOCATION));
+        resolved = false;
+      }
+    }
+    return resolved ? new ProfileSetValidator(engineCache.getFhirContext(), engines, locale) : null;
+  }
+
+  /**
+   * Validates a Bundle entry by entry, adding findings to the report as each entry
+   * completes. Entries are validated against the IG; the requested profile applies to
+   * the Bundle itself. Returns false when the content is not a Bundle.
+   */
+  private boolean validateBundleEntries(TAR report, FindingBudget budget, String locale, ContentInput.Source source,
+      ValidationEngineCache engineCache, String ig, List<String> profiles, ValidationSessions.Run session) throws Exception {
+    try (Reader reader = source.open(settings.getMaxContentSize())) {
+      if (!BundleEntryValidator.isBundle(reader)) {
+        return false;
+      }
+    } catch (ContentInput.ContentTooLargeException tooLarge) {
+      ReportItems.add(report, contentTooLarge(locale, tooLarge));
+      return true;
+    }
+
+    ResourceValidator bundleEngine = resolveEngine(report, locale, engineCache, ig, profiles);
+    if (report.getResult() == TestResultType.FAILURE) {
+      return true;
+    }
+    ResourceValidator entryEngine = bundleEngine == null ? null : engineCache.getEngine(ig, null);
+    BundleEntryValidator validator = new BundleEntryValidator(engineCache.getFhirContext(), entryEngine, bundleEngine, locale,
+        metrics, session);
+
+    int entryCount;
+    try (ContentInput.TimedReader reader = new ContentInput.TimedReader(source.open(settings.getMaxContentSize()))) {
+      try {
+        entryCount = validator.validate(reader, budget, budget::shouldSkip);
+      } finally {
+        metrics.recordPhase(ValidationMetrics.Phase.READ, reader.getNanos());
+      }
+    }
+    ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+        getLocalizedMessage(locale, "info.bundle.entries.validated", entryCount),
+        CONTENT_LOCATION));
+    return true;
+  }
+
+  /**
+   * Validates NDJSON content line by line; the size limit applies to each line rather
+   * than to the whole file.
+   */
+  private void validateNdjson(TAR report, FindingBudget budget, String locale, ContentInput.Source source,
+      ValidationEngineCache engineCache, String ig, List<String> profiles, ValidationSessions.Run session) throws Exception {
+    ResourceValidator engine = resolveEngine(report, locale, engineCache, ig, profiles);
+    if (report.getResult() == TestResultType.FAILURE) {
+      return;
+    }
+    NdjsonValidator validator = new NdjsonValidator(engineCache.getFhirContext(), engine, workers(),
+        settings.getMaxContentSize(), locale, metrics, session);
+
+    int resourceCount;
+    try (ContentInput.TimedReader reader = new ContentInput.TimedReader(source.open(0))) {
+      try {
+        resourceCount = validator.validate(reader, budget, budget::shouldSkip);
+      } finally {
+        metrics.recordPhase(ValidationMetrics.Phase.READ, reader.getNanos());
+      }
+    }
+    ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+        getLocalizedMessage(locale, "info.ndjson.validated", resourceCount),
+        CONTENT_LOCATION));
+  }
+
+  private static TestAssertionReportType contentTooLarge(String locale, ContentInput.ContentTooLargeException tooLarge) {
+    return ReportItems.create(ReportItems.ERROR,
+        getLocalizedMessage(locale, "error.content.too.large", tooLarge.getSize(), tooLarge.getMaxSize()),
+        CONTENT_LOCATION);
   }
 
   /**
@@ -169,56 +967,16 @@ public class FhirJsonValidatorPlugin implements ValidationService {
   }
 
   /**
-   * Gets localized message from resource bundle
+   * Gets localized message from the pre-compiled message catalog
    */
-  private static String getLocalizedMessage(String locale, String key, Object... args) {
-    try {
-      Locale loc = Locale.forLanguageTag(locale);
-      ResourceBundle bundle = ResourceBundle.getBundle("messages", loc);
-      String message = bundle.getString(key);
-      return String.format(message, args);
-    } catch (Exception e) {
-      // Fallback to English messages
-      return getDefaultMessage(key, args);
-    }
+  static String getLocalizedMessage(String locale, String key, Object... args) {
+    return MessageCatalog.forLocale(locale).format(key, args);
   }
 
   /**
    * Gets localized message without arguments
    */
-  private static String getLocalizedMessage(String locale, String key) {
-    return getLocalizedMessage(locale, key, new Object[0]);
-  }
-
-  /**
-   * Provides default English messages when localization fails
-   */
-  private static String getDefaultMessage(String key, Object... args) {
-    String message;
-    switch (key) {
-      case "error.unsupported.content.type":
-        message = "Unsupported content type: %s. Expected application/fhir+json";
-        break;
-      case "info.success.parsing":
-        message = "JSON successfully parsed as valid FHIR resource";
-        break;
-      case "info.ig.specified":
-        message = "Implementation Guide specified: %s";
-        break;
-      case "info.profile.specified":
-        message = "Profile specified: %s";
-        break;
-      case "error.parsing.failed":
-        message = "Failed to parse JSON as FHIR resource: %s";
-        break;
-      case "error.content.processing":
-        message = "Content processing error: %s";
-        break;
-      default:
-        message = key;
-    }
-    return String.format(message, args);
+  static String getLocalizedMessage(String locale, String key) {
+    return MessageCatalog.forLocale(locale).format(key);
   }
 }
-
-
@@ -0,0 +1,177 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Selects the FHIR version of the content: R4, R4B or R5. R4B is only available when
+ * {@code hapi-fhir-structures-r4b} is on the classpath (the {@code r4b} build profile);
+ * the caller checks {@link FhirContexts#isAvailable} and reports it otherwise.
+ * The version comes from the {@code fhirVersion} parameter of the content type
+ * ({@code application/fhir+json; fhirVersion=5.0}) or, without one, from the profiles the
+ * content claims in {@code meta.profile}; R4 is the default.
+ */
+final class FhirVersions {
+
+  static final FhirVersionEnum DEFAULT = FhirVersionEnum.R4;
+
+  private static final String MIME_PARAMETER = "fhirVersion";
+  private static final String CORE_BASE = "http://hl7.org/fhir/";
+  private static final String CORE_STRUCTURE_DEFINITION = CORE_BASE + "StructureDefinition/";
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private FhirVersions() {
+  }
+
+  /**
+   * Value of the {@code fhirVersion} parameter of a content type, or null when it has none.
+   */
+  static String mimeParameter(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+    String[] parts = contentType.split(";");
+    for (int i = 1; i < parts.length; i++) {
+      int equals = parts[i].indexOf('=');
+      if (equals > 0 && MIME_PARAMETER.equalsIgnoreCase(parts[i].substring(0, equals).trim())) {
+        String value = parts[i].substring(equals + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Parses a version as written in a MIME parameter ({@code 4.0}), a package manifest or
+   * a canonical ({@code 4.0.1}) or a release name ({@code R4}). Returns null for anything
+   * else, including versions this validator does not support.
+   */
+  static FhirVersionEnum parse(String version) {
+    if (version == null) {
+      return null;
+    }
+    String value = version.trim();
+    if ("R4".equalsIgnoreCase(value) || isRelease(value, "4.0")) {
+      return FhirVersionEnum.R4;
+    }
+    if ("R4B".equalsIgnoreCase(value) || isRelease(value, "4.3")) {
+      return FhirVersionEnum.R4B;
+    }
+    if ("R5".equalsIgnoreCase(value) || isRelease(value, "5.0")) {
+      return FhirVersionEnum.R5;
+    }
+    return null;
+  }
+
+  /**
+   * Name of the core specification package of a version.
+   */
+  static String corePackageName(FhirVersionEnum version) {
+    switch (version) {
+      case R4B:
+        return "hl7.fhir.r4b.core";
+      case R5:
+        return "hl7.fhir.r5.core";
+      default:
+        return IgPackageStore.CORE_PACKAGE_NAME;
+    }
+  }
+
+  /**
+   * Whether the content of a package declaring {@code fhirVersion} can be loaded into a
+   * context of {@code version}; packages that declare no version are loaded into any.
+   */
+  static boolean isCompatible(String fhirVersion, FhirVersionEnum version) {
+    return fhirVersion == null || parse(fhirVersion) == version;
+  }
+
+  /**
+   * Reads the version from the {@code meta.profile} of a resource: the first profile that
+   * tells its version decides. Only the fields before the first complex element are read,
+   * since {@code meta} precedes the content of a resource as serializers write it. Returns
+   * null when the profiles say nothing about the version.
+   */
+  static FhirVersionEnum sniff(Reader content, IgPackageStore packageStore) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("meta".equals(field) && value == JsonToken.START_OBJECT) {
+          return fromMeta(parser, packageStore);
+        }
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+          return null;
+        }
+      }
+    } catch (JsonProcessingException e) {
+      // Not JSON; parsing reports why
+    }
+    return null;
+  }
+
+  /**
+   * Version of a profile: the version suffix of a core StructureDefinition
+   * ({@code http://hl7.org/fhir/StructureDefinition/Patient|5.0.0}), the release in the path
+   * of a versioned core URL ({@code http://hl7.org/fhir/R5/...}), or the version of the IG
+   * package defining it. Returns null when none of them applies.
+   */
+  static FhirVersionEnum fromProfile(String url, IgPackageStore packageStore) {
+    int bar = url.indexOf('|');
+    if (bar >= 0 && url.startsWith(CORE_STRUCTURE_DEFINITION)) {
+      FhirVersionEnum version = parse(url.substring(bar + 1));
+      if (version != null) {
+        return version;
+      }
+    }
+    if (url.startsWith(CORE_BASE)) {
+      int end = url.indexOf('/', CORE_BASE.length());
+      FhirVersionEnum version = parse(url.substring(CORE_BASE.length(), end < 0 ? url.length() : end));
+      if (version != null) {
+        return version;
+      }
+    }
+    for (IgPackage igPackage : packageStore.getPackages()) {
+      if (igPackage.findEntry(url) != null) {
+        FhirVersionEnum version = parse(igPackage.getFhirVersion());
+        if (version != null) {
+          return version;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static FhirVersionEnum fromMeta(JsonParser parser, IgPackageStore packageStore) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if ("profile".equals(field) && value == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+          FhirVersionEnum version = fromProfile(parser.getText(), packageStore);
+          if (version != null) {
+            return version;
+          }
+        }
+        return null;
+      }
+      parser.skipChildren();
+    }
+    return null;
+  }
+
+  private static boolean isRelease(String value, String release) {
+    return value.equals(release) || value.startsWith(release + ".");
+  }
+}
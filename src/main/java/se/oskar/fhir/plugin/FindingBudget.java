@@ -0,0 +1,141 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+
+import java.util.function.Consumer;
+
+/**
+ * Limits the findings (errors and warnings) added to one report.
+ * <p>
+ * With {@code failFast} the budget is used up by the first error, with {@code maxFindings}
+ * by that many errors and warnings. Findings offered afterwards are dropped; INFO items
+ * still go through. Streaming validators ask {@link #shouldSkip()} before each further unit
+ * of work, so a Bundle or NDJSON file is not read any further once the budget is used up.
+ * The report gets a note that it was truncated only when a finding was dropped or work was
+ * skipped, not when the last finding merely used up the budget.
+ * <p>
+ * A request timeout is checked at the same points: once it has passed, {@link #shouldStop()}
+ * and {@link #shouldSkip()} return true, and the report keeps the findings so far but gets an ERROR saying that
+ * validation timed out and the result {@link TestResultType#UNDEFINED}.
+ */
+final class FindingBudget implements Consumer<TestAssertionReportType> {
+
+  private final TAR report;
+  private final boolean failFast;
+  private final int maxFindings;
+  private final long startNanos;
+  private final long timeoutNanos;
+  private int findings;
+  private boolean exhausted;
+  private boolean truncated;
+  private boolean timedOut;
+  private String limitInput;
+
+  /**
+   * @param maxFindings maximum number of errors and warnings; zero or less for no limit
+   */
+  FindingBudget(TAR report, boolean failFast, int maxFindings) {
+    this(report, failFast, maxFindings, 0, 0);
+  }
+
+  /**
+   * @param startNanos {@link System#nanoTime()} at which the request arrived
+   * @param timeoutNanos time the request may take from its arrival; zero or less for no limit
+   */
+  FindingBudget(TAR report, boolean failFast, int maxFindings, long startNanos, long timeoutNanos) {
+    this.report = report;
+    this.failFast = failFast;
+    this.maxFindings = maxFindings;
+    this.startNanos = startNanos;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Adds the item to the report unless it is a finding and the budget is used up.
+   */
+  @Override
+  public void accept(TestAssertionReportType item) {
+    boolean finding = ReportItems.ERROR.equals(item.getType()) || ReportItems.WARNING.equals(item.getType());
+    if (finding && exhausted) {
+      truncated = true;
+      return;
+    }
+    ReportItems.add(report, item);
+    if (finding) {
+      findings++;
+      if (failFast && ReportItems.ERROR.equals(item.getType())) {
+        exhausted = true;
+        limitInput = "failFast";
+      } else if (maxFindings > 0 && findings >= maxFindings) {
+        exhausted = true;
+        limitInput = "maxFindings";
+      }
+    }
+  }
+
+  /**
+   * Returns true once the budget is used up or the request timed out.
+   */
+  boolean shouldStop() {
+    if (!exhausted && timeoutNanos > 0 && System.nanoTime() - startNanos >= timeoutNanos) {
+      exhausted = true;
+      timedOut = true;
+    }
+    return exhausted;
+  }
+
+  /**
+   * Like {@link #shouldStop()}, asked before a unit of work that is left out when it returns
+   * true; the report is then marked as truncated.
+   */
+  boolean shouldSkip() {
+    if (shouldStop()) {
+      truncated = true;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Time left until the request timeout, in nanoseconds; {@link Long#MAX_VALUE} without one.
+   */
+  long remainingNanos() {
+    return timeoutNanos > 0 ? timeoutNanos - (System.nanoTime() - startNanos) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Records that the request timed out during a unit of work that was given up.
+   */
+  void timeOut() {
+    exhausted = true;
+    timedOut = true;
+    truncated = true;
+  }
+
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * Adds the timeout error, or the truncation note if findings were dropped or work was
+   * skipped, to the report.
+   */
+  void finish(String locale) {
+    if (timedOut) {
+      ReportItems.add(report, ReportItems.create(ReportItems.ERROR,
+          FhirJsonValidatorPlugin.getLocalizedMessage(locale, "error.validation.timed.out", timeoutNanos / 1_000_000),
+          ReportItems.inputLocation("contentToValidate", 0, 0)));
+      report.setResult(TestResultType.UNDEFINED);
+    } else if (truncated) {
+      ReportItems.add(report, ReportItems.create(ReportItems.INFO,
+          FhirJsonValidatorPlugin.getLocalizedMessage(locale, "info.findings.truncated", findings),
+          ReportItems.inputLocation(limitInput, 0, 0)));
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package se.oskar.fhir.plugin;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.hash.Hashing;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A single NPM IG package ({@code .tgz}) backed by a pre-built on-disk index.
+ * <p>
+ * The first time a package is opened its resources are copied, uncompressed, into a
+ * {@code .pack} file and their canonical URLs and offsets are written to a compact
+ * {@code .idx} file. Later opens only read the index and memory-map the pack, so
+ * resources stay off-heap until {@link #read(Entry)} is called for them.
+ */
+final class IgPackage {
+
+  private static final int INDEX_MAGIC = 0x46494458; // "FIDX"
+  private static final int INDEX_VERSION = 1;
+  private static final String PACKAGE_FOLDER = "package/";
+  private static final String PACKAGE_MANIFEST = "package/package.json";
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final String name;
+  private final String version;
+  private final String canonical;
+  private final String fhirVersion;
+  private final Map<String, String> dependencies;
+  private final List<Entry> entries;
+  private final Map<String, Entry> entriesByUrl;
+  private final ByteBuffer content;
+  private final long sourceSize;
+  private final long sourceModified;
+
+  private IgPackage(String name, String version, String canonical, String fhirVersion,
+      Map<String, String> dependencies, List<Entry> entries, ByteBuffer content, long sourceSize, long sourceModified) {
+    this.name = name;
+    this.version = version;
+    this.canonical = canonical;
+    this.fhirVersion = fhirVersion;
+    this.dependencies = Collections.unmodifiableMap(dependencies);
+    this.entries = Collections.unmodifiableList(entries);
+    this.content = content;
+    this.sourceSize = sourceSize;
+    this.sourceModified = sourceModified;
+
+    // Each URL is indexed on its own, for any type, and with its resource type
+    Map<String, Entry> byUrl = new LinkedHashMap<>();
+    for (Entry entry : entries) {
+      byUrl.putIfAbsent(entry.url, entry);
+      byUrl.putIfAbsent(typedKey(entry.resourceType, entry.url), entry);
+      if (entry.version != null) {
+        byUrl.putIfAbsent(entry.url + "|" + entry.version, entry);
+        byUrl.putIfAbsent(typedKey(entry.resourceType, entry.url + "|" + entry.version), entry);
+      }
+    }
+    this.entriesByUrl = Collections.unmodifiableMap(byUrl);
+  }
+
+  /**
+   * Hash identifying an exact list of package files, for naming files derived from them.
+   */
+  static String hash(List<IgPackage> packages) {
+    StringBuilder stamps = new StringBuilder();
+    for (IgPackage igPackage : packages) {
+      stamps.append(igPackage.getStamp()).append('\n');
+    }
+    return Hashing.murmur3_128().hashString(stamps, StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * Opens a package, (re)building its index in {@code indexDirectory} when it is missing
+   * or older than the package file.
+   */
+  static IgPackage open(Path packageFile, Path indexDirectory) throws IOException {
+    String baseName = packageFile.getFileName().toString().replaceFirst("\\.tgz$", "");
+    Path indexFile = indexDirectory.resolve(baseName + ".idx");
+    Path packFile = indexDirectory.resolve(baseName + ".pack");
+
+    long sourceSize = Files.size(packageFile);
+    long sourceModified = Files.getLastModifiedTime(packageFile).toMillis();
+    if (!isIndexCurrent(indexFile, packFile, sourceSize, sourceModified)) {
+      Files.createDirectories(indexDirectory);
+      buildIndex(packageFile, indexFile, packFile, sourceSize, sourceModified);
+    }
+    return readIndex(indexFile, packFile);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getVersion() {
+    return version;
+  }
+
+  /**
+   * Package id in the {@code name#version} form used by FHIR package registries.
+   */
+  String getId() {
+    return name + "#" + version;
+  }
+
+  /**
+   * Identifies this exact package file: its id followed by the size and modification
+   * time of the {@code .tgz} it was indexed from.
+   */
+  String getStamp() {
+    return getId() + "@" + sourceSize + "-" + sourceModified;
+  }
+
+  String getCanonical() {
+    return canonical;
+  }
+
+  String getFhirVersion() {
+    return fhirVersion;
+  }
+
+  /**
+   * Dependencies as declared in {@code package.json}: package name to version.
+   */
+  Map<String, String> getDependencies() {
+    return dependencies;
+  }
+
+  Collection<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Looks up a resource of any type by canonical URL, optionally suffixed with
+   * {@code |version}. Resources of different types may share a URL, such as a CodeSystem
+   * and its ValueSet; the first one in the package is returned.
+   */
+  Entry findEntry(String url) {
+    return entriesByUrl.get(url);
+  }
+
+  /**
+   * Looks up a resource of the given type by canonical URL, optionally suffixed with
+   * {@code |version}.
+   */
+  Entry findEntry(String resourceType, String url) {
+    return entriesByUrl.get(typedKey(resourceType, url));
+  }
+
+  // A space never occurs in a URL, so typed keys cannot collide with plain URLs
+  private static String typedKey(String resourceType, String url) {
+    return resourceType + " " + url;
+  }
+
+  /**
+   * Returns true when {@code ig} names this package: its id, its name, its canonical base
+   * or the URL of an ImplementationGuide resource it contains.
+   */
+  boolean matches(String ig) {
+    if (ig.equals(name) || ig.equals(getId())) {
+      return true;
+    }
+    if (canonical != null && (ig.equals(canonical) || ig.startsWith(canonical + "/ImplementationGuide/"))) {
+      return true;
+    }
+    return findEntry("ImplementationGuide", ig) != null;
+  }
+
+  /**
+   * Copies the raw JSON of an entry out of the memory-mapped pack.
+   */
+  byte[] read(Entry entry) {
+    byte[] bytes = new byte[entry.length];
+    content.duplicate().position(entry.offset).get(bytes);
+    return bytes;
+  }
+
+  private static boolean isIndexCurrent(Path indexFile, Path packFile, long sourceSize, long sourceModified) throws IOException {
+    if (!Files.isRegularFile(indexFile) || !Files.isRegularFile(packFile)) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      return in.readInt() == INDEX_MAGIC
+          && in.readInt() == INDEX_VERSION
+          && in.readLong() == sourceSize
+          && in.readLong() == sourceModified;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void buildIndex(Path packageFile, Path indexFile, Path packFile, long sourceSize, long sourceModified) throws IOException {
+    Path tempPack = Files.createTempFile(packFile.getParent(), packFile.getFileName().toString(), ".tmp");
+    Path tempIndex = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+    try {
+      List<Entry> entries = new ArrayList<>();
+      Manifest manifest = new Manifest();
+      long offset = 0;
+
+      try (TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(packageFile))));
+           OutputStream pack = new BufferedOutputStream(Files.newOutputStream(tempPack))) {
+        TarArchiveEntry tarEntry;
+        while ((tarEntry = tar.getNextTarEntry()) != null) {
+          String entryName = tarEntry.getName();
+          if (!tarEntry.isFile() || !entryName.startsWith(PACKAGE_FOLDER) || !entryName.endsWith(".json")
+              || entryName.indexOf('/', PACKAGE_FOLDER.length()) >= 0) {
+            continue;
+          }
+          byte[] bytes = tar.readAllBytes();
+          if (PACKAGE_MANIFEST.equals(entryName)) {
+            manifest = readManifest(bytes);
+            continue;
+          }
+          Entry entry = readEntryHeader(bytes);
+          if (entry == null) {
+            continue;
+          }
+          if (offset + bytes.length > Integer.MAX_VALUE) {
+            throw new IOException("Package is too large to be indexed: " + packageFile);
+          }
+          pack.write(bytes);
+          entries.add(new Entry(entry.resourceType, entry.url, entry.version, (int) offset, bytes.length));
+          offset += bytes.length;
+        }
+      }
+
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempIndex)))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(sourceSize);
+        out.writeLong(sourceModified);
+        writeNullable(out, manifest.name);
+        writeNullable(out, manifest.version);
+        writeNullable(out, manifest.canonical);
+        writeNullable(out, manifest.fhirVersion);
+        out.writeInt(manifest.dependencies.size());
+        for (Map.Entry<String, String> dependency : manifest.dependencies.entrySet()) {
+          out.writeUTF(dependency.getKey());
+          out.writeUTF(dependency.getValue());
+        }
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          out.writeUTF(entry.resourceType);
+          out.writeUTF(entry.url);
+          writeNullable(out, entry.version);
+          out.writeInt(entry.offset);
+          out.writeInt(entry.length);
+        }
+      }
+
+      // The pack must be in place before the index that describes it
+      Files.move(tempPack, packFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tempIndex, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempPack);
+      Files.deleteIfExists(tempIndex);
+    }
+  }
+
+  private static IgPackage readIndex(Path indexFile, Path packFile) throws IOException {
+    String name;
+    String version;
+    String canonical;
+    String fhirVersion;
+    Map<String, String> dependencies = new LinkedHashMap<>();
+    List<Entry> entries;
+    long sourceSize;
+    long sourceModified;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      in.readInt();
+      in.readInt();
+      sourceSize = in.readLong();
+      sourceModified = in.readLong();
+      name = readNullable(in);
+      version = readNullable(in);
+      canonical = readNullable(in);
+      fhirVersion = readNullable(in);
+      int dependencyCount = in.readInt();
+      for (int i = 0; i < dependencyCount; i++) {
+        dependencies.put(in.readUTF(), in.readUTF());
+      }
+      int entryCount = in.readInt();
+      entries = new ArrayList<>(entryCount);
+      for (int i = 0; i < entryCount; i++) {
+        entries.add(new Entry(in.readUTF(), in.readUTF(), readNullable(in), in.readInt(), in.readInt()));
+      }
+    }
+
+    MappedByteBuffer content;
+    try (FileChannel channel = FileChannel.open(packFile, StandardOpenOption.READ)) {
+      content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (name == null) {
+      name = packFile.getFileName().toString().replaceFirst("\\.pack$", "");
+    }
+    return new IgPackage(name, version == null ? "current" : version, canonical, fhirVersion, dependencies, entries, content, sourceSize, sourceModified);
+  }
+
+  /**
+   * Reads the top-level {@code resourceType}, {@code url} and {@code version} of a
+   * resource without building a tree; returns null for resources without a URL.
+   */
+  private static Entry readEntryHeader(byte[] json) throws IOException {
+    String resourceType = null;
+    String url = null;
+    String version = null;
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.VALUE_STRING && "resourceType".equals(field)) {
+          resourceType = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "url".equals(field)) {
+          url = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "version".equals(field)) {
+          version = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    if (resourceType == null || url == null) {
+      return null;
+    }
+    return new Entry(resourceType, url, version, 0, 0);
+  }
+
+  private static Manifest readManifest(byte[] json) throws IOException {
+    Manifest manifest = new Manifest();
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return manifest;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (value == JsonToken.VALUE_STRING && "name".equals(field)) {
+          manifest.name = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "version".equals(field)) {
+          manifest.version = parser.getText();
+        } else if (value == JsonToken.VALUE_STRING && "canonical".equals(field)) {
+          manifest.canonical = parser.getText();
+        } else if (value == JsonToken.START_ARRAY && "fhirVersions".equals(field)) {
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (manifest.fhirVersion == null && parser.currentToken() == JsonToken.VALUE_STRING) {
+              manifest.fhirVersion = parser.getText();
+            }
+          }
+        } else if (value == JsonToken.START_OBJECT && "dependencies".equals(field)) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String dependency = parser.getCurrentName();
+            parser.nextToken();
+            manifest.dependencies.put(dependency, parser.getText());
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+    }
+    return manifest;
+  }
+
+  static void writeNullable(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  static String readNullable(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Index entry of one conformance resource inside the pack.
+   */
+  static final class Entry {
+    private final String resourceType;
+    private final String url;
+    private final String version;
+    private final int offset;
+    private final int length;
+
+    private Entry(String resourceType, String url, String version, int offset, int length) {
+      this.resourceType = resourceType;
+      this.url = url;
+      this.version = version;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    String getResourceType() {
+      return resourceType;
+    }
+
+    String getUrl() {
+      return url;
+    }
+
+    String getVersion() {
+      return version;
+    }
+  }
+
+  private static final class Manifest {
+    private String name;
+    private String version;
+    private String canonical;
+    private String fhirVersion;
+    private final Map<String, String> dependencies = new LinkedHashMap<>();
+  }
+}
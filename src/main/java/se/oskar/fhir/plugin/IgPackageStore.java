@@ -0,0 +1,153 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Offline store of IG packages read from a local directory of NPM {@code .tgz} files.
+ * Packages are indexed and memory-mapped when the store is opened; their resources
+ * are only parsed when validation asks for them.
+ */
+final class IgPackageStore {
+
+  /** Core package of R4, the default FHIR version. */
+  static final String CORE_PACKAGE_NAME = "hl7.fhir.r4.core";
+
+  private static final IgPackageStore EMPTY = new IgPackageStore(Collections.emptyList(), null);
+
+  private final List<IgPackage> packages;
+  private final Path indexDirectory;
+  private final String versions;
+
+  private IgPackageStore(List<IgPackage> packages, Path indexDirectory) {
+    this.packages = Collections.unmodifiableList(packages);
+    this.indexDirectory = indexDirectory;
+    List<String> stamps = new ArrayList<>(packages.size());
+    for (IgPackage igPackage : packages) {
+      stamps.add(igPackage.getStamp());
+    }
+    Collections.sort(stamps);
+    this.versions = String.join(",", stamps);
+  }
+
+  static IgPackageStore empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Opens every {@code .tgz} package in the configured package directory.
+   */
+  static IgPackageStore open(ValidatorSettings settings) {
+    Path packageDirectory = settings.getPackageDirectory();
+    if (packageDirectory == null || !Files.isDirectory(packageDirectory)) {
+      return EMPTY;
+    }
+    List<IgPackage> packages = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(packageDirectory, "*.tgz")) {
+      for (Path file : files) {
+        packages.add(IgPackage.open(file, settings.getIndexDirectory()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open IG packages in " + packageDirectory, e);
+    }
+    return new IgPackageStore(packages, settings.getIndexDirectory());
+  }
+
+  List<IgPackage> getPackages() {
+    return packages;
+  }
+
+  /**
+   * Directory holding the package indexes and other derived files; null for an empty store.
+   */
+  Path getIndexDirectory() {
+    return indexDirectory;
+  }
+
+  /**
+   * Versions of all packages in the store, including the size and modification time of
+   * each package file; two stores with the same value validate identically.
+   */
+  String getVersions() {
+    return versions;
+  }
+
+  /**
+   * Resolves an {@code ig} input to the matching package followed by its transitive
+   * dependencies. Returns an empty list when no package matches.
+   */
+  List<IgPackage> resolve(String ig) {
+    return resolve(ig, null);
+  }
+
+  /**
+   * Resolves an {@code ig} input like {@link #resolve(String)}, considering only packages
+   * for the given FHIR version, or any version when it is null.
+   */
+  List<IgPackage> resolve(String ig, FhirVersionEnum fhirVersion) {
+    IgPackage root = null;
+    for (IgPackage candidate : packages) {
+      if (candidate.matches(ig) && (fhirVersion == null || FhirVersions.isCompatible(candidate.getFhirVersion(), fhirVersion))) {
+        root = candidate;
+        break;
+      }
+    }
+    if (root == null) {
+      return Collections.emptyList();
+    }
+
+    Set<IgPackage> resolved = new LinkedHashSet<>();
+    Deque<IgPackage> pending = new ArrayDeque<>();
+    pending.add(root);
+    while (!pending.isEmpty()) {
+      IgPackage current = pending.poll();
+      if (!resolved.add(current)) {
+        continue;
+      }
+      current.getDependencies().forEach((name, version) -> {
+        IgPackage dependency = find(name, version);
+        if (dependency != null) {
+          pending.add(dependency);
+        }
+      });
+    }
+    return new ArrayList<>(resolved);
+  }
+
+  /**
+   * Returns the core specification package, if it is present in the store.
+   */
+  IgPackage findCorePackage(FhirVersionEnum version) {
+    return find(FhirVersions.corePackageName(version), null);
+  }
+
+  /**
+   * Finds a package by name, preferring an exact version match.
+   */
+  private IgPackage find(String name, String version) {
+    IgPackage anyVersion = null;
+    for (IgPackage candidate : packages) {
+      if (candidate.getName().equals(name)) {
+        if (candidate.getVersion().equals(version)) {
+          return candidate;
+        }
+        if (anyVersion == null) {
+          anyVersion = candidate;
+        }
+      }
+    }
+    return anyVersion;
+  }
+}
@@ -0,0 +1,157 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestResultType;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ValidationMetrics} kept in memory: a latency histogram per phase and for whole
+ * requests, and counters per result and finding type. Use {@link #dump(PrintStream)} to
+ * print a summary, e.g. at the end of a local run.
+ */
+public final class InMemoryValidationMetrics implements ValidationMetrics {
+
+  private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+  private final Histogram requests = new Histogram();
+  private final Map<TestResultType, LongAdder> results = new EnumMap<>(TestResultType.class);
+  private final ConcurrentMap<String, LongAdder> findings = new ConcurrentHashMap<>();
+
+  public InMemoryValidationMetrics() {
+    // Both maps are filled up front and only read afterwards, so they need no locking
+    for (Phase phase : Phase.values()) {
+      phases.put(phase, new Histogram());
+    }
+    for (TestResultType result : TestResultType.values()) {
+      results.put(result, new LongAdder());
+    }
+  }
+
+  @Override
+  public void recordPhase(Phase phase, long nanos) {
+    phases.get(phase).record(nanos);
+  }
+
+  @Override
+  public void recordResult(TestResultType result, long nanos) {
+    results.get(result).increment();
+    requests.record(nanos);
+  }
+
+  @Override
+  public void recordFindings(String type, int count) {
+    if (count > 0) {
+      findings.computeIfAbsent(type, t -> new LongAdder()).add(count);
+    }
+  }
+
+  public Histogram getPhase(Phase phase) {
+    return phases.get(phase);
+  }
+
+  /**
+   * Durations of whole validation requests.
+   */
+  public Histogram getRequests() {
+    return requests;
+  }
+
+  public long getResultCount(TestResultType result) {
+    return results.get(result).sum();
+  }
+
+  public long getFindingCount(String type) {
+    LongAdder count = findings.get(type);
+    return count == null ? 0 : count.sum();
+  }
+
+  /**
+   * Prints request and phase latencies (in milliseconds) and the result and finding counts.
+   */
+  public void dump(PrintStream out) {
+    out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "phase", "count", "mean", "p50", "p99", "p999", "max");
+    dumpRow(out, "request", requests);
+    for (Phase phase : Phase.values()) {
+      dumpRow(out, phase.name().toLowerCase(), phases.get(phase));
+    }
+    StringBuilder counts = new StringBuilder("results:");
+    results.forEach((result, count) -> counts.append(' ').append(result).append('=').append(count.sum()));
+    counts.append("  findings:");
+    new TreeMap<>(findings).forEach((type, count) -> counts.append(' ').append(type).append('=').append(count.sum()));
+    out.println(counts);
+  }
+
+  private static void dumpRow(PrintStream out, String name, Histogram histogram) {
+    out.printf("%-10s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, histogram.getCount(),
+        millis(histogram.getMeanNanos()), millis(histogram.getPercentileNanos(0.5)),
+        millis(histogram.getPercentileNanos(0.99)), millis(histogram.getPercentileNanos(0.999)),
+        millis(histogram.getMaxNanos()));
+  }
+
+  private static double millis(double nanos) {
+    return nanos / 1_000_000.0;
+  }
+
+  /**
+   * Lock-free latency histogram with power-of-two microsecond buckets: bucket {@code i}
+   * holds durations below {@code 2^i} microseconds, so percentiles are accurate to within
+   * a factor of two, which is enough to tell I/O, parsing and validation apart.
+   */
+  public static final class Histogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+      long micros = Math.max(0, nanos) / 1000;
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+      buckets.incrementAndGet(bucket);
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public double getMeanNanos() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    /**
+     * Upper bound of the bucket holding the given percentile (0 to 1), capped at the
+     * maximum recorded duration.
+     */
+    public long getPercentileNanos(double percentile) {
+      long n = count.sum();
+      if (n == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min((1L << i) * 1000, getMaxNanos());
+        }
+      }
+      return getMaxNanos();
+    }
+  }
+}
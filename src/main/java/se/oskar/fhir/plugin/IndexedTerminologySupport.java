@@ -0,0 +1,92 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Validation support answering code validation from a {@link TerminologyIndex}.
+ * It sits first in the support chain; the in-memory terminology services behind it still
+ * handle the ValueSets that are not in the index. Until an index is set it supports
+ * nothing, so the chain can be used to build the index.
+ */
+final class IndexedTerminologySupport implements IValidationSupport {
+
+  private final FhirContext fhirContext;
+  private volatile TerminologyIndex index;
+
+  IndexedTerminologySupport(FhirContext fhirContext) {
+    this.fhirContext = fhirContext;
+  }
+
+  void setIndex(TerminologyIndex index) {
+    this.index = index;
+  }
+
+  TerminologyIndex getIndex() {
+    return index;
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  @Override
+  public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+    TerminologyIndex current = index;
+    return current != null && current.contains(theValueSetUrl);
+  }
+
+  @Override
+  public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
+    // The chain only asks for code validation from supports that know the code system
+    TerminologyIndex current = index;
+    return current != null && current.containsSystem(theSystem);
+  }
+
+  @Override
+  public CodeValidationResult validateCode(ValidationSupportContext theValidationSupportContext, ConceptValidationOptions theOptions,
+      String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl) {
+    TerminologyIndex current = index;
+    if (current == null || !current.contains(theValueSetUrl)) {
+      return null;
+    }
+    String system = theCodeSystem;
+    if (system == null && theOptions != null && theOptions.isInferSystem()) {
+      system = current.inferSystem(theValueSetUrl, theCode);
+    }
+    TerminologyIndex.Concept concept = current.find(theValueSetUrl, system, theCode);
+    if (concept == null) {
+      return new CodeValidationResult()
+          .setSeverity(IssueSeverity.ERROR)
+          .setMessage("Unknown code '" + (system == null ? "" : system + "#") + theCode
+              + "' for in-memory expansion of ValueSet '" + theValueSetUrl + "'");
+    }
+    if (theDisplay != null && concept.getDisplay() != null && !theDisplay.equals(concept.getDisplay())) {
+      return InMemoryTerminologyServerValidationSupport.createResultForDisplayMismatch(
+          fhirContext, theCode, theDisplay, concept.getDisplay(), null, IssueSeverity.WARNING);
+    }
+    return new CodeValidationResult()
+        .setCode(theCode)
+        .setCodeSystemName(system)
+        .setDisplay(concept.getDisplay());
+  }
+
+  @Override
+  public CodeValidationResult validateCodeInValueSet(ValidationSupportContext theValidationSupportContext, ConceptValidationOptions theOptions,
+      String theCodeSystem, String theCode, String theDisplay, IBaseResource theValueSet) {
+    String url = new FhirTerser(fhirContext).getSinglePrimitiveValueOrNull(theValueSet, "url");
+    return validateCode(theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, url);
+  }
+
+  @Override
+  public String toString() {
+    TerminologyIndex current = index;
+    return "Indexed terminology (" + (current == null ? 0 : current.getValueSetCount()) + " ValueSets)";
+  }
+}
@@ -0,0 +1,169 @@
+package se.oskar.fhir.plugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Localized report messages, compiled once from the {@code messages*.properties} bundles.
+ * <p>
+ * Templates use {@code {0}}, {@code {1}}, ... placeholders. They are split into literal
+ * parts and argument indexes when a locale is first loaded, so rendering a message only
+ * appends strings to a pre-sized builder. Unlike {@link java.text.MessageFormat},
+ * apostrophes are plain text and numbers are not grouped.
+ */
+final class MessageCatalog {
+
+  private static final String BUNDLE_NAME = "messages";
+  /** Locales shipped with the plugin, compiled when the class is loaded. */
+  private static final String[] BUNDLED_LOCALES = {"en", "fr"};
+  /** Upper bound on cached locale strings, as they come straight from the request. */
+  private static final int MAX_CACHED_TAGS = 256;
+
+  private static final ResourceBundle.Control CONTROL =
+      ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_PROPERTIES);
+  private static final ConcurrentMap<Locale, Messages> BY_LOCALE = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Messages> BY_TAG = new ConcurrentHashMap<>();
+
+  static {
+    for (String tag : BUNDLED_LOCALES) {
+      forLocale(tag);
+    }
+  }
+
+  private MessageCatalog() {
+  }
+
+  /**
+   * Returns the messages for a request's {@code locale} input (a language tag such as
+   * {@code fr} or {@code fr-CA}). Keys missing in that locale fall back to English.
+   */
+  static Messages forLocale(String tag) {
+    String key = tag == null ? "" : tag;
+    Messages messages = BY_TAG.get(key);
+    if (messages != null) {
+      return messages;
+    }
+    messages = load(Locale.forLanguageTag(key));
+    if (BY_TAG.size() < MAX_CACHED_TAGS) {
+      BY_TAG.putIfAbsent(key, messages);
+    }
+    return messages;
+  }
+
+  private static Messages load(Locale requested) {
+    ResourceBundle bundle;
+    try {
+      bundle = ResourceBundle.getBundle(BUNDLE_NAME, requested, CONTROL);
+    } catch (MissingResourceException e) {
+      return BY_LOCALE.computeIfAbsent(Locale.ROOT, locale -> new Messages(new HashMap<>()));
+    }
+    // Different tags resolving to the same bundle share one compiled instance
+    return BY_LOCALE.computeIfAbsent(bundle.getLocale(), locale -> {
+      Map<String, Template> templates = new HashMap<>();
+      for (String key : bundle.keySet()) {
+        templates.put(key, Template.compile(bundle.getString(key)));
+      }
+      return new Messages(templates);
+    });
+  }
+
+  /**
+   * The compiled messages of one locale.
+   */
+  static final class Messages {
+    private final Map<String, Template> templates;
+
+    private Messages(Map<String, Template> templates) {
+      this.templates = templates;
+    }
+
+    /**
+     * Renders the message for {@code key}, or returns the key itself when it is unknown.
+     */
+    String format(String key, Object... args) {
+      Template template = templates.get(key);
+      return template == null ? key : template.render(args);
+    }
+  }
+
+  /**
+   * A message split into literal parts and argument indexes:
+   * {@code literals[0] + args[indexes[0]] + literals[1] + ... + literals[n]}.
+   */
+  private static final class Template {
+    private final String[] literals;
+    private final int[] indexes;
+    private final int literalLength;
+
+    private Template(String[] literals, int[] indexes) {
+      this.literals = literals;
+      this.indexes = indexes;
+      int length = 0;
+      for (String literal : literals) {
+        length += literal.length();
+      }
+      this.literalLength = length;
+    }
+
+    static Template compile(String pattern) {
+      List<String> literals = new ArrayList<>();
+      List<Integer> indexes = new ArrayList<>();
+      StringBuilder literal = new StringBuilder();
+      int i = 0;
+      while (i < pattern.length()) {
+        char c = pattern.charAt(i);
+        int close = c == '{' ? pattern.indexOf('}', i) : -1;
+        int index = close > i + 1 ? parseIndex(pattern, i + 1, close) : -1;
+        if (index < 0) {
+          literal.append(c);
+          i++;
+          continue;
+        }
+        literals.add(literal.toString());
+        literal.setLength(0);
+        indexes.add(index);
+        i = close + 1;
+      }
+      literals.add(literal.toString());
+      return new Template(literals.toArray(new String[0]), indexes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static int parseIndex(String pattern, int from, int to) {
+      int index = 0;
+      for (int i = from; i < to; i++) {
+        char digit = pattern.charAt(i);
+        if (digit < '0' || digit > '9' || to - from > 3) {
+          return -1;
+        }
+        index = index * 10 + (digit - '0');
+      }
+      return index;
+    }
+
+    String render(Object[] args) {
+      if (indexes.length == 0) {
+        return literals[0];
+      }
+      StringBuilder message = new StringBuilder(literalLength + 16 * indexes.length);
+      message.append(literals[0]);
+      for (int i = 0; i < indexes.length; i++) {
+        int index = indexes[i];
+        if (index < args.length) {
+          message.append(args[index]);
+        } else {
+          // Keep the placeholder visible rather than silently dropping it
+          message.append('{').append(index).append('}');
+        }
+        message.append(literals[i + 1]);
+      }
+      return message.toString();
+    }
+  }
+}
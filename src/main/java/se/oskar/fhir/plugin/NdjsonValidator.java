@@ -0,0 +1,328 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.google.common.hash.HashCode;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Validates NDJSON (one resource per line) in a read, parse and validate, report pipeline.
+ * <p>
+ * The calling thread reads the lines and hands each one to a shared executor, which parses
+ * and validates it; the calling thread then reports results in line order. At most
+ * {@link #WINDOW} lines are in flight at any time, and a line longer than the maximum size
+ * is skipped while reading rather than buffered, so memory use does not depend on the size
+ * of the file. The executor is shared between requests, so their number does not add threads.
+ * <p>
+ * Within a validation session, lines that are unchanged since the session's last submission
+ * skip parsing and validation and are reported with their earlier findings.
+ */
+final class NdjsonValidator {
+
+  /** Maximum number of lines read but not yet reported. */
+  static final int WINDOW = 256;
+
+  /** How often a caller waiting for a line asks whether to stop. */
+  private static final long STOP_CHECK_MILLIS = 50;
+
+  private static final String CONTENT_INPUT = "contentToValidate";
+
+  private final FhirContext fhirContext;
+  private final ResourceValidator engine;
+  private final Executor executor;
+  private final long maxLineSize;
+  private final MessageCatalog.Messages messages;
+  private final ValidationMetrics metrics;
+  private final ValidationSessions.Run session;
+
+  /**
+   * @param engine engine for each line's resource, or null for parsing only
+   * @param executor executor to parse and validate the lines on
+   * @param maxLineSize maximum length of a line; zero or less disables the check
+   */
+  NdjsonValidator(FhirContext fhirContext, ResourceValidator engine, Executor executor, long maxLineSize, String locale,
+      ValidationMetrics metrics) {
+    this(fhirContext, engine, executor, maxLineSize, locale, metrics, null);
+  }
+
+  /**
+   * @param session submission of the validation session to reuse findings from, or null
+   */
+  NdjsonValidator(FhirContext fhirContext, ResourceValidator engine, Executor executor, long maxLineSize, String locale,
+      ValidationMetrics metrics, ValidationSessions.Run session) {
+    this.fhirContext = fhirContext;
+    this.engine = engine;
+    this.executor = executor;
+    this.maxLineSize = maxLineSize;
+    this.messages = MessageCatalog.forLocale(locale);
+    this.metrics = metrics;
+    this.session = session;
+  }
+
+  /**
+   * Validates every non-blank line read from {@code reader}, passing findings to
+   * {@code findings} in line order.
+   *
+   * @return the number of resources (non-blank lines) validated
+   */
+  int validate(Reader reader, Consumer<TestAssertionReportType> findings) throws IOException, InterruptedException {
+    return validate(reader, findings, () -> false);
+  }
+
+  /**
+   * Like {@link #validate(Reader, Consumer)}, but asks {@code stop} before reporting each
+   * further line and while waiting for one, and stops reading and validating once it
+   * returns true.
+   *
+   * @return the number of resources reported
+   */
+  int validate(Reader reader, Consumer<TestAssertionReportType> findings, BooleanSupplier stop)
+      throws IOException, InterruptedException {
+    BlockingQueue<Line> done = new LinkedBlockingQueue<>();
+    AtomicBoolean abandoned = new AtomicBoolean();
+    // Lines finish out of order; hold them back until all earlier lines are reported
+    Map<Integer, Line> pending = new TreeMap<>();
+    LineReader lines = new LineReader(reader, maxLineSize);
+    int lineCount = 0;
+    int nextIndex = 0;
+    try {
+      boolean more = true;
+      while (more || nextIndex < lineCount) {
+        if (more && lineCount - nextIndex < WINDOW) {
+          more = lines.next();
+          if (more && !lines.isBlank()) {
+            Line line = new Line(lines.getNumber(), lineCount++, lines.getText(), lines.getLength());
+            executor.execute(() -> process(line, abandoned, done));
+          }
+          // Keep reading while there is room; report whatever is done in between
+          Line finished = done.poll();
+          if (finished != null) {
+            pending.put(finished.index, finished);
+          }
+        } else {
+          Line finished = done.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+          if (finished != null) {
+            pending.put(finished.index, finished);
+          } else if (stop.getAsBoolean()) {
+            return nextIndex;
+          }
+        }
+        Line next;
+        while ((next = pending.remove(nextIndex)) != null) {
+          if (stop.getAsBoolean()) {
+            return nextIndex;
+          }
+          if (next.fingerprint != null) {
+            session.record(next.fingerprint, lineLocation(next), next.findings);
+          }
+          next.findings.forEach(findings);
+          nextIndex++;
+        }
+      }
+    } finally {
+      // Lines still in flight after an early stop or a read failure are skipped
+      abandoned.set(true);
+    }
+    return lineCount;
+  }
+
+  /**
+   * Parses and validates a line on the executor. Whatever happens, the line is handed
+   * back, as the caller waits for every line it submitted.
+   */
+  private void process(Line line, AtomicBoolean abandoned, BlockingQueue<Line> done) {
+    try {
+      if (!abandoned.get()) {
+        parse(line);
+        validate(line);
+      }
+    } catch (Throwable e) {
+      line.findings.add(ReportItems.create(ReportItems.ERROR,
+          messages.format("error.content.processing", e.getMessage()),
+          lineLocation(line)));
+    } finally {
+      line.text = null;
+      line.resource = null;
+      done.add(line);
+    }
+  }
+
+  private void parse(Line line) {
+    if (line.text == null) {
+      // Longer than the maximum size; the reader skipped its content
+      line.findings.add(ReportItems.create(ReportItems.ERROR,
+          messages.format("error.content.too.large", line.length, maxLineSize),
+          lineLocation(line)));
+      return;
+    }
+    if (session != null) {
+      HashCode fingerprint = ValidationSessions.fingerprint("line", line.text);
+      List<TestAssertionReportType> reused = session.replay(fingerprint, lineLocation(line));
+      if (reused != null) {
+        line.findings.addAll(reused);
+        line.text = null;
+        return;
+      }
+      line.fingerprint = fingerprint;
+    }
+    long start = System.nanoTime();
+    try {
+      line.resource = fhirContext.newJsonParser().parseResource(line.text);
+      metrics.recordPhase(ValidationMetrics.Phase.PARSE, System.nanoTime() - start);
+    } catch (Exception parseException) {
+      line.findings.add(ReportItems.create(ReportItems.ERROR,
+          messages.format("error.parsing.failed", parseException.getMessage()),
+          lineLocation(line)));
+    }
+    // The raw text is no longer needed once the line is parsed
+    line.text = null;
+  }
+
+  private void validate(Line line) {
+    if (line.resource == null || engine == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    ValidationResult result = engine.validate(line.resource);
+    long reportStart = System.nanoTime();
+    metrics.recordPhase(ValidationMetrics.Phase.PROFILE, reportStart - start);
+    for (SingleValidationMessage message : result.getMessages()) {
+      line.findings.add(ReportItems.fromMessage(message, CONTENT_INPUT, line.number));
+    }
+    metrics.recordPhase(ValidationMetrics.Phase.REPORT, System.nanoTime() - reportStart);
+    line.resource = null;
+  }
+
+  private static String lineLocation(Line line) {
+    return ReportItems.inputLocation(CONTENT_INPUT, line.number, 0);
+  }
+
+  /**
+   * One NDJSON line travelling through the pipeline.
+   */
+  private static final class Line {
+    private final int number;
+    private final int index;
+    private final long length;
+    private final List<TestAssertionReportType> findings = new ArrayList<>(0);
+    private String text;
+    private IBaseResource resource;
+    /** Fingerprint of a line validated within a session, to record its findings by. */
+    private HashCode fingerprint;
+
+    /**
+     * @param number line number in the file, starting at 1
+     * @param index position among the non-blank lines, used to report in order
+     * @param text the line, or null when it is longer than the maximum size
+     */
+    private Line(int number, int index, String text, long length) {
+      this.number = number;
+      this.index = index;
+      this.text = text;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Reads lines ended by LF, CR or CRLF, like {@link java.io.BufferedReader#readLine()},
+   * but only counts the characters of a line longer than the maximum size instead of
+   * buffering them.
+   */
+  static final class LineReader {
+    private final Reader reader;
+    private final long maxLength;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private boolean skipLineFeed;
+    private final StringBuilder text = new StringBuilder();
+    private long length;
+    private boolean blank;
+    private int number;
+
+    /**
+     * @param maxLength maximum length of a line to keep; zero or less disables the check
+     */
+    LineReader(Reader reader, long maxLength) {
+      this.reader = reader;
+      this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads the next line; returns false at the end of the input.
+     */
+    boolean next() throws IOException {
+      text.setLength(0);
+      length = 0;
+      blank = true;
+      boolean any = false;
+      while (true) {
+        if (position == limit) {
+          limit = reader.read(buffer, 0, buffer.length);
+          position = 0;
+          if (limit <= 0) {
+            limit = 0;
+            if (any) {
+              number++;
+            }
+            return any;
+          }
+        }
+        char c = buffer[position++];
+        if (skipLineFeed) {
+          skipLineFeed = false;
+          if (c == '\n') {
+            continue;
+          }
+        }
+        any = true;
+        if (c == '\n' || c == '\r') {
+          skipLineFeed = c == '\r';
+          number++;
+          return true;
+        }
+        length++;
+        if (blank && !Character.isWhitespace(c)) {
+          blank = false;
+        }
+        if (maxLength <= 0 || length <= maxLength) {
+          text.append(c);
+        }
+      }
+    }
+
+    /** Number of the line read last, starting at 1. */
+    int getNumber() {
+      return number;
+    }
+
+    boolean isBlank() {
+      return blank;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    /** The line read last, or null when it is longer than the maximum size. */
+    String getText() {
+      return maxLength > 0 && length > maxLength ? null : text.toString();
+    }
+  }
+}
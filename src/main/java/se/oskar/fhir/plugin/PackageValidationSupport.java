@@ -0,0 +1,186 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+/**
+ * Validation support serving conformance resources out of indexed IG packages.
+ * Resources are parsed on first access and kept for the lifetime of the support
+ * object; packages earlier in the list win when canonical URLs collide.
+ */
+final class PackageValidationSupport implements IValidationSupport {
+
+  private static final String CORE_DEFINITION_PREFIX = "http://hl7.org/fhir/StructureDefinition/";
+  /** Base types that have no model class of their own. */
+  private static final Set<String> ABSTRACT_BASE_TYPES = Set.of("Base", "Element", "BackboneElement", "DataType",
+      "BackboneType", "PrimitiveType", "Resource", "DomainResource", "CanonicalResource", "MetadataResource");
+
+  private final FhirContext fhirContext;
+  private final List<IgPackage> packages;
+  private final ConcurrentMap<IgPackage.Entry, Object> resourcesByEntry = new ConcurrentHashMap<>();
+
+  PackageValidationSupport(FhirContext fhirContext, List<IgPackage> packages) {
+    this.fhirContext = fhirContext;
+    this.packages = Collections.unmodifiableList(new ArrayList<>(packages));
+  }
+
+  List<IgPackage> getPackages() {
+    return packages;
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  @Override
+  public <T extends IBaseResource> T fetchResource(Class<T> theClass, String theUri) {
+    // A model class is named after its resource type; interfaces and abstract bases match any type
+    boolean anyType = theClass.isInterface() || Modifier.isAbstract(theClass.getModifiers());
+    IBaseResource resource = fetchOfType(anyType ? null : theClass.getSimpleName(), theUri);
+    if (resource == null || !theClass.isInstance(resource)) {
+      return null;
+    }
+    return theClass.cast(resource);
+  }
+
+  @Override
+  public IBaseResource fetchStructureDefinition(String theUrl) {
+    return fetchOfType("StructureDefinition", theUrl);
+  }
+
+  @Override
+  public IBaseResource fetchCodeSystem(String theSystem) {
+    return fetchOfType("CodeSystem", theSystem);
+  }
+
+  @Override
+  public IBaseResource fetchValueSet(String theValueSetUrl) {
+    return fetchOfType("ValueSet", theValueSetUrl);
+  }
+
+  @Override
+  public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
+    return findEntry("CodeSystem", theSystem) != null;
+  }
+
+  @Override
+  public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+    return findEntry("ValueSet", theValueSetUrl) != null;
+  }
+
+  @Override
+  public List<IBaseResource> fetchAllConformanceResources() {
+    return fetchAll(null, entry -> true);
+  }
+
+  @Override
+  public <T extends IBaseResource> List<T> fetchAllStructureDefinitions() {
+    return fetchAll("StructureDefinition", entry -> true);
+  }
+
+  /**
+   * All StructureDefinitions except the base definitions of the core resources and data types.
+   */
+  @Override
+  public <T extends IBaseResource> List<T> fetchAllNonBaseStructureDefinitions() {
+    return fetchAll("StructureDefinition", entry -> !isBaseDefinition(entry.getUrl()));
+  }
+
+  @Override
+  public String toString() {
+    return "Offline IG packages " + packages.stream().map(IgPackage::getId).toList();
+  }
+
+  private IBaseResource fetchOfType(String resourceType, String url) {
+    Located located = url == null ? null : findEntry(resourceType, url);
+    return located == null ? null : fetch(located.igPackage, located.entry);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends IBaseResource> List<T> fetchAll(String resourceType, Predicate<IgPackage.Entry> filter) {
+    List<T> resources = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    for (IgPackage igPackage : packages) {
+      for (IgPackage.Entry entry : igPackage.getEntries()) {
+        if ((resourceType == null || resourceType.equals(entry.getResourceType())) && filter.test(entry)
+            && seen.add(entry.getUrl() + "|" + entry.getVersion())) {
+          IBaseResource resource = fetch(igPackage, entry);
+          if (resource != null) {
+            resources.add((T) resource);
+          }
+        }
+      }
+    }
+    return resources;
+  }
+
+  /**
+   * The resource of an index entry, parsed on first access. Entries, not URLs, are the
+   * key: packages may hold different versions of the same canonical URL.
+   */
+  private IBaseResource fetch(IgPackage igPackage, IgPackage.Entry entry) {
+    Object resource = resourcesByEntry.get(entry);
+    if (resource == null) {
+      // Parsed outside the map, which would otherwise block other entries of its bin; should
+      // two threads parse the same entry, the first resource stored is the one kept
+      IBaseResource parsed = fhirContext.newJsonParser().parseResource(new ByteArrayInputStream(igPackage.read(entry)));
+      Object stored = resourcesByEntry.putIfAbsent(entry, parsed);
+      resource = stored != null ? stored : parsed;
+    }
+    return (IBaseResource) resource;
+  }
+
+  private boolean isBaseDefinition(String url) {
+    if (!url.startsWith(CORE_DEFINITION_PREFIX)) {
+      return false;
+    }
+    String type = url.substring(CORE_DEFINITION_PREFIX.length());
+    return ABSTRACT_BASE_TYPES.contains(type) || fhirContext.getResourceTypes().contains(type)
+        || fhirContext.getElementDefinition(type) != null;
+  }
+
+  /**
+   * Finds the index entry for a (possibly versioned) canonical URL; a null resource type
+   * matches any type. A versioned URL is looked for in every package before falling back
+   * to the URL without version.
+   */
+  private Located findEntry(String resourceType, String url) {
+    int bar = url.indexOf('|');
+    Located located = findExact(resourceType, url);
+    return located != null || bar < 0 ? located : findExact(resourceType, url.substring(0, bar));
+  }
+
+  private Located findExact(String resourceType, String url) {
+    for (IgPackage igPackage : packages) {
+      IgPackage.Entry entry = resourceType == null ? igPackage.findEntry(url) : igPackage.findEntry(resourceType, url);
+      if (entry != null) {
+        return new Located(igPackage, entry);
+      }
+    }
+    return null;
+  }
+
+  private static final class Located {
+    private final IgPackage igPackage;
+    private final IgPackage.Entry entry;
+
+    private Located(IgPackage igPackage, IgPackage.Entry entry) {
+      this.igPackage = igPackage;
+      this.entry = entry;
+    }
+  }
+}
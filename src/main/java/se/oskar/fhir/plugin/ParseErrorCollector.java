@@ -0,0 +1,244 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.parser.IParserErrorHandler;
+import ca.uhn.fhir.parser.json.BaseJsonLikeValue;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.gitb.types.v1.TestAssertionReportType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Parser error handler that records every structural problem instead of failing on the
+ * first one, so that a single parse reports all of them.
+ * <p>
+ * HAPI only tells the handler the element name (and for invalid values, the value), not
+ * where it is. After parsing, {@link #toReportItems(Reader)} reads the content again with
+ * a streaming tokenizer, keeping the positions of the fields named in the problems only,
+ * and assigns each problem the first matching field after the previous one: HAPI reports
+ * problems in document order. Problems without a field of their own (a missing required
+ * element) keep the location of the element reported before them.
+ * <p>
+ * Invalid values, wrong JSON types and other content the parsed resource cannot represent
+ * are errors; problems the parser recovers from without losing valid data (unknown
+ * elements, contained resources without an id, unresolved local references) are warnings.
+ */
+final class ParseErrorCollector implements IParserErrorHandler {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final String input;
+  private final MessageCatalog.Messages messages;
+  private final List<Problem> problems = new ArrayList<>();
+
+  /**
+   * @param input ITB input name used in the locations
+   */
+  ParseErrorCollector(String input, String locale) {
+    this.input = input;
+    this.messages = MessageCatalog.forLocale(locale);
+  }
+
+  boolean hasProblems() {
+    return !problems.isEmpty();
+  }
+
+  /**
+   * Whether any of the problems is an error rather than a warning.
+   */
+  boolean hasErrors() {
+    return problems.stream().anyMatch(problem -> ReportItems.ERROR.equals(problem.type));
+  }
+
+  @Override
+  public void unknownElement(IParseLocation location, String elementName) {
+    problems.add(new Problem(ReportItems.WARNING, elementName, null,
+        messages.format("error.parse.unknown.element", elementName)));
+  }
+
+  @Override
+  public void unknownAttribute(IParseLocation location, String attributeName) {
+    problems.add(new Problem(ReportItems.WARNING, attributeName, null,
+        messages.format("error.parse.unknown.element", attributeName)));
+  }
+
+  @Override
+  public void invalidValue(IParseLocation location, String value, String error) {
+    String elementName = location == null ? null : location.getParentElementName();
+    problems.add(new Problem(ReportItems.ERROR, elementName, value,
+        messages.format("error.parse.invalid.value", elementName, value, error)));
+  }
+
+  @Override
+  public void incorrectJsonType(IParseLocation location, String elementName, BaseJsonLikeValue.ValueType expectedValueType,
+      BaseJsonLikeValue.ScalarType expectedScalarType, BaseJsonLikeValue.ValueType foundValueType,
+      BaseJsonLikeValue.ScalarType foundScalarType) {
+    problems.add(new Problem(ReportItems.ERROR, elementName, null, messages.format("error.parse.incorrect.json.type", elementName,
+        describe(expectedValueType, expectedScalarType), describe(foundValueType, foundScalarType))));
+  }
+
+  @Override
+  public void unexpectedRepeatingElement(IParseLocation location, String elementName) {
+    problems.add(new Problem(ReportItems.ERROR, elementName, null,
+        messages.format("error.parse.unexpected.repeating.element", elementName)));
+  }
+
+  @Override
+  public void missingRequiredElement(IParseLocation location, String elementName) {
+    problems.add(new Problem(ReportItems.ERROR, null, null,
+        messages.format("error.parse.missing.required.element", elementName)));
+  }
+
+  @Override
+  public void containedResourceWithNoId(IParseLocation location) {
+    problems.add(new Problem(ReportItems.WARNING, null, null, messages.format("error.parse.contained.resource.no.id")));
+  }
+
+  @Override
+  public void unknownReference(IParseLocation location, String reference) {
+    problems.add(new Problem(ReportItems.WARNING, null, null, messages.format("error.parse.unknown.reference", reference)));
+  }
+
+  @Override
+  public void extensionContainsValueAndNestedExtensions(IParseLocation location) {
+    problems.add(new Problem(ReportItems.ERROR, null, null, messages.format("error.parse.extension.value.and.extensions")));
+  }
+
+  /**
+   * Locates the recorded problems in {@code content}, which must be the content that was
+   * parsed, and returns them as ERROR and WARNING items in the order they were found.
+   */
+  List<TestAssertionReportType> toReportItems(Reader content) throws IOException {
+    List<Field> fields = readFields(content);
+    List<TestAssertionReportType> items = new ArrayList<>(problems.size());
+    int next = 0;
+    String location = ReportItems.inputLocation(input, 0, 0);
+    for (Problem problem : problems) {
+      if (problem.elementName != null) {
+        int match = find(fields, problem, next);
+        if (match < 0) {
+          match = find(fields, problem, 0);
+        }
+        if (match >= 0) {
+          Field field = fields.get(match);
+          location = ReportItems.inputLocation(input, field.line, field.column);
+          next = match + 1;
+        }
+      }
+      items.add(ReportItems.create(problem.type, problem.message, location));
+    }
+    return items;
+  }
+
+  /**
+   * Location of a JSON syntax error: the tokenizer position wrapped in a parse exception,
+   * or {@code input:0:0} when there is none.
+   */
+  static String syntaxErrorLocation(String input, Throwable parseException) {
+    for (Throwable cause = parseException; cause != null; cause = cause.getCause()) {
+      if (cause instanceof JsonProcessingException) {
+        JsonLocation location = ((JsonProcessingException) cause).getLocation();
+        if (location != null) {
+          return ReportItems.inputLocation(input, location.getLineNr(), location.getColumnNr());
+        }
+      }
+    }
+    return ReportItems.inputLocation(input, 0, 0);
+  }
+
+  private List<Field> readFields(Reader content) throws IOException {
+    Set<String> names = new HashSet<>();
+    for (Problem problem : problems) {
+      if (problem.elementName != null) {
+        names.add(problem.elementName);
+      }
+    }
+    List<Field> fields = new ArrayList<>();
+    if (names.isEmpty()) {
+      return fields;
+    }
+    try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        if (token != JsonToken.FIELD_NAME || !names.contains(parser.getCurrentName())) {
+          continue;
+        }
+        JsonLocation location = parser.getTokenLocation();
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        fields.add(new Field(name, value != null && value.isScalarValue() ? parser.getText() : null,
+            location.getLineNr(), location.getColumnNr()));
+        // Arrays of primitives report each invalid item; give every item its own entry
+        if (value == JsonToken.START_ARRAY) {
+          while ((value = parser.nextToken()) != null && value != JsonToken.END_ARRAY) {
+            if (value.isScalarValue()) {
+              JsonLocation item = parser.getTokenLocation();
+              fields.add(new Field(name, parser.getText(), item.getLineNr(), item.getColumnNr()));
+            } else {
+              break;
+            }
+          }
+        }
+      }
+    } catch (JsonProcessingException e) {
+      // The parser accepted the content, so this cannot happen; keep what was found
+    }
+    return fields;
+  }
+
+  private static int find(List<Field> fields, Problem problem, int from) {
+    for (int i = from; i < fields.size(); i++) {
+      Field field = fields.get(i);
+      if (field.name.equals(problem.elementName) && (problem.value == null || Objects.equals(field.value, problem.value))) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String describe(BaseJsonLikeValue.ValueType valueType, BaseJsonLikeValue.ScalarType scalarType) {
+    return scalarType == null ? String.valueOf(valueType) : valueType + " (" + scalarType + ")";
+  }
+
+  private static final class Problem {
+    private final String type;
+    private final String elementName;
+    private final String value;
+    private final String message;
+
+    /**
+     * @param type report item type, ERROR or WARNING
+     * @param elementName name of the field to locate, or null to reuse the previous location
+     * @param value scalar value the field must have, or null for any
+     */
+    private Problem(String type, String elementName, String value, String message) {
+      this.type = type;
+      this.elementName = elementName;
+      this.value = value;
+      this.message = message;
+    }
+  }
+
+  private static final class Field {
+    private final String name;
+    private final String value;
+    private final int line;
+    private final int column;
+
+    private Field(String name, String value, int line, int column) {
+      this.name = name;
+      this.value = value;
+      this.line = line;
+      this.column = column;
+    }
+  }
+}
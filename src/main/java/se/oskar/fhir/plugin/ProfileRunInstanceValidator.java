@@ -0,0 +1,144 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.validation.IValidationContext;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.common.hapi.validation.validator.VersionSpecificWorkerContextWrapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.ParserBase;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.XVerExtensionManager;
+import org.hl7.fhir.r5.utils.validation.constants.IdStatus;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instance validator that checks a resource against several profiles in one pass and marks
+ * which findings came from which profile.
+ * <p>
+ * The resource is parsed into the validator's element model once, and each profile then
+ * walks that model. HAPI's own wrapper collects the findings of all profiles in one list,
+ * reporting a finding only for the first profile that finds it, and does not say which
+ * profile that was. This one collects each walk on its own and opens it with an
+ * INFORMATION marker with id {@link #PROFILE_RUN_MESSAGE_ID} whose text is the profile's
+ * URL; the findings up to the next marker belong to that profile, and those before the
+ * first marker to parsing. The findings are filtered as HAPI's wrapper filters them. With
+ * fewer than two requested profiles, or content that is not JSON, it validates exactly as
+ * HAPI's wrapper.
+ */
+final class ProfileRunInstanceValidator extends FhirInstanceValidator {
+
+  /** Message id of the marker starting the findings of one profile. */
+  static final String PROFILE_RUN_MESSAGE_ID = "json-fhir-validator-profile-run";
+
+  ProfileRunInstanceValidator(IValidationSupport validationSupport) {
+    super(validationSupport);
+  }
+
+  @Override
+  protected List<ValidationMessage> validate(IValidationContext<?> context) {
+    if (context.getResourceAsStringEncoding() != EncodingEnum.JSON || context.getOptions().getProfiles().size() < 2) {
+      return super.validate(context);
+    }
+    VersionSpecificWorkerContextWrapper workerContext = provideWorkerContext();
+    InstanceValidator validator = new InstanceValidator(workerContext, new NullEvaluationContext(),
+        new XVerExtensionManager(workerContext));
+    // The settings HAPI's wrapper applies
+    validator.setAssumeValidRestReferences(isAssumeValidRestReferences());
+    validator.setBestPracticeWarningLevel(getBestPracticeWarningLevel());
+    validator.setAnyExtensionsAllowed(isAnyExtensionsAllowed());
+    validator.setResourceIdRule(IdStatus.OPTIONAL);
+    validator.setNoTerminologyChecks(isNoTerminologyChecks());
+    validator.setErrorForUnknownProfiles(isErrorForUnknownProfiles());
+    validator.getExtensionDomains().addAll(getExtensionDomains());
+    validator.setFetcher(getValidatorResourceFetcher());
+    validator.setPolicyAdvisor(getValidatorPolicyAdvisor());
+    validator.setNoExtensibleWarnings(isNoExtensibleWarnings());
+    validator.setNoBindingMsgSuppressed(isNoBindingMsgSuppressed());
+    validator.setAllowXsiLocation(true);
+
+    List<StructureDefinition> profiles = new ArrayList<>();
+    for (String url : context.getOptions().getProfiles()) {
+      addProfile(workerContext, profiles, url);
+    }
+    if (context.getResource() instanceof IBaseResource) {
+      for (IPrimitiveType<String> declared : ((IBaseResource) context.getResource()).getMeta().getProfile()) {
+        addProfile(workerContext, profiles, declared.getValue());
+      }
+    }
+
+    List<ValidationMessage> messages = new ArrayList<>();
+    ParserBase parser = Manager.makeParser(workerContext, Manager.FhirFormat.JSON);
+    parser.setupValidation(ParserBase.ValidationPolicy.EVERYTHING, messages);
+    List<ParserBase.NamedElement> parsed;
+    try {
+      parsed = parser.parse(new ByteArrayInputStream(context.getResourceAsString().getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (StructureDefinition profile : profiles) {
+      messages.add(marker(profile.getUrl()));
+      for (ParserBase.NamedElement element : parsed) {
+        // A list of its own, as the validator drops findings already in the list it is given
+        List<ValidationMessage> walk = new ArrayList<>();
+        validator.validate(null, walk, element.getName(), element.getElement(), List.of(profile));
+        messages.addAll(walk);
+      }
+    }
+
+    List<ValidationMessage> kept = new ArrayList<>(messages.size());
+    for (ValidationMessage message : messages) {
+      if (isKept(message)) {
+        if (isErrorForUnknownProfiles() && isUnknownProfile(message)
+            && message.getLevel() == ValidationMessage.IssueSeverity.WARNING) {
+          message.setLevel(ValidationMessage.IssueSeverity.ERROR);
+        }
+        kept.add(message);
+      }
+    }
+    return kept;
+  }
+
+  private static void addProfile(VersionSpecificWorkerContextWrapper workerContext, List<StructureDefinition> profiles,
+      String url) {
+    StructureDefinition profile = workerContext.fetchResource(StructureDefinition.class, url);
+    if (profile != null && !profiles.contains(profile)) {
+      profiles.add(profile);
+    }
+  }
+
+  private static ValidationMessage marker(String profileUrl) {
+    ValidationMessage marker = new ValidationMessage();
+    marker.setLevel(ValidationMessage.IssueSeverity.INFORMATION);
+    marker.setMessageId(PROFILE_RUN_MESSAGE_ID);
+    marker.setMessage(profileUrl);
+    return marker;
+  }
+
+  /**
+   * HAPI's wrapper drops binding findings without a source, and missing mimetypes expansions.
+   */
+  private static boolean isKept(ValidationMessage message) {
+    String id = message.getMessageId();
+    if (id == null) {
+      return true;
+    }
+    return !id.equals("Terminology_TX_Binding_NoSource") && !id.equals("Terminology_TX_Binding_NoSource2")
+        && !(id.equals("Terminology_TX_ValueSet_NotFound") && message.getMessage().contains("http://hl7.org/fhir/ValueSet/mimetypes"));
+  }
+
+  private static boolean isUnknownProfile(ValidationMessage message) {
+    return "Validation_VAL_Profile_Unknown".equals(message.getMessageId())
+        || "VALIDATION_VAL_PROFILE_UNKNOWN_NOT_POLICY".equals(message.getMessageId());
+  }
+}
@@ -0,0 +1,100 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Validates a resource against several profiles of the same IG at once.
+ * <p>
+ * The parsed resource is validated once against all the profiles: the instance validator
+ * loads it into its element model once and walks that model for each profile, using the
+ * support chain, generated snapshots and terminology the IG's engines share. The walk of
+ * each profile is opened by a marker (see {@link ProfileRunInstanceValidator}), so every
+ * finding is tagged with the profiles that reported it; a finding reported by several
+ * profiles (typically one of the base specification) is kept once and tagged with all of
+ * them.
+ */
+final class ProfileSetValidator implements ResourceValidator {
+
+  private final FhirContext fhirContext;
+  private final List<ValidationEngine> engines;
+  private final MessageCatalog.Messages messages;
+
+  ProfileSetValidator(FhirContext fhirContext, List<ValidationEngine> engines, String locale) {
+    this.fhirContext = fhirContext;
+    this.engines = engines;
+    this.messages = MessageCatalog.forLocale(locale);
+  }
+
+  @Override
+  public ValidationResult validate(IBaseResource resource) {
+    List<String> profiles = engines.stream().map(ValidationEngine::getProfile).collect(Collectors.toList());
+    ValidationResult result = engines.get(0).validateProfiles(resource, profiles);
+    return new ValidationResult(fhirContext, merge(profiles, result.getMessages(), messages));
+  }
+
+  /**
+   * Merges the findings of a marked validation, in the order first reported: each finding
+   * is kept once, tagged with every profile that reported it, in the order of
+   * {@code profiles}. Findings before the first marker belong to no profile and are kept as
+   * they are.
+   */
+  static List<SingleValidationMessage> merge(List<String> profiles, List<SingleValidationMessage> marked,
+      MessageCatalog.Messages messages) {
+    Map<String, SingleValidationMessage> findings = new LinkedHashMap<>();
+    Map<String, Set<String>> profilesByFinding = new LinkedHashMap<>();
+    String profile = null;
+    for (SingleValidationMessage message : marked) {
+      if (ProfileRunInstanceValidator.PROFILE_RUN_MESSAGE_ID.equals(message.getMessageId())) {
+        profile = message.getMessage();
+        continue;
+      }
+      String key = key(message);
+      findings.putIfAbsent(key, message);
+      Set<String> reportedBy = profilesByFinding.computeIfAbsent(key, k -> new LinkedHashSet<>());
+      if (profile != null) {
+        reportedBy.add(profile);
+      }
+    }
+
+    List<SingleValidationMessage> merged = new ArrayList<>(findings.size());
+    findings.forEach((key, message) -> {
+      Set<String> reportedBy = profilesByFinding.get(key);
+      List<String> tags = profiles.stream().filter(reportedBy::contains).collect(Collectors.toList());
+      reportedBy.stream().filter(url -> !tags.contains(url)).forEach(tags::add);
+      if (tags.isEmpty()) {
+        merged.add(message);
+      } else if (tags.size() == 1) {
+        merged.add(tag(message, messages.format("finding.profile", message.getMessage(), tags.get(0))));
+      } else {
+        merged.add(tag(message, messages.format("finding.profiles", message.getMessage(), String.join(", ", tags))));
+      }
+    });
+    return merged;
+  }
+
+  private static String key(SingleValidationMessage message) {
+    return message.getSeverity() + "|" + message.getLocationString() + "|" + message.getMessage();
+  }
+
+  private static SingleValidationMessage tag(SingleValidationMessage message, String text) {
+    SingleValidationMessage tagged = new SingleValidationMessage();
+    tagged.setSeverity(message.getSeverity());
+    tagged.setLocationString(message.getLocationString());
+    tagged.setLocationLine(message.getLocationLine());
+    tagged.setLocationCol(message.getLocationCol());
+    tagged.setMessageId(message.getMessageId());
+    tagged.setMessage(text);
+    return tagged;
+  }
+}
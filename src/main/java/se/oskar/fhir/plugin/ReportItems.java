@@ -0,0 +1,105 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import com.gitb.types.v1.ValidationCounters;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Helpers for building TAR report items and keeping the overall result and the counters
+ * in line with the items added.
+ * <p>
+ * Descriptions are interned: a large Bundle typically repeats the same few messages for
+ * thousands of entries, and a report then holds one copy of each instead of one per item.
+ */
+final class ReportItems {
+
+  static final String ERROR = "ERROR";
+  static final String WARNING = "WARNING";
+  static final String INFO = "INFO";
+
+  private static final Interner<String> DESCRIPTIONS = Interners.newWeakInterner();
+
+  private ReportItems() {
+  }
+
+  static TestAssertionReportType create(String type, String description, String location) {
+    TestAssertionReportType item = new TestAssertionReportType();
+    item.setDescription(description == null ? null : DESCRIPTIONS.intern(description));
+    item.setLocation(location);
+    item.setType(type);
+    return item;
+  }
+
+  /**
+   * Adds an item to the report, counts it and downgrades the overall result if needed.
+   */
+  static void add(TAR report, TestAssertionReportType item) {
+    report.getReports().add(item);
+    ValidationCounters counters = report.getCounters();
+    if (ERROR.equals(item.getType())) {
+      counters.setNrOfErrors(counters.getNrOfErrors() + 1);
+      report.setResult(TestResultType.FAILURE);
+    } else if (WARNING.equals(item.getType())) {
+      counters.setNrOfWarnings(counters.getNrOfWarnings() + 1);
+      if (report.getResult() == TestResultType.SUCCESS) {
+        report.setResult(TestResultType.WARNING);
+      }
+    } else {
+      counters.setNrOfAssertions(counters.getNrOfAssertions() + 1);
+    }
+  }
+
+  /**
+   * Adds the messages of a HAPI validation result to the report until the budget is used up.
+   */
+  static void addAll(FindingBudget budget, ValidationResult result) {
+    for (SingleValidationMessage message : result.getMessages()) {
+      if (budget.shouldSkip()) {
+        return;
+      }
+      budget.accept(fromMessage(message, message.getLocationString()));
+    }
+  }
+
+  static TestAssertionReportType fromMessage(SingleValidationMessage message, String location) {
+    return create(toReportType(message.getSeverity()), message.getMessage(), location);
+  }
+
+  /**
+   * Builds an item from a HAPI message about a resource on one line of the input, located at
+   * the line and then the message's element path ({@code contentToValidate:3:0/Patient.name[0]}).
+   */
+  static TestAssertionReportType fromMessage(SingleValidationMessage message, String input, long line) {
+    String location = inputLocation(input, line, 0);
+    String path = message.getLocationString();
+    return fromMessage(message, path == null || path.isEmpty() ? location : location + '/' + path);
+  }
+
+  static String toReportType(ResultSeverityEnum severity) {
+    if (severity == null) {
+      return INFO;
+    }
+    switch (severity) {
+      case FATAL:
+      case ERROR:
+        return ERROR;
+      case WARNING:
+        return WARNING;
+      default:
+        return INFO;
+    }
+  }
+
+  /**
+   * Builds an ITB {@code input:line:column} location.
+   */
+  static String inputLocation(String input, long line, long column) {
+    return new StringBuilder(input.length() + 8).append(input).append(':').append(line).append(':').append(column).toString();
+  }
+}
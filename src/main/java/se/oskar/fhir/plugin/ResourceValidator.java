@@ -0,0 +1,13 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Validates parsed resources against a fixed set of profiles; implementations are safe to
+ * share between threads.
+ */
+interface ResourceValidator {
+
+  ValidationResult validate(IBaseResource resource);
+}
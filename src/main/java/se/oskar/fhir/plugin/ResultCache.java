@@ -0,0 +1,123 @@
+package se.oskar.fhir.plugin;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Bounded cache of validation reports, keyed by a digest of the content together with
+ * every input that affects the report and the versions of the loaded IG packages.
+ * Reports are copied on the way in and out, so callers may modify what they get.
+ * <p>
+ * The content is digested with SHA-256: the cache is shared between clients, and a digest
+ * whose collisions can be constructed would let one client's content answer for another's.
+ */
+final class ResultCache {
+
+  private static final HashFunction DIGEST = Hashing.sha256();
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Cache<Key, TAR> reports;
+
+  ResultCache(long maximumSize, Duration timeToLive) {
+    this.reports = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(timeToLive)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Builds the key of a request by reading its content once.
+   *
+   * @param inputs values of the inputs that affect the report, in a fixed order
+   * @param packageVersions {@link IgPackageStore#getVersions()} of the packages used
+   */
+  static Key key(Reader content, List<String> inputs, String packageVersions) throws IOException {
+    Hasher hasher = DIGEST.newHasher();
+    char[] buffer = new char[BUFFER_SIZE];
+    int read;
+    while ((read = content.read(buffer)) != -1) {
+      hasher.putUnencodedChars(CharBuffer.wrap(buffer, 0, read));
+    }
+    return new Key(hasher.hash(), inputs, packageVersions);
+  }
+
+  /**
+   * Returns a copy of the cached report, or null on a miss.
+   */
+  TAR get(Key key) {
+    TAR report = reports.getIfPresent(key);
+    return report == null ? null : copy(report);
+  }
+
+  void put(Key key, TAR report) {
+    reports.put(key, copy(report));
+  }
+
+  void invalidateAll() {
+    reports.invalidateAll();
+  }
+
+  long hitCount() {
+    return reports.stats().hitCount();
+  }
+
+  long missCount() {
+    return reports.stats().missCount();
+  }
+
+  private static TAR copy(TAR report) {
+    TAR copy = new TAR();
+    copy.setResult(TestResultType.SUCCESS);
+    for (TestAssertionReportType item : report.getReports()) {
+      ReportItems.add(copy, ReportItems.create(item.getType(), item.getDescription(), item.getLocation()));
+    }
+    copy.setResult(report.getResult());
+    return copy;
+  }
+
+  static final class Key {
+    private final HashCode digest;
+    private final List<String> inputs;
+    private final String packageVersions;
+    private final int hash;
+
+    private Key(HashCode digest, List<String> inputs, String packageVersions) {
+      this.digest = digest;
+      this.inputs = inputs;
+      this.packageVersions = packageVersions;
+      this.hash = Objects.hash(digest, inputs, packageVersions);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return digest.equals(other.digest) && inputs.equals(other.inputs) && packageVersions.equals(other.packageVersions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
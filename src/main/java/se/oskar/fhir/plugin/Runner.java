@@ -13,6 +13,7 @@ public class Runner {
       System.out.println("=== FHIR JSON Validator Enhanced Demo ===\n");
       
       FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin();
+      System.out.println("Plugin ready in " + plugin.getStartupTimeMillis() + " ms\n");
       
       // Demo 1: File path validation (existing functionality)
       System.out.println("1. Testing file path validation:");
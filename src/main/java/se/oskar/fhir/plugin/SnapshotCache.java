@@ -0,0 +1,131 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.VersionUtil;
+import com.google.common.hash.Hashing;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot generator that keeps the snapshots it generates on disk, so that restarted or
+ * newly started nodes load them instead of generating them again.
+ * <p>
+ * Snapshots are stored as JSON in {@code <indexDir>/snapshots/<packages hash>-<HAPI version>},
+ * one file per profile URL and version: the same package files and HAPI release always
+ * produce the same snapshots, and any change to either starts a new directory. Generation
+ * itself is delegated; a snapshot that cannot be read back is generated again.
+ */
+final class SnapshotCache implements IValidationSupport {
+
+  private final FhirContext fhirContext;
+  private final IValidationSupport generator;
+  private final Path directory;
+  private final AtomicLong loaded = new AtomicLong();
+  private final AtomicLong generated = new AtomicLong();
+
+  SnapshotCache(FhirContext fhirContext, IValidationSupport generator, Path directory) {
+    this.fhirContext = fhirContext;
+    this.generator = generator;
+    this.directory = directory;
+  }
+
+  /**
+   * Directory holding the snapshots derived from exactly these packages.
+   */
+  static Path directory(Path indexDirectory, List<IgPackage> packages) {
+    return indexDirectory.resolve("snapshots").resolve(IgPackage.hash(packages) + "-" + VersionUtil.getVersion());
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  @Override
+  public IBaseResource generateSnapshot(ValidationSupportContext theValidationSupportContext, IBaseResource theInput,
+      String theUrl, String theWebUrl, String theProfileName) {
+    Path file = file(theInput);
+    if (file != null && Files.isRegularFile(file)) {
+      try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        IBaseResource snapshot = fhirContext.newJsonParser().parseResource(reader);
+        loaded.incrementAndGet();
+        return snapshot;
+      } catch (IOException | RuntimeException e) {
+        // Truncated or unreadable; generate it again below
+      }
+    }
+
+    IBaseResource snapshot = generator.generateSnapshot(theValidationSupportContext, theInput, theUrl, theWebUrl, theProfileName);
+    if (snapshot != null) {
+      generated.incrementAndGet();
+      if (file != null) {
+        write(file, snapshot);
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Number of snapshots read from disk.
+   */
+  long getLoadedCount() {
+    return loaded.get();
+  }
+
+  /**
+   * Number of snapshots generated, and written to disk, because none was stored.
+   */
+  long getGeneratedCount() {
+    return generated.get();
+  }
+
+  @Override
+  public String toString() {
+    return "Snapshot cache " + directory;
+  }
+
+  /**
+   * File of the profile's snapshot, named after its canonical URL and version; null for
+   * a profile without a URL.
+   */
+  private Path file(IBaseResource profile) {
+    FhirTerser terser = fhirContext.newTerser();
+    String url = terser.getSinglePrimitiveValueOrNull(profile, "url");
+    if (url == null) {
+      return null;
+    }
+    String version = terser.getSinglePrimitiveValueOrNull(profile, "version");
+    String key = version == null ? url : url + "|" + version;
+    return directory.resolve(Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8) + ".json");
+  }
+
+  private void write(Path file, IBaseResource snapshot) {
+    try {
+      Files.createDirectories(directory);
+      // Written aside and moved into place, so that concurrent readers never see half a file
+      Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try {
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+          fhirContext.newJsonParser().encodeResourceToWriter(snapshot, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Not persisted; the snapshot still serves this process
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.gitb.types.v1.TestAssertionReportType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cheap structural check run before HAPI builds an object model: the content must be
+ * well-formed JSON whose root is an object with a {@code resourceType} naming a resource of
+ * the FHIR version. It is a single pass of the streaming tokenizer that builds nothing and
+ * skips field values without decoding them, so content that is not FHIR at all, or is not
+ * well-formed, is rejected without a full parse or an exception being thrown through HAPI.
+ * An unknown resource type is rejected as soon as it is read.
+ */
+final class StructureScanner {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final Map<FhirVersionEnum, StructureScanner> SCANNERS = new ConcurrentHashMap<>();
+
+  private final Set<String> resourceTypes;
+
+  private StructureScanner(Set<String> resourceTypes) {
+    this.resourceTypes = resourceTypes;
+  }
+
+  /**
+   * Returns the shared scanner for the resource types of the context's FHIR version.
+   */
+  static StructureScanner forContext(FhirContext fhirContext) {
+    FhirVersionEnum version = fhirContext.getVersion().getVersion();
+    StructureScanner scanner = SCANNERS.get(version);
+    return scanner != null ? scanner
+        : SCANNERS.computeIfAbsent(version, v -> new StructureScanner(Set.copyOf(fhirContext.getResourceTypes())));
+  }
+
+  /**
+   * Scans the content and returns the ERROR item describing why it is not a FHIR resource,
+   * or null when it passes.
+   *
+   * @param input ITB input name used in the locations
+   */
+  TestAssertionReportType scan(Reader content, String input, String locale) throws IOException {
+    MessageCatalog.Messages messages = MessageCatalog.forLocale(locale);
+    try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+      JsonToken token = parser.nextToken();
+      if (token != JsonToken.START_OBJECT) {
+        return error(messages.format("error.structure.not.object", describe(token, messages)), input, parser.getTokenLocation());
+      }
+      JsonLocation root = parser.getTokenLocation();
+      boolean hasResourceType = false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        if (!hasResourceType && "resourceType".equals(parser.getCurrentName())) {
+          JsonToken value = parser.nextToken();
+          if (value != JsonToken.VALUE_STRING || !resourceTypes.contains(parser.getText())) {
+            String type = value == JsonToken.VALUE_STRING ? parser.getText() : describe(value, messages);
+            return error(messages.format("error.structure.unknown.resource.type", type), input, parser.getTokenLocation());
+          }
+          hasResourceType = true;
+          continue;
+        }
+        // Other fields are only checked for well-formedness, without decoding their values
+        parser.nextToken();
+        parser.skipChildren();
+      }
+      // The root object ended; the tokenizer fails on anything else
+      if (parser.nextToken() != null) {
+        return error(messages.format("error.structure.trailing.content"), input, parser.getTokenLocation());
+      }
+      if (!hasResourceType) {
+        return error(messages.format("error.structure.no.resource.type"), input, root);
+      }
+      return null;
+    } catch (JsonProcessingException e) {
+      return error(messages.format("error.parsing.failed", e.getOriginalMessage()), input, e.getLocation());
+    }
+  }
+
+  private static TestAssertionReportType error(String message, String input, JsonLocation location) {
+    return ReportItems.create(ReportItems.ERROR, message, location == null
+        ? ReportItems.inputLocation(input, 0, 0)
+        : ReportItems.inputLocation(input, location.getLineNr(), location.getColumnNr()));
+  }
+
+  /**
+   * What a JSON token is, in the words of the request's locale.
+   */
+  private static String describe(JsonToken token, MessageCatalog.Messages messages) {
+    if (token == null) {
+      return messages.format("json.token.none");
+    }
+    switch (token) {
+      case START_ARRAY:
+        return messages.format("json.token.array");
+      case VALUE_STRING:
+        return messages.format("json.token.string");
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return messages.format("json.token.number");
+      case VALUE_TRUE:
+      case VALUE_FALSE:
+        return messages.format("json.token.boolean");
+      case VALUE_NULL:
+        return messages.format("json.token.null");
+      default:
+        return messages.format("json.token.object");
+    }
+  }
+}
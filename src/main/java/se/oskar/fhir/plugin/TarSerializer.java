@@ -0,0 +1,136 @@
+package se.oskar.fhir.plugin;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.ValidationCounters;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link TAR} straight to an output stream, item by item, as GITB XML or as
+ * JSON. Nothing but the report itself is held in memory: there is no DOM, JAXB or
+ * Jackson tree in between, so the cost is independent of how the report is consumed.
+ * The stream is flushed but not closed.
+ */
+final class TarSerializer {
+
+  /** Namespace of GITB test reports. */
+  static final String TR_NAMESPACE = "http://www.gitb.com/tr/v1/";
+
+  static final XMLOutputFactory XML_FACTORY = XMLOutputFactory.newFactory();
+  private static final JsonFactory JSON_FACTORY = new JsonFactory()
+      .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private TarSerializer() {
+  }
+
+  /**
+   * Writes the report as a GITB {@code TAR} document: the result, the counters and one
+   * {@code error}, {@code warning} or {@code info} element per item.
+   */
+  static void writeXml(TAR report, OutputStream out) throws IOException {
+    try {
+      XMLStreamWriter xml = XML_FACTORY.createXMLStreamWriter(out, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      writeXml(report, xml, "", "TAR", TR_NAMESPACE);
+      xml.writeEndDocument();
+      xml.flush();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Writes the report as an element of an enclosing document, such as the {@code report}
+   * of a SOAP {@code ValidationResponse}. The element's prefix must already be bound
+   * unless it is in the report namespace; its content is in the report namespace.
+   */
+  static void writeXml(TAR report, XMLStreamWriter xml, String prefix, String localName, String namespace)
+      throws XMLStreamException {
+    xml.writeStartElement(prefix, localName, namespace);
+    xml.writeDefaultNamespace(TR_NAMESPACE);
+    xml.setDefaultNamespace(TR_NAMESPACE);
+    xml.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+    if (report.getResult() != null) {
+      xml.writeAttribute("result", report.getResult().name());
+    }
+
+    ValidationCounters counters = report.getCounters();
+    xml.writeStartElement(TR_NAMESPACE, "counters");
+    writeXmlElement(xml, "nrOfAssertions", Long.toString(counters.getNrOfAssertions()));
+    writeXmlElement(xml, "nrOfErrors", Long.toString(counters.getNrOfErrors()));
+    writeXmlElement(xml, "nrOfWarnings", Long.toString(counters.getNrOfWarnings()));
+    xml.writeEndElement();
+
+    xml.writeStartElement(TR_NAMESPACE, "reports");
+    for (TestAssertionReportType item : report.getReports()) {
+      xml.writeStartElement(TR_NAMESPACE, xmlItemName(item.getType()));
+      xml.writeAttribute("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "BAR");
+      writeXmlElement(xml, "description", item.getDescription());
+      writeXmlElement(xml, "location", item.getLocation());
+      xml.writeEndElement();
+    }
+    xml.writeEndElement();
+
+    xml.writeEndElement();
+  }
+
+  /**
+   * Writes the report as JSON:
+   * {@code {"result":..., "counters":{...}, "reports":[{"type":..., "description":..., "location":...}]}}.
+   */
+  static void writeJson(TAR report, OutputStream out) throws IOException {
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+      json.writeStartObject();
+      if (report.getResult() != null) {
+        json.writeStringField("result", report.getResult().name());
+      }
+
+      ValidationCounters counters = report.getCounters();
+      json.writeObjectFieldStart("counters");
+      json.writeNumberField("nrOfAssertions", counters.getNrOfAssertions());
+      json.writeNumberField("nrOfErrors", counters.getNrOfErrors());
+      json.writeNumberField("nrOfWarnings", counters.getNrOfWarnings());
+      json.writeEndObject();
+
+      json.writeArrayFieldStart("reports");
+      for (TestAssertionReportType item : report.getReports()) {
+        json.writeStartObject();
+        json.writeStringField("type", item.getType());
+        if (item.getDescription() != null) {
+          json.writeStringField("description", item.getDescription());
+        }
+        if (item.getLocation() != null) {
+          json.writeStringField("location", item.getLocation());
+        }
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    }
+  }
+
+  private static void writeXmlElement(XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+    if (text == null) {
+      return;
+    }
+    xml.writeStartElement(TR_NAMESPACE, name);
+    xml.writeCharacters(text);
+    xml.writeEndElement();
+  }
+
+  private static String xmlItemName(String type) {
+    if (ReportItems.ERROR.equals(type)) {
+      return "error";
+    }
+    return ReportItems.WARNING.equals(type) ? "warning" : "info";
+  }
+}
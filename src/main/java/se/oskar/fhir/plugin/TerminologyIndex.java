@@ -0,0 +1,333 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pre-expanded ValueSets of a set of IG packages.
+ * <p>
+ * Every ValueSet that can be expanded locally is expanded once; each {@code system|code}
+ * of the expansions maps to a bitset of the ValueSets containing it, so a membership check
+ * is one hash lookup and one bit test. The index is written next to the package indexes,
+ * named after the package stamps, and read back instead of expanding again on restart.
+ * ValueSets that cannot be expanded completely (unknown code systems, filters on external
+ * terminologies, more than {@link #MAX_EXPANSION} codes) are left out and handled by the
+ * rest of the validation support chain. Expansions are read with a {@link FhirTerser}, so
+ * the index works for every FHIR version.
+ */
+final class TerminologyIndex {
+
+  /** Largest expansion kept in the index. */
+  static final int MAX_EXPANSION = 50_000;
+
+  private static final int INDEX_MAGIC = 0x46544958; // "FTIX"
+  private static final int INDEX_VERSION = 1;
+
+  private final Map<String, Integer> valueSetIds;
+  private final List<Set<String>> systemsByValueSet;
+  private final Map<String, Concept> concepts;
+
+  private TerminologyIndex(Map<String, Integer> valueSetIds, List<Set<String>> systemsByValueSet, Map<String, Concept> concepts) {
+    this.valueSetIds = valueSetIds;
+    this.systemsByValueSet = systemsByValueSet;
+    this.concepts = concepts;
+  }
+
+  /**
+   * Reads the index of {@code packages} from {@code indexDirectory}, or expands their
+   * ValueSets with {@code chain} and writes the index when there is none yet.
+   */
+  static TerminologyIndex loadOrBuild(Path indexDirectory, List<IgPackage> packages, IValidationSupport packageSupport,
+      IValidationSupport chain) {
+    Path indexFile = indexDirectory.resolve("terminology-" + IgPackage.hash(packages) + ".tidx");
+    if (Files.isRegularFile(indexFile)) {
+      try {
+        return read(indexFile);
+      } catch (IOException e) {
+        // Unreadable or from another version; expand again and replace it
+      }
+    }
+    TerminologyIndex index = build(packages, packageSupport, chain);
+    try {
+      Files.createDirectories(indexDirectory);
+      index.write(indexFile);
+    } catch (IOException e) {
+      // Not persisted; the index still serves this process
+    }
+    return index;
+  }
+
+  static TerminologyIndex build(List<IgPackage> packages, IValidationSupport packageSupport, IValidationSupport chain) {
+    FhirContext fhirContext = chain.getFhirContext();
+    InMemoryTerminologyServerValidationSupport expander = new InMemoryTerminologyServerValidationSupport(fhirContext);
+    ValidationSupportContext context = new ValidationSupportContext(chain);
+    ValueSetExpansionOptions options = new ValueSetExpansionOptions().setCount(MAX_EXPANSION + 1);
+    FhirTerser terser = new FhirTerser(fhirContext);
+
+    Map<String, Integer> valueSetIds = new HashMap<>();
+    List<Set<String>> systemsByValueSet = new ArrayList<>();
+    Map<String, Concept> concepts = new HashMap<>();
+    for (IgPackage igPackage : packages) {
+      for (IgPackage.Entry entry : igPackage.getEntries()) {
+        if (!"ValueSet".equals(entry.getResourceType()) || valueSetIds.containsKey(entry.getUrl())) {
+          continue;
+        }
+        List<Code> codes = expand(expander, context, options, terser, packageSupport.fetchValueSet(entry.getUrl()));
+        if (codes == null) {
+          continue;
+        }
+        int id = systemsByValueSet.size();
+        Set<String> systems = new LinkedHashSet<>();
+        for (Code code : codes) {
+          systems.add(code.system);
+          Concept concept = concepts.computeIfAbsent(conceptKey(code.system, code.code), k -> new Concept(null));
+          if (concept.display == null) {
+            // Enumerated ValueSets may leave the display out; take it from any expansion that has it
+            concept.display = code.display;
+          }
+          concept.valueSets.set(id);
+        }
+        valueSetIds.put(entry.getUrl(), id);
+        systemsByValueSet.add(systems);
+      }
+    }
+    return new TerminologyIndex(valueSetIds, systemsByValueSet, concepts);
+  }
+
+  /**
+   * Returns the flattened codes of a complete expansion, or null when the ValueSet cannot
+   * be expanded locally.
+   */
+  private static List<Code> expand(InMemoryTerminologyServerValidationSupport expander, ValidationSupportContext context,
+      ValueSetExpansionOptions options, FhirTerser terser, IBaseResource valueSet) {
+    FhirContext fhirContext = expander.getFhirContext();
+    if (!isValueSet(fhirContext, valueSet)) {
+      return null;
+    }
+    IValidationSupport.ValueSetExpansionOutcome outcome;
+    try {
+      outcome = expander.expandValueSet(context, options, valueSet);
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (outcome == null || outcome.getError() != null || !isValueSet(fhirContext, outcome.getValueSet())) {
+      return null;
+    }
+    List<Code> codes = new ArrayList<>();
+    flatten(terser, terser.getValues(outcome.getValueSet(), "ValueSet.expansion.contains"), codes);
+    return codes.size() > MAX_EXPANSION ? null : codes;
+  }
+
+  private static boolean isValueSet(FhirContext fhirContext, IBaseResource resource) {
+    return resource != null && "ValueSet".equals(fhirContext.getResourceType(resource));
+  }
+
+  private static void flatten(FhirTerser terser, List<IBase> contains, List<Code> codes) {
+    for (IBase element : contains) {
+      String system = terser.getSinglePrimitiveValueOrNull(element, "system");
+      String code = terser.getSinglePrimitiveValueOrNull(element, "code");
+      if (system != null && code != null) {
+        codes.add(new Code(system, code, terser.getSinglePrimitiveValueOrNull(element, "display")));
+      }
+      flatten(terser, terser.getValues(element, "contains"), codes);
+    }
+  }
+
+  /**
+   * Whether the ValueSet, given as a canonical URL with or without {@code |version}, is in
+   * the index.
+   */
+  boolean contains(String valueSetUrl) {
+    return valueSetId(valueSetUrl) >= 0;
+  }
+
+  /**
+   * Looks up a code in an indexed ValueSet.
+   *
+   * @return the concept when the code is a member, otherwise null
+   */
+  Concept find(String valueSetUrl, String system, String code) {
+    int id = valueSetId(valueSetUrl);
+    if (id < 0 || system == null || code == null) {
+      return null;
+    }
+    return member(concepts.get(conceptKey(system, code)), id);
+  }
+
+  /**
+   * Returns the system of a code in an indexed ValueSet when no system was given.
+   */
+  String inferSystem(String valueSetUrl, String code) {
+    int id = valueSetId(valueSetUrl);
+    if (id < 0) {
+      return null;
+    }
+    for (String candidate : systemsByValueSet.get(id)) {
+      if (member(concepts.get(conceptKey(candidate, code)), id) != null) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether any indexed ValueSet contains codes of the system.
+   */
+  boolean containsSystem(String system) {
+    for (Set<String> systems : systemsByValueSet) {
+      if (systems.contains(system)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int getValueSetCount() {
+    return valueSetIds.size();
+  }
+
+  int getConceptCount() {
+    return concepts.size();
+  }
+
+  private int valueSetId(String valueSetUrl) {
+    if (valueSetUrl == null) {
+      return -1;
+    }
+    Integer id = valueSetIds.get(valueSetUrl);
+    if (id == null && valueSetUrl.indexOf('|') >= 0) {
+      id = valueSetIds.get(valueSetUrl.substring(0, valueSetUrl.indexOf('|')));
+    }
+    return id == null ? -1 : id;
+  }
+
+  private static Concept member(Concept concept, int valueSetId) {
+    return concept != null && concept.valueSets.get(valueSetId) ? concept : null;
+  }
+
+  private static String conceptKey(String system, String code) {
+    return system + "|" + code;
+  }
+
+  /**
+   * Names the index after the exact package files it was built from.
+   */
+  private void write(Path indexFile) throws IOException {
+    Path temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        String[] urls = new String[valueSetIds.size()];
+        valueSetIds.forEach((url, id) -> urls[id] = url);
+        out.writeInt(urls.length);
+        for (int id = 0; id < urls.length; id++) {
+          out.writeUTF(urls[id]);
+          out.writeInt(systemsByValueSet.get(id).size());
+          for (String system : systemsByValueSet.get(id)) {
+            out.writeUTF(system);
+          }
+        }
+        out.writeInt(concepts.size());
+        for (Map.Entry<String, Concept> concept : concepts.entrySet()) {
+          out.writeUTF(concept.getKey());
+          IgPackage.writeNullable(out, concept.getValue().display);
+          long[] words = concept.getValue().valueSets.toLongArray();
+          out.writeInt(words.length);
+          for (long word : words) {
+            out.writeLong(word);
+          }
+        }
+      }
+      Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static TerminologyIndex read(Path indexFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+        throw new IOException("Not a terminology index: " + indexFile);
+      }
+      int valueSetCount = in.readInt();
+      Map<String, Integer> valueSetIds = new HashMap<>();
+      List<Set<String>> systemsByValueSet = new ArrayList<>(valueSetCount);
+      for (int id = 0; id < valueSetCount; id++) {
+        valueSetIds.put(in.readUTF(), id);
+        int systemCount = in.readInt();
+        Set<String> systems = new LinkedHashSet<>();
+        for (int i = 0; i < systemCount; i++) {
+          systems.add(in.readUTF().intern());
+        }
+        systemsByValueSet.add(systems);
+      }
+      int conceptCount = in.readInt();
+      Map<String, Concept> concepts = new HashMap<>(conceptCount * 4 / 3 + 1);
+      for (int i = 0; i < conceptCount; i++) {
+        String key = in.readUTF();
+        Concept concept = new Concept(IgPackage.readNullable(in));
+        long[] words = new long[in.readInt()];
+        for (int w = 0; w < words.length; w++) {
+          words[w] = in.readLong();
+        }
+        concept.valueSets.or(BitSet.valueOf(words));
+        concepts.put(key, concept);
+      }
+      return new TerminologyIndex(valueSetIds, systemsByValueSet, concepts);
+    }
+  }
+
+  /**
+   * A code of an expansion.
+   */
+  private static final class Code {
+    private final String system;
+    private final String code;
+    private final String display;
+
+    private Code(String system, String code, String display) {
+      this.system = system;
+      this.code = code;
+      this.display = display;
+    }
+  }
+
+  /**
+   * A code of the index: its display and the ValueSets it belongs to.
+   */
+  static final class Concept {
+    private String display;
+    private final BitSet valueSets = new BitSet();
+
+    private Concept(String display) {
+      this.display = display;
+    }
+
+    String getDisplay() {
+      return display;
+    }
+  }
+}
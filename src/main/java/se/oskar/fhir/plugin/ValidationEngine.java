@@ -0,0 +1,90 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationOptions;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * Profile validator for a single IG + profile combination.
+ * Instances are immutable and safe to share between concurrent requests; they are
+ * created and cached by {@link ValidationEngineCache}.
+ */
+final class ValidationEngine implements ResourceValidator {
+
+  private final String ig;
+  private final String profile;
+  private final boolean igResolved;
+  private final IValidationSupport validationSupport;
+  private final FhirValidator validator;
+  private final boolean profileResolved;
+
+  ValidationEngine(String ig, String profile, boolean igResolved, IValidationSupport validationSupport, FhirValidator validator) {
+    this.ig = ig;
+    this.profile = profile;
+    this.igResolved = igResolved;
+    this.validationSupport = validationSupport;
+    this.validator = validator;
+    // Resolving the profile up front also triggers snapshot generation, so the
+    // first request against this engine does not pay for it.
+    this.profileResolved = profile == null || validationSupport.fetchStructureDefinition(profile) != null;
+  }
+
+  String getIg() {
+    return ig;
+  }
+
+  String getProfile() {
+    return profile;
+  }
+
+  IValidationSupport getValidationSupport() {
+    return validationSupport;
+  }
+
+  /**
+   * Returns false when an IG was requested but no matching package is available offline.
+   */
+  boolean isIgResolved() {
+    return igResolved;
+  }
+
+  /**
+   * Returns false when a profile was requested but no StructureDefinition with that
+   * canonical URL is known to the validation support chain.
+   */
+  boolean isProfileResolved() {
+    return profileResolved;
+  }
+
+  /**
+   * Validates an already parsed resource against the base specification, the
+   * profiles it declares and, if set, the requested profile.
+   */
+  @Override
+  public ValidationResult validate(IBaseResource resource) {
+    return validator.validateWithResult(resource, options());
+  }
+
+  /**
+   * Validates an already parsed resource against several profiles of this engine's IG in
+   * one pass, instead of the engine's own profile. The findings of each profile follow a
+   * marker naming it; see {@link ProfileRunInstanceValidator}.
+   */
+  ValidationResult validateProfiles(IBaseResource resource, List<String> profiles) {
+    ValidationOptions options = new ValidationOptions();
+    profiles.forEach(options::addProfile);
+    return validator.validateWithResult(resource, options);
+  }
+
+  private ValidationOptions options() {
+    ValidationOptions options = new ValidationOptions();
+    if (profile != null) {
+      options.addProfile(profile);
+    }
+    return options;
+  }
+}
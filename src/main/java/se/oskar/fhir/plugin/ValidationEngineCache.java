@@ -0,0 +1,237 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.validation.FhirValidator;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Builds and caches {@link ValidationEngine}s for the FHIR version of its context; IG
+ * packages for other versions are ignored.
+ * The validation support chain and the instance validator are created once per IG and
+ * shared by every profile of that IG; engines are created once per IG + profile.
+ * <p>
+ * Building happens outside the maps: the first caller for a key builds it while later
+ * callers for the same key wait for its future, and callers for other keys are not held up.
+ * Both maps are bounded, evicting the least used entries first, and only keep
+ * what resolved: the keys are request inputs, so an IG or profile that is not available is
+ * not kept. An IG that is not available shares the support chain and instance validator
+ * built without an IG, so naming one costs a package lookup rather than a new chain.
+ */
+final class ValidationEngineCache {
+
+  private static final String NO_IG = "";
+
+  /** Maximum number of IGs whose support chain and instance validator are kept. */
+  static final int MAX_IGS = 32;
+
+  /** Maximum number of IG + profile engines kept. */
+  static final int MAX_ENGINES = 1024;
+
+  private final FhirContext fhirContext;
+  private final IgPackageStore packageStore;
+  private final IValidationSupport coreSupport;
+  private final ConcurrentMap<String, CompletableFuture<SharedValidator>> validatorsByIg = boundedMap(MAX_IGS);
+  private final ConcurrentMap<EngineKey, CompletableFuture<ValidationEngine>> engines = boundedMap(MAX_ENGINES);
+
+  ValidationEngineCache(FhirContext fhirContext) {
+    this(fhirContext, IgPackageStore.empty());
+  }
+
+  ValidationEngineCache(FhirContext fhirContext, IgPackageStore packageStore) {
+    this.fhirContext = fhirContext;
+    this.packageStore = packageStore;
+    // The context's own core support, so that loaded core definitions are shared by all caches
+    this.coreSupport = coreSupport(fhirContext);
+  }
+
+  /**
+   * Returns the engine for the given IG and profile, building it on first use.
+   * Both arguments are optional.
+   */
+  ValidationEngine getEngine(String ig, String profile) {
+    return buildOnce(engines, new EngineKey(ig, profile), k -> {
+      SharedValidator shared = getSharedValidator(k.ig);
+      return new ValidationEngine(k.ig, k.profile, shared.igResolved, shared.support, shared.validator);
+    }, engine -> engine.isIgResolved() && engine.isProfileResolved());
+  }
+
+  /**
+   * Returns the support chain and instance validator of the IG, or those built without an
+   * IG, marked unresolved, when the IG is not available.
+   */
+  private SharedValidator getSharedValidator(String ig) {
+    if (ig == null) {
+      return buildOnce(validatorsByIg, NO_IG, k -> createSharedValidator(List.of()), v -> true);
+    }
+    List<IgPackage> packages = packageStore.resolve(ig, fhirContext.getVersion().getVersion());
+    if (packages.isEmpty()) {
+      SharedValidator noIg = getSharedValidator(null);
+      return new SharedValidator(false, noIg.support, noIg.validator);
+    }
+    return buildOnce(validatorsByIg, ig, k -> createSharedValidator(packages), v -> true);
+  }
+
+  /**
+   * Returns the value of {@code key}, building it with {@code build} on the calling thread
+   * if no other caller has started yet. A failed build, or a value {@code keep} rejects, is
+   * handed to the callers already waiting for it but not cached, so the next caller builds
+   * it again.
+   */
+  private static <K, V> V buildOnce(ConcurrentMap<K, CompletableFuture<V>> values, K key, Function<K, V> build,
+      Predicate<V> keep) {
+    // Plain reads do not lock; only a miss inserts a future
+    CompletableFuture<V> future = values.get(key);
+    if (future == null) {
+      CompletableFuture<V> created = new CompletableFuture<>();
+      future = values.putIfAbsent(key, created);
+      if (future == null) {
+        try {
+          V value = build.apply(key);
+          created.complete(value);
+          if (!keep.test(value)) {
+            values.remove(key, created);
+          }
+          return value;
+        } catch (RuntimeException | Error e) {
+          values.remove(key, created);
+          created.completeExceptionally(e);
+          throw e;
+        }
+      }
+    }
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static <K, V> ConcurrentMap<K, V> boundedMap(int maximumSize) {
+    // Evictions run on the calling thread, so the bound holds as soon as a put returns
+    Cache<K, V> cache = Caffeine.newBuilder().maximumSize(maximumSize).executor(Runnable::run).build();
+    return cache.asMap();
+  }
+
+  FhirContext getFhirContext() {
+    return fhirContext;
+  }
+
+  int size() {
+    return engines.size();
+  }
+
+  /**
+   * The built-in core definitions of the context's version, or null when they are not on
+   * the classpath (the {@code core-definitions} build profile adds them for R4 and R5); the
+   * core package of the package store then provides them.
+   */
+  private static IValidationSupport coreSupport(FhirContext fhirContext) {
+    try {
+      return fhirContext.getValidationSupport();
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param igPackages the IG followed by its dependencies; empty for none
+   */
+  private SharedValidator createSharedValidator(List<IgPackage> igPackages) {
+    // The IG comes first, followed by its dependencies and the offline core package
+    List<IgPackage> packages = new ArrayList<>(igPackages);
+    IgPackage corePackage = packageStore.findCorePackage(fhirContext.getVersion().getVersion());
+    if (corePackage != null && !packages.contains(corePackage)) {
+      packages.add(corePackage);
+    }
+
+    // The indexed terminology goes first: the core support brings its own in-memory
+    // terminology service, which would otherwise answer for the indexed ValueSets
+    IndexedTerminologySupport terminology = new IndexedTerminologySupport(fhirContext);
+    ValidationSupportChain chain = new ValidationSupportChain();
+    chain.addValidationSupport(terminology);
+    if (coreSupport != null) {
+      chain.addValidationSupport(coreSupport);
+    }
+    PackageValidationSupport packageSupport = null;
+    if (!packages.isEmpty()) {
+      packageSupport = new PackageValidationSupport(fhirContext, packages);
+      chain.addValidationSupport(packageSupport);
+    }
+    chain.addValidationSupport(new CommonCodeSystemsTerminologyService(fhirContext));
+    chain.addValidationSupport(new InMemoryTerminologyServerValidationSupport(fhirContext));
+    IValidationSupport snapshots = new SnapshotGeneratingValidationSupport(fhirContext);
+    if (!packages.isEmpty() && packageStore.getIndexDirectory() != null) {
+      snapshots = new SnapshotCache(fhirContext, snapshots, SnapshotCache.directory(packageStore.getIndexDirectory(), packages));
+    }
+    chain.addValidationSupport(snapshots);
+    if (packageSupport != null && packageStore.getIndexDirectory() != null) {
+      // Expanded through the bare chain, so that nothing is cached before the index is in place
+      terminology.setIndex(TerminologyIndex.loadOrBuild(packageStore.getIndexDirectory(), packages, packageSupport, chain));
+    }
+    IValidationSupport support = new CachingValidationSupport(chain);
+
+    FhirInstanceValidator instanceValidator = new ProfileRunInstanceValidator(support);
+    FhirValidator validator = fhirContext.newValidator();
+    validator.registerValidatorModule(instanceValidator);
+    return new SharedValidator(true, support, validator);
+  }
+
+  private static final class SharedValidator {
+    private final boolean igResolved;
+    private final IValidationSupport support;
+    private final FhirValidator validator;
+
+    private SharedValidator(boolean igResolved, IValidationSupport support, FhirValidator validator) {
+      this.igResolved = igResolved;
+      this.support = support;
+      this.validator = validator;
+    }
+  }
+
+  private static final class EngineKey {
+    private final String ig;
+    private final String profile;
+
+    private EngineKey(String ig, String profile) {
+      this.ig = ig;
+      this.profile = profile;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof EngineKey)) {
+        return false;
+      }
+      EngineKey other = (EngineKey) o;
+      return Objects.equals(ig, other.ig) && Objects.equals(profile, other.profile);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(ig, profile);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestResultType;
+
+/**
+ * Receives timings and counts from the validator plugin.
+ * Implementations are called concurrently from every validating thread and must be
+ * thread-safe and cheap. Set one with {@link ValidatorSettings#setMetrics(ValidationMetrics)};
+ * the default, {@link #NOOP}, discards everything.
+ *
+ * @see InMemoryValidationMetrics
+ */
+public interface ValidationMetrics {
+
+  /** Metrics that record nothing. */
+  ValidationMetrics NOOP = new ValidationMetrics() {
+    @Override
+    public void recordPhase(Phase phase, long nanos) {
+    }
+
+    @Override
+    public void recordResult(TestResultType result, long nanos) {
+    }
+
+    @Override
+    public void recordFindings(String type, int count) {
+    }
+  };
+
+  /**
+   * Phases of a validation. NDJSON and streamed Bundles record the parse and profile
+   * phases once per line or entry.
+   */
+  enum Phase {
+    /** Opening and reading the content, including disk I/O and decoding. */
+    READ,
+    /** Structural check of the content before it is parsed, excluding the time spent reading. */
+    STRUCTURE,
+    /** Parsing JSON into a FHIR resource, excluding the time spent reading. */
+    PARSE,
+    /** Instance validation against the IG and profile, including terminology checks. */
+    PROFILE,
+    /** Turning validation messages into report items. */
+    REPORT
+  }
+
+  void recordPhase(Phase phase, long nanos);
+
+  /**
+   * Records the outcome of one validation request and its total duration.
+   */
+  void recordResult(TestResultType result, long nanos);
+
+  /**
+   * Records the number of report items of one type (ERROR, WARNING, INFO) in one report.
+   */
+  void recordFindings(String type, int count);
+}
@@ -0,0 +1,554 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.vs.ValidationResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standalone HTTP server exposing the validator plugin, for running it as a scalable
+ * service rather than embedded in the ITB.
+ * <ul>
+ *   <li>{@code POST /validate}: the body is the content to validate, its type taken from
+ *   the {@code Content-Type} header; the other inputs ({@code ig}, {@code profile}, ...)
+ *   are query parameters. The report is returned as JSON, or as GITB XML when the
+ *   {@code Accept} header asks for XML.</li>
+ *   <li>{@code POST /ws/validation}: a SOAP 1.1 GITB {@code ValidateRequest}, with inputs
+ *   embedded as {@code STRING} or {@code BASE64}, answered with a {@code ValidationResponse};
+ *   or a {@code GetModuleDefinitionRequest}, answered with the inputs the service accepts.
+ *   {@code GET /ws/validation?wsdl} returns the service's WSDL.</li>
+ *   <li>{@code GET /health}: 200 while the server accepts requests.</li>
+ * </ul>
+ * Each request runs on its own virtual thread when the runtime has them (Java 21 and
+ * later), otherwise on a pooled platform thread. At most
+ * {@link ValidatorSettings#getServerMaxConcurrentRequests()} requests validate at the same
+ * time; others wait up to {@link ValidatorSettings#getServerQueueTimeout()} and are then
+ * turned away with 503, so a burst cannot pile up unbounded work. Bodies are buffered in
+ * memory, so those larger than {@link ValidatorSettings#getServerMaxBodySize()} (or
+ * {@link ValidatorSettings#getMaxContentSize()}, when smaller) are rejected with 413.
+ */
+public final class ValidationServer {
+
+  static final String VS_NAMESPACE = "http://www.gitb.com/vs/v1/";
+  static final String SOAP_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+  static final String CORE_NAMESPACE = "http://www.gitb.com/core/v1/";
+
+  private static final String INPUT_CONTENT_TO_VALIDATE = "contentToValidate";
+  private static final String INPUT_CONTENT_TYPE = "contentType";
+  private static final String MODULE_ID = "json-fhir-validator";
+  private static final String WSDL_RESOURCE = "/validation-service.wsdl";
+
+  /** Inputs reported by getModuleDefinition: name, type, use (R or O) and description. */
+  private static final String[][] MODULE_INPUTS = {
+      {INPUT_CONTENT_TO_VALIDATE, "binary", "R", "The FHIR resource to validate (JSON, or NDJSON for application/fhir+ndjson)"},
+      {INPUT_CONTENT_TYPE, "string", "O", "Media type of the content, optionally with a fhirVersion parameter"},
+      {"ig", "string", "O", "Package id, or id#version, of the implementation guide to validate against"},
+      {"profile", "string", "O", "Canonical URL of a profile to validate against; may be repeated"},
+      {"bundleStreaming", "string", "O", "Validate Bundle entries one at a time (true or false)"},
+      {"failFast", "string", "O", "Stop at the first error (true or false)"},
+      {"maxFindings", "string", "O", "Maximum number of findings to report"},
+      {"lenientParsing", "string", "O", "Report all parse problems instead of stopping at the first (true or false)"},
+      {"sessionId", "string", "O", "Session for incremental re-validation of edited content"},
+      {"locale", "string", "O", "Locale of the report messages, e.g. en or fr"},
+  };
+  private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+  private static final Logger LOG = LoggerFactory.getLogger(ValidationServer.class);
+
+  private final FhirJsonValidatorPlugin plugin;
+  private final ValidatorSettings settings;
+  private final Semaphore slots;
+  private final ExecutorService executor;
+  private final HttpServer server;
+  private volatile boolean accepting;
+
+  public ValidationServer(FhirJsonValidatorPlugin plugin, ValidatorSettings settings) throws IOException {
+    this.plugin = plugin;
+    this.settings = settings;
+    this.slots = new Semaphore(settings.getServerMaxConcurrentRequests());
+    this.executor = newRequestExecutor();
+    this.server = HttpServer.create(new InetSocketAddress(settings.getServerPort()), 0);
+    server.setExecutor(executor);
+    server.createContext("/validate", exchange -> handle(exchange, this::validateHttp));
+    server.createContext("/ws/validation", exchange -> {
+      if ("GET".equals(exchange.getRequestMethod()) && "wsdl".equalsIgnoreCase(exchange.getRequestURI().getRawQuery())) {
+        respond(exchange, 200, "text/xml; charset=utf-8", wsdl(exchange));
+      } else {
+        handle(exchange, this::validateSoap);
+      }
+    });
+    server.createContext("/health", exchange -> respond(exchange, accepting ? 200 : 503, "text/plain", "OK".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Starts the server with settings from system properties and stops it gracefully on
+   * JVM shutdown.
+   */
+  public static void main(String[] args) throws IOException {
+    ValidatorSettings settings = ValidatorSettings.fromSystemProperties();
+    if (args.length > 0) {
+      settings.setServerPort(Integer.parseInt(args[0]));
+    }
+    ValidationServer server = new ValidationServer(new FhirJsonValidatorPlugin(settings), settings);
+    server.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(Duration.ofSeconds(30)), "validation-server-shutdown"));
+    LOG.info("Validation server listening on port {}{}", server.getPort(),
+        isVirtualThreadsAvailable() ? " (virtual threads)" : "");
+  }
+
+  public void start() {
+    accepting = true;
+    server.start();
+  }
+
+  /**
+   * Port the server is bound to, which differs from the configured one when that was zero.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops accepting connections, lets requests in progress finish for up to
+   * {@code grace}, then stops the request threads.
+   */
+  public void stop(Duration grace) {
+    accepting = false;
+    long deadline = System.nanoTime() + grace.toNanos();
+    server.stop((int) Math.max(0, grace.toSeconds()));
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Whether this runtime supports virtual threads; the default build targets Java 17, so
+   * they are looked up reflectively, which also serves the {@code jdk21} build.
+   */
+  static boolean isVirtualThreadsAvailable() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ExecutorService newRequestExecutor() {
+    if (isVirtualThreadsAvailable()) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        // Fall back to platform threads
+      }
+    }
+    // Waiting requests only hold a thread until the queue timeout, so the pool stays bounded in practice
+    return Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "validation-server");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private void handle(HttpExchange exchange, Handler handler) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "text/plain", "POST required".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      long maxSize = maxBodySize();
+      String length = exchange.getRequestHeaders().getFirst("Content-Length");
+      if (maxSize > 0 && length != null && Long.parseLong(length.trim()) > maxSize) {
+        respond(exchange, 413, "text/plain", ("Request body exceeds " + maxSize + " bytes").getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      if (!slots.tryAcquire(settings.getServerQueueTimeout().toNanos(), TimeUnit.NANOSECONDS)) {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        respond(exchange, 503, "text/plain", "Too many concurrent requests".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      try {
+        byte[] body = readBody(exchange.getRequestBody(), maxSize);
+        handler.handle(exchange, body);
+      } finally {
+        slots.release();
+      }
+    } catch (ContentInput.ContentTooLargeException tooLarge) {
+      respond(exchange, 413, "text/plain", tooLarge.getMessage().getBytes(StandardCharsets.UTF_8));
+    } catch (BadRequestException | NumberFormatException e) {
+      respond(exchange, 400, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 503, "text/plain", "Shutting down".getBytes(StandardCharsets.UTF_8));
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void validateHttp(HttpExchange exchange, byte[] body) throws IOException {
+    Map<String, Object> input = queryParameters(exchange.getRequestURI().getRawQuery());
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (!input.containsKey(INPUT_CONTENT_TYPE) && contentType != null && contentType.startsWith("application/fhir+")) {
+      input.put(INPUT_CONTENT_TYPE, contentType);
+    }
+    TAR report = plugin.validate(input, ContentInput.ofBytes(body)).getReport();
+
+    String accept = exchange.getRequestHeaders().getFirst("Accept");
+    boolean xml = accept != null && accept.contains("xml");
+    exchange.getResponseHeaders().set("Content-Type", xml ? "application/xml" : "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    try (OutputStream out = exchange.getResponseBody()) {
+      if (xml) {
+        TarSerializer.writeXml(report, out);
+      } else {
+        TarSerializer.writeJson(report, out);
+      }
+    }
+  }
+
+  private void validateSoap(HttpExchange exchange, byte[] body) throws IOException {
+    Map<String, Object> input = new HashMap<>();
+    byte[] content = null;
+    boolean moduleDefinition;
+    try {
+      moduleDefinition = "GetModuleDefinitionRequest".equals(soapOperation(body));
+      if (!moduleDefinition) {
+        content = readSoapInputs(body, input);
+      }
+    } catch (BadRequestException e) {
+      respond(exchange, 500, "text/xml; charset=utf-8", soapFault(e.getMessage()));
+      return;
+    }
+    ValidationResponse response = moduleDefinition ? null : plugin.validate(input, ContentInput.ofBytes(content));
+
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+    exchange.sendResponseHeaders(200, 0);
+    try (OutputStream out = exchange.getResponseBody()) {
+      XMLStreamWriter xml = TarSerializer.XML_FACTORY.createXMLStreamWriter(out, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("soap", "Envelope", SOAP_NAMESPACE);
+      xml.writeNamespace("soap", SOAP_NAMESPACE);
+      xml.writeNamespace("vs", VS_NAMESPACE);
+      xml.writeStartElement("soap", "Body", SOAP_NAMESPACE);
+      if (moduleDefinition) {
+        writeModuleDefinition(xml);
+      } else {
+        xml.writeStartElement("vs", "ValidationResponse", VS_NAMESPACE);
+        TarSerializer.writeXml(response.getReport(), xml, "vs", "report", VS_NAMESPACE);
+        xml.writeEndElement();
+      }
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.flush();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Writes a GITB {@code GetModuleDefinitionResponse} listing the inputs of
+   * {@link #MODULE_INPUTS}.
+   */
+  private static void writeModuleDefinition(XMLStreamWriter xml) throws XMLStreamException {
+    xml.writeStartElement("vs", "GetModuleDefinitionResponse", VS_NAMESPACE);
+    xml.writeStartElement("module");
+    xml.writeNamespace("gitb", CORE_NAMESPACE);
+    xml.writeAttribute("id", MODULE_ID);
+    xml.writeAttribute("operation", "V");
+    xml.writeStartElement("gitb", "metadata", CORE_NAMESPACE);
+    xml.writeStartElement("gitb", "name", CORE_NAMESPACE);
+    xml.writeCharacters(MODULE_ID);
+    xml.writeEndElement();
+    String version = ValidationServer.class.getPackage().getImplementationVersion();
+    if (version != null) {
+      xml.writeStartElement("gitb", "version", CORE_NAMESPACE);
+      xml.writeCharacters(version);
+      xml.writeEndElement();
+    }
+    xml.writeEndElement();
+    xml.writeStartElement("gitb", "inputs", CORE_NAMESPACE);
+    for (String[] parameter : MODULE_INPUTS) {
+      xml.writeEmptyElement("gitb", "param", CORE_NAMESPACE);
+      xml.writeAttribute("name", parameter[0]);
+      xml.writeAttribute("type", parameter[1]);
+      xml.writeAttribute("use", parameter[2]);
+      xml.writeAttribute("kind", "SIMPLE");
+      xml.writeAttribute("desc", parameter[3]);
+    }
+    xml.writeEndElement();
+    xml.writeEndElement();
+    xml.writeEndElement();
+  }
+
+  /**
+   * Local name of the first element in the SOAP body, which names the operation; reading
+   * stops there.
+   */
+  static String soapOperation(byte[] envelope) throws IOException {
+    try {
+      XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(envelope));
+      try {
+        boolean inBody = false;
+        while (xml.hasNext()) {
+          if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          if (inBody) {
+            return xml.getLocalName();
+          }
+          inBody = "Body".equals(xml.getLocalName()) && SOAP_NAMESPACE.equals(xml.getNamespaceURI());
+        }
+      } finally {
+        xml.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new BadRequestException("Malformed SOAP request: " + e.getMessage());
+    }
+    throw new BadRequestException("Empty SOAP body");
+  }
+
+  /**
+   * The WSDL resource with the service address taken from the request's {@code Host} header.
+   */
+  private static byte[] wsdl(HttpExchange exchange) throws IOException {
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null) {
+      host = "localhost:" + exchange.getLocalAddress().getPort();
+    }
+    try (InputStream in = ValidationServer.class.getResourceAsStream(WSDL_RESOURCE)) {
+      if (in == null) {
+        throw new IOException("Missing resource " + WSDL_RESOURCE);
+      }
+      String wsdl = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      return wsdl.replace("${address}", "http://" + host + "/ws/validation").getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Reads the {@code input} elements of a GITB {@code ValidateRequest} into {@code input}
+   * and returns the decoded {@code contentToValidate}. Like a query parameter, an input
+   * given more than once maps to the list of its values.
+   */
+  static byte[] readSoapInputs(byte[] envelope, Map<String, Object> input) throws IOException {
+    byte[] content = null;
+    try {
+      XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(envelope));
+      try {
+        while (xml.hasNext()) {
+          if (xml.next() != XMLStreamConstants.START_ELEMENT || !"input".equals(xml.getLocalName())) {
+            continue;
+          }
+          String name = xml.getAttributeValue(null, "name");
+          String embedding = xml.getAttributeValue(null, "embeddingMethod");
+          String value = readInputValue(xml);
+          if (name == null) {
+            throw new BadRequestException("Input without a name");
+          }
+          if (embedding != null && !"STRING".equals(embedding) && !"BASE64".equals(embedding)) {
+            throw new BadRequestException("Unsupported embeddingMethod " + embedding + " for input " + name);
+          }
+          byte[] bytes = "BASE64".equals(embedding)
+              ? Base64.getMimeDecoder().decode(value)
+              : value.getBytes(StandardCharsets.UTF_8);
+          if (INPUT_CONTENT_TO_VALIDATE.equals(name)) {
+            content = bytes;
+          } else {
+            input.merge(name, new String(bytes, StandardCharsets.UTF_8), ValidationServer::appendValue);
+          }
+        }
+      } finally {
+        xml.close();
+      }
+    } catch (XMLStreamException | IllegalArgumentException e) {
+      throw new BadRequestException("Malformed ValidateRequest: " + e.getMessage());
+    }
+    if (content == null) {
+      throw new BadRequestException("Missing input " + INPUT_CONTENT_TO_VALIDATE);
+    }
+    return content;
+  }
+
+  /**
+   * Reads the text of the {@code value} child of the current {@code input} element.
+   */
+  private static String readInputValue(XMLStreamReader xml) throws XMLStreamException {
+    StringBuilder value = new StringBuilder();
+    int depth = 1;
+    boolean inValue = false;
+    while (depth > 0 && xml.hasNext()) {
+      int event = xml.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+        inValue = "value".equals(xml.getLocalName());
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        inValue = false;
+      } else if (inValue && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+        value.append(xml.getText());
+      }
+    }
+    return value.toString();
+  }
+
+  private static byte[] soapFault(String message) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      XMLStreamWriter xml = TarSerializer.XML_FACTORY.createXMLStreamWriter(out, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      xml.writeStartElement("soap", "Envelope", SOAP_NAMESPACE);
+      xml.writeNamespace("soap", SOAP_NAMESPACE);
+      xml.writeStartElement("soap", "Body", SOAP_NAMESPACE);
+      xml.writeStartElement("soap", "Fault", SOAP_NAMESPACE);
+      xml.writeStartElement("faultcode");
+      xml.writeCharacters("soap:Client");
+      xml.writeEndElement();
+      xml.writeStartElement("faultstring");
+      xml.writeCharacters(message);
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.close();
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes the query parameters; a parameter given more than once maps to the list of its
+   * values, in order. A malformed percent-encoding is a bad request.
+   */
+  static Map<String, Object> queryParameters(String rawQuery) throws BadRequestException {
+    Map<String, Object> parameters = new HashMap<>();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return parameters;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int equals = pair.indexOf('=');
+      String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+      String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+      if (INPUT_CONTENT_TO_VALIDATE.equals(name)) {
+        throw new BadRequestException("contentToValidate must be sent as the request body");
+      }
+      parameters.merge(name, value, ValidationServer::appendValue);
+    }
+    return parameters;
+  }
+
+  private static String decode(String encoded) throws BadRequestException {
+    try {
+      return URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Malformed query parameter " + encoded + ": " + e.getMessage());
+    }
+  }
+
+  // A repeated parameter or input, such as several profiles, becomes a list of its values
+  private static Object appendValue(Object previous, Object next) {
+    List<Object> values = new ArrayList<>();
+    if (previous instanceof List) {
+      values.addAll((List<?>) previous);
+    } else {
+      values.add(previous);
+    }
+    values.add(next);
+    return values;
+  }
+
+  /**
+   * Body size limit: the server limit, or the content size limit when that is smaller,
+   * since a {@code /validate} body is the content itself. Zero disables the limit.
+   */
+  private long maxBodySize() {
+    long server = settings.getServerMaxBodySize();
+    long content = settings.getMaxContentSize();
+    if (server <= 0 || content <= 0) {
+      return Math.max(Math.max(server, content), 0);
+    }
+    return Math.min(server, content);
+  }
+
+  /**
+   * Reads the whole body, which the plugin may open more than once, failing as soon as it
+   * exceeds {@code maxSize} bytes.
+   */
+  private static byte[] readBody(InputStream body, long maxSize) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64 * 1024];
+    long total = 0;
+    int read;
+    while ((read = body.read(buffer)) >= 0) {
+      total += read;
+      ContentInput.checkSize(total, maxSize);
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static XMLInputFactory createXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    // Requests come from the network; never resolve DTDs or external entities
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  @FunctionalInterface
+  private interface Handler {
+    void handle(HttpExchange exchange, byte[] body) throws IOException;
+  }
+
+  /**
+   * A request that cannot be understood; answered with 400 (or a SOAP fault).
+   */
+  static final class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BadRequestException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package se.oskar.fhir.plugin;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Findings of the last submission of each validation session, for incremental re-validation.
+ * <p>
+ * A client editing the same document submits it again and again under one session id. The
+ * units validated on their own (Bundle entries, the Bundle without its entries and NDJSON
+ * lines) are fingerprinted by their JSON, and their findings are kept with locations relative
+ * to the unit. On the next submission, a unit with a known fingerprint gets its findings
+ * back, moved to its current position, instead of being parsed and validated again. A
+ * session only remembers the units of its last complete submission, and starts over when the
+ * inputs or the IG packages change.
+ */
+final class ValidationSessions {
+
+  private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+  private final Cache<String, Session> sessions;
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong validated = new AtomicLong();
+
+  /**
+   * @param maximumSize maximum number of sessions; the least recently used are dropped
+   * @param idleTimeout time after which an unused session is dropped
+   */
+  ValidationSessions(long maximumSize, Duration idleTimeout) {
+    this.sessions = Caffeine.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(idleTimeout)
+        .build();
+  }
+
+  /**
+   * Fingerprint of a unit's JSON; {@code kind} keeps units validated by different engines
+   * apart.
+   */
+  static HashCode fingerprint(String kind, String json) {
+    return FINGERPRINT.newHasher()
+        .putString(kind, StandardCharsets.UTF_8)
+        .putString(json, StandardCharsets.UTF_8)
+        .hash();
+  }
+
+  /**
+   * Starts a submission of a session.
+   *
+   * @param inputs values of everything besides the content that affects the findings
+   */
+  Run begin(String sessionId, List<String> inputs) {
+    Session session = sessions.get(sessionId, id -> new Session());
+    return new Run(session, inputs);
+  }
+
+  void invalidateAll() {
+    sessions.invalidateAll();
+  }
+
+  /**
+   * Number of units whose findings were taken from an earlier submission.
+   */
+  long reusedCount() {
+    return reused.get();
+  }
+
+  /**
+   * Number of units of session submissions that had to be validated.
+   */
+  long validatedCount() {
+    return validated.get();
+  }
+
+  /**
+   * Units of the last complete submission of a session.
+   */
+  private static final class Session {
+    private volatile Snapshot last = new Snapshot(List.of(), Map.of());
+  }
+
+  private static final class Snapshot {
+    private final List<String> inputs;
+    private final Map<HashCode, Unit> units;
+
+    private Snapshot(List<String> inputs, Map<HashCode, Unit> units) {
+      this.inputs = inputs;
+      this.units = units;
+    }
+  }
+
+  /**
+   * One submission of a session. Lookups may come from any thread.
+   */
+  final class Run {
+    private final Session session;
+    private final List<String> inputs;
+    private final Map<HashCode, Unit> previous;
+    private final Map<HashCode, Unit> current = new ConcurrentHashMap<>();
+
+    private Run(Session session, List<String> inputs) {
+      Snapshot last = session.last;
+      this.session = session;
+      this.inputs = inputs;
+      this.previous = last.inputs.equals(inputs) ? last.units : Map.of();
+    }
+
+    /**
+     * Returns the findings of a unit seen before, located under {@code prefix}, or null
+     * when it has to be validated.
+     */
+    List<TestAssertionReportType> replay(HashCode fingerprint, String prefix) {
+      Unit unit = current.get(fingerprint);
+      if (unit == null) {
+        unit = previous.get(fingerprint);
+        if (unit == null) {
+          validated.incrementAndGet();
+          return null;
+        }
+        current.put(fingerprint, unit);
+      }
+      reused.incrementAndGet();
+      return unit.locate(prefix);
+    }
+
+    /**
+     * Remembers the findings of a validated unit; locations starting with {@code prefix}
+     * are stored relative to it.
+     */
+    void record(HashCode fingerprint, String prefix, List<TestAssertionReportType> findings) {
+      current.put(fingerprint, new Unit(prefix, findings));
+    }
+
+    /**
+     * Ends the submission. An incomplete one, stopped by the finding budget, keeps the
+     * units it did not reach.
+     */
+    void finish(boolean complete) {
+      Map<HashCode, Unit> units = current;
+      if (!complete) {
+        units = new ConcurrentHashMap<>(previous);
+        units.putAll(current);
+      }
+      session.last = new Snapshot(inputs, units);
+    }
+  }
+
+  /**
+   * Findings of one unit, with the unit's location prefix removed.
+   */
+  private static final class Unit {
+    private final String[] types;
+    private final String[] descriptions;
+    private final String[] locations;
+    private final boolean[] relative;
+
+    private Unit(String prefix, List<TestAssertionReportType> findings) {
+      int size = findings.size();
+      types = new String[size];
+      descriptions = new String[size];
+      locations = new String[size];
+      relative = new boolean[size];
+      for (int i = 0; i < size; i++) {
+        TestAssertionReportType item = findings.get(i);
+        String location = item.getLocation();
+        types[i] = item.getType();
+        descriptions[i] = item.getDescription();
+        relative[i] = location != null && location.startsWith(prefix);
+        locations[i] = relative[i] ? location.substring(prefix.length()) : location;
+      }
+    }
+
+    private List<TestAssertionReportType> locate(String prefix) {
+      List<TestAssertionReportType> findings = new ArrayList<>(types.length);
+      for (int i = 0; i < types.length; i++) {
+        findings.add(ReportItems.create(types[i], descriptions[i], relative[i] ? prefix + locations[i] : locations[i]));
+      }
+      return findings;
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package se.oskar.fhir.plugin;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Deployment settings of the validator plugin.
+ * Defaults are taken from system properties so that the plugin can be configured
+ * without code changes when it is loaded by the ITB.
+ */
+public class ValidatorSettings {
+
+  public static final String PROPERTY_PACKAGE_DIRECTORY = "fhir.validator.packageDir";
+  public static final String PROPERTY_INDEX_DIRECTORY = "fhir.validator.indexDir";
+  public static final String PROPERTY_MAX_CONTENT_SIZE = "fhir.validator.maxContentSize";
+  public static final String PROPERTY_BATCH_PARALLELISM = "fhir.validator.batchParallelism";
+  public static final String PROPERTY_WARM_UP = "fhir.validator.warmUp";
+  public static final String PROPERTY_RESULT_CACHE_SIZE = "fhir.validator.resultCacheSize";
+  public static final String PROPERTY_RESULT_CACHE_TTL = "fhir.validator.resultCacheTtlSeconds";
+  public static final String PROPERTY_RESULT_CACHE_MAX_CONTENT_SIZE = "fhir.validator.resultCacheMaxContentSize";
+  public static final String PROPERTY_MAX_SESSIONS = "fhir.validator.maxSessions";
+  public static final String PROPERTY_SESSION_IDLE_TIMEOUT = "fhir.validator.sessionIdleTimeoutSeconds";
+  public static final String PROPERTY_MAX_CONCURRENT_VALIDATIONS = "fhir.validator.maxConcurrentValidations";
+  public static final String PROPERTY_ADMISSION_TIMEOUT = "fhir.validator.admissionTimeoutMillis";
+  public static final String PROPERTY_REQUEST_TIMEOUT = "fhir.validator.requestTimeoutMillis";
+  public static final String PROPERTY_SERVER_PORT = "fhir.validator.server.port";
+  public static final String PROPERTY_SERVER_MAX_CONCURRENT = "fhir.validator.server.maxConcurrentRequests";
+  public static final String PROPERTY_SERVER_QUEUE_TIMEOUT = "fhir.validator.server.queueTimeoutMillis";
+  public static final String PROPERTY_SERVER_MAX_BODY_SIZE = "fhir.validator.server.maxBodySize";
+
+  /** Default maximum content size: 512 MB. */
+  public static final long DEFAULT_MAX_CONTENT_SIZE = 512L * 1024 * 1024;
+
+  /** Default time a cached validation result is kept: 10 minutes. */
+  public static final Duration DEFAULT_RESULT_CACHE_TTL = Duration.ofMinutes(10);
+
+  /** Default maximum size of content whose result is cached: 1 MB. */
+  public static final long DEFAULT_RESULT_CACHE_MAX_CONTENT_SIZE = 1024L * 1024;
+
+  /** Default number of validation sessions kept for incremental re-validation. */
+  public static final long DEFAULT_MAX_SESSIONS = 256;
+
+  /** Default time an unused validation session is kept: 30 minutes. */
+  public static final Duration DEFAULT_SESSION_IDLE_TIMEOUT = Duration.ofMinutes(30);
+
+  /** Default time a request waits for a validation slot: 1 second. */
+  public static final Duration DEFAULT_ADMISSION_TIMEOUT = Duration.ofSeconds(1);
+
+  /** Default port of the standalone validation server. */
+  public static final int DEFAULT_SERVER_PORT = 8080;
+
+  /** Default time a server request waits for a free validation slot: 1 second. */
+  public static final Duration DEFAULT_SERVER_QUEUE_TIMEOUT = Duration.ofSeconds(1);
+
+  /** Default maximum size of a server request body: 16 MB. */
+  public static final long DEFAULT_SERVER_MAX_BODY_SIZE = 16L * 1024 * 1024;
+
+  private Path packageDirectory;
+  private Path indexDirectory;
+  private long maxContentSize = DEFAULT_MAX_CONTENT_SIZE;
+  private int batchParallelism = Runtime.getRuntime().availableProcessors();
+  private boolean warmUp = true;
+  private long resultCacheSize;
+  private Duration resultCacheTtl = DEFAULT_RESULT_CACHE_TTL;
+  private long resultCacheMaxContentSize = DEFAULT_RESULT_CACHE_MAX_CONTENT_SIZE;
+  private long maxSessions = DEFAULT_MAX_SESSIONS;
+  private Duration sessionIdleTimeout = DEFAULT_SESSION_IDLE_TIMEOUT;
+  private int maxConcurrentValidations;
+  private Duration admissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+  private Duration requestTimeout = Duration.ZERO;
+  private ValidationMetrics metrics = ValidationMetrics.NOOP;
+  private int serverPort = DEFAULT_SERVER_PORT;
+  private int serverMaxConcurrentRequests = 2 * Runtime.getRuntime().availableProcessors();
+  private Duration serverQueueTimeout = DEFAULT_SERVER_QUEUE_TIMEOUT;
+  private long serverMaxBodySize = DEFAULT_SERVER_MAX_BODY_SIZE;
+
+  /**
+   * Creates settings from the {@code fhir.validator.*} system properties.
+   */
+  public static ValidatorSettings fromSystemProperties() {
+    ValidatorSettings settings = new ValidatorSettings();
+    String packageDirectory = System.getProperty(PROPERTY_PACKAGE_DIRECTORY);
+    if (packageDirectory != null && !packageDirectory.trim().isEmpty()) {
+      settings.setPackageDirectory(Path.of(packageDirectory.trim()));
+    }
+    String indexDirectory = System.getProperty(PROPERTY_INDEX_DIRECTORY);
+    if (indexDirectory != null && !indexDirectory.trim().isEmpty()) {
+      settings.setIndexDirectory(Path.of(indexDirectory.trim()));
+    }
+    settings.setMaxContentSize(Long.getLong(PROPERTY_MAX_CONTENT_SIZE, DEFAULT_MAX_CONTENT_SIZE));
+    settings.setBatchParallelism(Integer.getInteger(PROPERTY_BATCH_PARALLELISM, settings.getBatchParallelism()));
+    String warmUp = System.getProperty(PROPERTY_WARM_UP);
+    if (warmUp != null && !warmUp.trim().isEmpty()) {
+      settings.setWarmUp(Boolean.parseBoolean(warmUp.trim()));
+    }
+    settings.setResultCacheSize(Long.getLong(PROPERTY_RESULT_CACHE_SIZE, 0));
+    settings.setResultCacheTtl(Duration.ofSeconds(Long.getLong(PROPERTY_RESULT_CACHE_TTL, DEFAULT_RESULT_CACHE_TTL.getSeconds())));
+    settings.setResultCacheMaxContentSize(Long.getLong(PROPERTY_RESULT_CACHE_MAX_CONTENT_SIZE,
+        DEFAULT_RESULT_CACHE_MAX_CONTENT_SIZE));
+    settings.setMaxSessions(Long.getLong(PROPERTY_MAX_SESSIONS, DEFAULT_MAX_SESSIONS));
+    settings.setSessionIdleTimeout(Duration.ofSeconds(Long.getLong(PROPERTY_SESSION_IDLE_TIMEOUT,
+        DEFAULT_SESSION_IDLE_TIMEOUT.getSeconds())));
+    settings.setMaxConcurrentValidations(Integer.getInteger(PROPERTY_MAX_CONCURRENT_VALIDATIONS, 0));
+    settings.setAdmissionTimeout(Duration.ofMillis(Long.getLong(PROPERTY_ADMISSION_TIMEOUT,
+        DEFAULT_ADMISSION_TIMEOUT.toMillis())));
+    settings.setRequestTimeout(Duration.ofMillis(Long.getLong(PROPERTY_REQUEST_TIMEOUT, 0)));
+    settings.setServerPort(Integer.getInteger(PROPERTY_SERVER_PORT, DEFAULT_SERVER_PORT));
+    settings.setServerMaxConcurrentRequests(Integer.getInteger(PROPERTY_SERVER_MAX_CONCURRENT,
+        settings.getServerMaxConcurrentRequests()));
+    settings.setServerQueueTimeout(Duration.ofMillis(Long.getLong(PROPERTY_SERVER_QUEUE_TIMEOUT,
+        DEFAULT_SERVER_QUEUE_TIMEOUT.toMillis())));
+    settings.setServerMaxBodySize(Long.getLong(PROPERTY_SERVER_MAX_BODY_SIZE, DEFAULT_SERVER_MAX_BODY_SIZE));
+    return settings;
+  }
+
+  /**
+   * Directory containing IG packages as NPM {@code .tgz} files; null disables IG loading.
+   */
+  public Path getPackageDirectory() {
+    return packageDirectory;
+  }
+
+  public void setPackageDirectory(Path packageDirectory) {
+    this.packageDirectory = packageDirectory;
+  }
+
+  /**
+   * Directory for the pre-built package indexes; defaults to {@code .index} inside the
+   * package directory.
+   */
+  public Path getIndexDirectory() {
+    if (indexDirectory == null && packageDirectory != null) {
+      return packageDirectory.resolve(".index");
+    }
+    return indexDirectory;
+  }
+
+  public void setIndexDirectory(Path indexDirectory) {
+    this.indexDirectory = indexDirectory;
+  }
+
+  /**
+   * Maximum size in bytes of the content to validate; larger content is rejected before
+   * it is read. Zero or a negative value disables the limit.
+   */
+  public long getMaxContentSize() {
+    return maxContentSize;
+  }
+
+  public void setMaxContentSize(long maxContentSize) {
+    this.maxContentSize = maxContentSize;
+  }
+
+  /**
+   * Number of worker threads used for batch validation, and of the threads shared by all
+   * requests to validate NDJSON lines and additional profiles; defaults to the number of
+   * cores.
+   */
+  public int getBatchParallelism() {
+    return batchParallelism;
+  }
+
+  public void setBatchParallelism(int batchParallelism) {
+    if (batchParallelism < 1) {
+      throw new IllegalArgumentException("batchParallelism must be at least 1");
+    }
+    this.batchParallelism = batchParallelism;
+  }
+
+  /**
+   * Whether the plugin warms up while it is created (model definitions, core
+   * StructureDefinitions, parser and validator), so that the first request does not pay
+   * for it. Enabled by default.
+   */
+  public boolean isWarmUp() {
+    return warmUp;
+  }
+
+  public void setWarmUp(boolean warmUp) {
+    this.warmUp = warmUp;
+  }
+
+  /**
+   * Maximum number of validation results kept in the result cache; zero (the default)
+   * disables the cache.
+   */
+  public long getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  public void setResultCacheSize(long resultCacheSize) {
+    if (resultCacheSize < 0) {
+      throw new IllegalArgumentException("resultCacheSize must not be negative");
+    }
+    this.resultCacheSize = resultCacheSize;
+  }
+
+  /**
+   * How long a cached validation result is kept after it was stored.
+   */
+  public Duration getResultCacheTtl() {
+    return resultCacheTtl;
+  }
+
+  public void setResultCacheTtl(Duration resultCacheTtl) {
+    if (resultCacheTtl == null || resultCacheTtl.isNegative() || resultCacheTtl.isZero()) {
+      throw new IllegalArgumentException("resultCacheTtl must be positive");
+    }
+    this.resultCacheTtl = resultCacheTtl;
+  }
+
+  /**
+   * Maximum size in bytes of content whose result is cached. The cache key is a digest of
+   * the content, so cached content is read twice, once for the key and once to validate
+   * it; larger content is validated without the cache, without being read for a key.
+   * Zero or a negative value disables the limit.
+   */
+  public long getResultCacheMaxContentSize() {
+    return resultCacheMaxContentSize;
+  }
+
+  public void setResultCacheMaxContentSize(long resultCacheMaxContentSize) {
+    this.resultCacheMaxContentSize = resultCacheMaxContentSize;
+  }
+
+  /**
+   * Maximum number of validation sessions whose findings are kept for incremental
+   * re-validation; the least recently used are dropped. Zero disables sessions.
+   */
+  public long getMaxSessions() {
+    return maxSessions;
+  }
+
+  public void setMaxSessions(long maxSessions) {
+    if (maxSessions < 0) {
+      throw new IllegalArgumentException("maxSessions must not be negative");
+    }
+    this.maxSessions = maxSessions;
+  }
+
+  /**
+   * How long a validation session is kept after its last submission.
+   */
+  public Duration getSessionIdleTimeout() {
+    return sessionIdleTimeout;
+  }
+
+  public void setSessionIdleTimeout(Duration sessionIdleTimeout) {
+    if (sessionIdleTimeout == null || sessionIdleTimeout.isNegative() || sessionIdleTimeout.isZero()) {
+      throw new IllegalArgumentException("sessionIdleTimeout must be positive");
+    }
+    this.sessionIdleTimeout = sessionIdleTimeout;
+  }
+
+  /**
+   * Maximum number of requests validated at the same time by one plugin instance; further
+   * requests wait for up to {@link #getAdmissionTimeout()}. Zero (the default) for no limit.
+   */
+  public int getMaxConcurrentValidations() {
+    return maxConcurrentValidations;
+  }
+
+  public void setMaxConcurrentValidations(int maxConcurrentValidations) {
+    if (maxConcurrentValidations < 0) {
+      throw new IllegalArgumentException("maxConcurrentValidations must not be negative");
+    }
+    this.maxConcurrentValidations = maxConcurrentValidations;
+  }
+
+  /**
+   * How long a request waits for a validation slot before it is rejected as overloaded;
+   * zero rejects it at once.
+   */
+  public Duration getAdmissionTimeout() {
+    return admissionTimeout;
+  }
+
+  public void setAdmissionTimeout(Duration admissionTimeout) {
+    if (admissionTimeout == null || admissionTimeout.isNegative()) {
+      throw new IllegalArgumentException("admissionTimeout must not be negative");
+    }
+    this.admissionTimeout = admissionTimeout;
+  }
+
+  /**
+   * Time a request may take from its arrival, including the wait for a slot, after which
+   * validation stops and the request is reported as timed out. Zero (the default) for no limit.
+   */
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  public void setRequestTimeout(Duration requestTimeout) {
+    if (requestTimeout == null || requestTimeout.isNegative()) {
+      throw new IllegalArgumentException("requestTimeout must not be negative");
+    }
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Receiver of per-phase timings and result counts; {@link ValidationMetrics#NOOP} by default.
+   */
+  public ValidationMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(ValidationMetrics metrics) {
+    this.metrics = metrics == null ? ValidationMetrics.NOOP : metrics;
+  }
+
+  /**
+   * Port the standalone {@link ValidationServer} listens on; zero picks a free port.
+   */
+  public int getServerPort() {
+    return serverPort;
+  }
+
+  public void setServerPort(int serverPort) {
+    if (serverPort < 0 || serverPort > 65535) {
+      throw new IllegalArgumentException("serverPort must be between 0 and 65535");
+    }
+    this.serverPort = serverPort;
+  }
+
+  /**
+   * Number of requests the server validates at the same time; further requests wait for
+   * up to {@link #getServerQueueTimeout()}. Defaults to twice the number of cores.
+   */
+  public int getServerMaxConcurrentRequests() {
+    return serverMaxConcurrentRequests;
+  }
+
+  public void setServerMaxConcurrentRequests(int serverMaxConcurrentRequests) {
+    if (serverMaxConcurrentRequests < 1) {
+      throw new IllegalArgumentException("serverMaxConcurrentRequests must be at least 1");
+    }
+    this.serverMaxConcurrentRequests = serverMaxConcurrentRequests;
+  }
+
+  /**
+   * How long a server request waits for a validation slot before it is turned away with
+   * 503 Service Unavailable.
+   */
+  public Duration getServerQueueTimeout() {
+    return serverQueueTimeout;
+  }
+
+  public void setServerQueueTimeout(Duration serverQueueTimeout) {
+    if (serverQueueTimeout == null || serverQueueTimeout.isNegative()) {
+      throw new IllegalArgumentException("serverQueueTimeout must not be negative");
+    }
+    this.serverQueueTimeout = serverQueueTimeout;
+  }
+
+  /**
+   * Maximum size in bytes of a server request body. The server buffers each body in
+   * memory, so this bounds what {@link #getServerMaxConcurrentRequests()} requests can hold
+   * at once; larger bodies are rejected with 413. Content up to
+   * {@link #getMaxContentSize()} can still be validated from a file through the plugin.
+   * Zero or a negative value leaves only the content size limit.
+   */
+  public long getServerMaxBodySize() {
+    return serverMaxBodySize;
+  }
+
+  public void setServerMaxBodySize(long serverMaxBodySize) {
+    this.serverMaxBodySize = serverMaxBodySize;
+  }
+}
@@ -0,0 +1,175 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTest {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRequestsBeyondTheLimitAreRejectedAsOverloaded() throws Exception {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setMaxConcurrentValidations(1);
+        settings.setAdmissionTimeout(Duration.ofMillis(50));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        CountDownLatch opened = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ContentInput.Source blocking = maxSize -> {
+            opened.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ContentInput.ofString(PATIENT).open(maxSize);
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TAR> first = executor.submit(() -> plugin.validate(new HashMap<>(), blocking).getReport());
+            assertTrue(opened.await(10, TimeUnit.SECONDS));
+
+            TAR rejected = plugin.validate(input("fr"), ContentInput.ofString(PATIENT)).getReport();
+            assertEquals(TestResultType.UNDEFINED, rejected.getResult());
+            assertEquals(1, rejected.getCounters().getNrOfErrors());
+            assertTrue(rejected.getReports().get(0).getDescription().startsWith("Validation refusée"));
+
+            release.countDown();
+            assertEquals(TestResultType.SUCCESS, first.get(10, TimeUnit.SECONDS).getResult());
+            // The slot is free again
+            assertEquals(TestResultType.SUCCESS, plugin.validate(input("en"), ContentInput.ofString(PATIENT)).getReport().getResult());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testValidationStopsOnceTheRequestTimedOut() {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setRequestTimeout(Duration.ofMillis(20));
+        settings.setResultCacheSize(10);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[");
+        for (int i = 0; i < 5; i++) {
+            bundle.append(i == 0 ? "" : ",").append("{\"resource\":").append(PATIENT).append('}');
+        }
+        String content = bundle.append("]}").toString();
+        ContentInput.Source slow = maxSize -> {
+            try {
+                Thread.sleep(40);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return ContentInput.ofString(content).open(maxSize);
+        };
+
+        Map<String, Object> streaming = input("en");
+        streaming.put("bundleStreaming", "true");
+        TAR report = plugin.validate(streaming, slow).getReport();
+        assertEquals(TestResultType.UNDEFINED, report.getResult());
+        List<TestAssertionReportType> items = report.getReports();
+        assertTrue(items.get(items.size() - 1).getDescription().contains("20 ms"));
+
+        // Incomplete reports are not cached
+        assertEquals(TestResultType.UNDEFINED, plugin.validate(input("en"), slow).getReport().getResult());
+        assertEquals(0, plugin.getResultCacheHits());
+
+        settings.setRequestTimeout(Duration.ZERO);
+        assertEquals(TestResultType.SUCCESS, new FhirJsonValidatorPlugin(settings).validate(streaming, slow).getReport().getResult());
+    }
+
+    @Test
+    void testRequestDoesNotWaitForAnInstanceValidationPastItsTimeout() throws Exception {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        IgPackageStoreTest.writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        ValidatorSettings settings = IgPackageStoreTest.settings(packageDir);
+        settings.setRequestTimeout(Duration.ofMillis(1500));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        Map<String, Object> input = input("en");
+        input.put("ig", "example.fhir.ig");
+        input.put("profile", IgPackageStoreTest.PROFILE_URL);
+        // Builds the engine, so that the time goes to validating the resource below
+        assertEquals(TestResultType.FAILURE, plugin.validate(input, ContentInput.ofString(PATIENT)).getReport().getResult());
+
+        // Parsed in a fraction of the timeout, validated in several times it
+        StringBuilder patient = new StringBuilder("{\"resourceType\":\"Patient\",\"id\":\"example\",\"name\":[");
+        for (int i = 0; i < 40000; i++) {
+            patient.append(i == 0 ? "" : ",").append("{\"family\":\"F").append(i).append("\",\"given\":[\"a\",\"b\"]}");
+        }
+        String content = patient.append("]}").toString();
+
+        long start = System.nanoTime();
+        TAR report = plugin.validate(input, ContentInput.ofString(content)).getReport();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis < 2500, elapsedMillis + " ms");
+        assertEquals(TestResultType.UNDEFINED, report.getResult());
+        List<TestAssertionReportType> items = report.getReports();
+        assertTrue(items.get(items.size() - 1).getDescription().contains("1500 ms"), items.get(items.size() - 1).getDescription());
+    }
+
+    @Test
+    void testSeveralProfilesTakeOneValidationSlot() throws Exception {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        IgPackageStoreTest.writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        ValidatorSettings settings = IgPackageStoreTest.settings(packageDir);
+        settings.setMaxConcurrentValidations(2);
+        settings.setAdmissionTimeout(Duration.ZERO);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        Map<String, Object> profiles = input("en");
+        profiles.put("ig", "example.fhir.ig");
+        profiles.put("profile", List.of("http://hl7.org/fhir/StructureDefinition/Patient", IgPackageStoreTest.PROFILE_URL));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // One client validates against several profiles while another sends single requests;
+            // together they never hold more than the two slots
+            Future<?> multi = executor.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    // The example profile requires a name
+                    assertEquals(TestResultType.FAILURE,
+                        plugin.validate(profiles, ContentInput.ofString(PATIENT)).getReport().getResult());
+                }
+            });
+            while (!multi.isDone()) {
+                assertEquals(TestResultType.SUCCESS, plugin.validate(input("en"), ContentInput.ofString(PATIENT)).getReport().getResult());
+            }
+            multi.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Map<String, Object> input(String locale) {
+        Map<String, Object> input = new HashMap<>();
+        input.put("locale", locale);
+        return input;
+    }
+}
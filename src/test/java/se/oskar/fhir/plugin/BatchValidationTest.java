@@ -0,0 +1,134 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.BatchValidationResponse;
+import com.gitb.vs.ValidateRequest;
+import com.gitb.vs.ValidationResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BatchValidationTest {
+
+    private static final String VALID_PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+    private static final String INVALID_JSON = "{\"resourceType\":\"Patient\",\"id\":";
+
+    private FhirJsonValidatorPlugin plugin;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    void setUp() {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setBatchParallelism(4);
+        plugin = new FhirJsonValidatorPlugin(settings);
+    }
+
+    @Test
+    void testOnlySuccessCountsAsSuccess() {
+        List<ValidationResponse> responses = new ArrayList<>();
+        for (TestResultType result : List.of(TestResultType.SUCCESS, TestResultType.WARNING,
+                TestResultType.FAILURE, TestResultType.UNDEFINED, TestResultType.UNDEFINED)) {
+            TAR report = new TAR();
+            report.setResult(result);
+            ValidationResponse response = new ValidationResponse();
+            response.setReport(report);
+            responses.add(response);
+        }
+
+        BatchValidationResponse batch = BatchValidationResponse.of(responses, 0);
+
+        assertEquals(5, batch.getTotalCount());
+        assertEquals(1, batch.getSuccessCount());
+        assertEquals(1, batch.getWarningCount());
+        assertEquals(1, batch.getFailureCount());
+        assertEquals(2, batch.getUndefinedCount());
+    }
+
+    @Test
+    void testBatchKeepsRequestOrderAndSummarizes() throws IOException {
+        List<ValidateRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Path file = tempDir.resolve("resource-" + i + ".json");
+            Files.writeString(file, i % 5 == 0 ? INVALID_JSON : VALID_PATIENT);
+            Map<String, Object> input = new HashMap<>();
+            input.put("contentToValidate", file.toString());
+            requests.add(new ValidateRequest(input));
+        }
+
+        BatchValidationResponse batch = plugin.validateBatch(requests);
+
+        assertEquals(20, batch.getTotalCount());
+        assertEquals(16, batch.getSuccessCount());
+        assertEquals(4, batch.getFailureCount());
+        assertEquals(4, batch.getErrorFindings());
+        for (int i = 0; i < 20; i++) {
+            TestResultType expected = i % 5 == 0 ? TestResultType.FAILURE : TestResultType.SUCCESS;
+            assertEquals(expected, batch.getResponses().get(i).getReport().getResult(), "item " + i);
+        }
+    }
+
+    @Test
+    void testDirectoryBatch() throws IOException {
+        Files.writeString(tempDir.resolve("a.json"), VALID_PATIENT);
+        Files.writeString(tempDir.resolve("b.json"), INVALID_JSON);
+        Files.writeString(tempDir.resolve("notes.txt"), "not a resource");
+
+        BatchValidationResponse batch = plugin.validateDirectory(tempDir, new HashMap<>());
+
+        assertEquals(2, batch.getTotalCount());
+        assertEquals(TestResultType.SUCCESS, batch.getResponses().get(0).getReport().getResult());
+        assertEquals(TestResultType.FAILURE, batch.getResponses().get(1).getReport().getResult());
+    }
+
+    @Test
+    void testNdjsonFileBatch() throws IOException {
+        Path ndjson = tempDir.resolve("export.ndjson");
+        Files.writeString(ndjson, VALID_PATIENT + "\n\n" + INVALID_JSON + "\n" + VALID_PATIENT + "\n");
+
+        BatchValidationResponse batch = plugin.validateNdjsonFile(ndjson, new HashMap<>());
+
+        assertEquals(3, batch.getTotalCount());
+        assertEquals(2, batch.getSuccessCount());
+        assertEquals(1, batch.getFailureCount());
+    }
+
+    @Test
+    void testLargeNdjsonFileBatchIsStreamedAndBypassesAdmissionControl() throws IOException {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setBatchParallelism(4);
+        settings.setMaxConcurrentValidations(1);
+        settings.setAdmissionTimeout(Duration.ZERO);
+        settings.setMaxContentSize(100);
+        FhirJsonValidatorPlugin limited = new FhirJsonValidatorPlugin(settings);
+
+        // More lines than one window, with one line over the maximum content size
+        StringBuilder ndjson = new StringBuilder();
+        for (int line = 1; line <= 600; line++) {
+            ndjson.append(line == 300 ? "{\"resourceType\":\"Patient\",\"id\":\"" + "x".repeat(200) + "\"}" : VALID_PATIENT)
+                .append('\n');
+        }
+        Path file = tempDir.resolve("large.ndjson");
+        Files.writeString(file, ndjson);
+
+        BatchValidationResponse batch = limited.validateNdjsonFile(file, new HashMap<>());
+
+        assertEquals(600, batch.getTotalCount());
+        assertEquals(599, batch.getSuccessCount());
+        assertEquals(1, batch.getFailureCount());
+        assertTrue(batch.getResponses().get(299).getReport().getReports().get(0).getDescription().contains("234"),
+            batch.getResponses().get(299).getReport().getReports().get(0).getDescription());
+    }
+}
@@ -0,0 +1,97 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.ValidationResponse;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives one shared plugin instance from many threads at once.
+ */
+public class ConcurrencyStressTest {
+
+    private static final int REQUESTS_PER_THREAD = 200;
+    private static final String VALID_PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"%d\",\"name\":[{\"family\":\"Doe\",\"given\":[\"John\"]}],"
+        + "\"gender\":\"male\",\"birthDate\":\"1980-01-01\"}";
+    private static final String INVALID_PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"%d\",\"gender\":";
+
+    private final FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin();
+
+    @Test
+    void testConcurrentRequestsGetTheirOwnResults() throws Exception {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        // Every result must match its own input, whatever the interleaving
+        assertEquals(threads * REQUESTS_PER_THREAD, run(threads));
+    }
+
+    @Test
+    void testThroughputScalesWithCores() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        assumeTrue(cores >= 4, "Scaling can only be observed on 4 or more cores");
+
+        run(cores); // warm up
+        double single = throughput(1);
+        double parallel = throughput(cores);
+
+        // Far below linear to stay stable on shared CI machines, but enough to catch a global lock
+        assertTrue(parallel > single * Math.min(2.0, cores / 2.0),
+            "Expected throughput to scale with cores: " + single + " vs " + parallel);
+    }
+
+    private double throughput(int threads) throws Exception {
+        long start = System.nanoTime();
+        int completed = run(threads);
+        return completed / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Runs {@link #REQUESTS_PER_THREAD} requests on each of {@code threads} threads, started
+     * together, and checks every result.
+     */
+    private int run(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    int checked = 0;
+                    for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                        boolean valid = (thread + i) % 7 != 0;
+                        String json = String.format(valid ? VALID_PATIENT : INVALID_PATIENT, i);
+                        Map<String, Object> input = new HashMap<>();
+                        input.put("contentToValidate", "in-memory");
+
+                        ValidationResponse response = plugin.validate(input, ContentInput.ofString(json));
+
+                        TestResultType expected = valid ? TestResultType.SUCCESS : TestResultType.FAILURE;
+                        assertEquals(expected, response.getReport().getResult());
+                        checked++;
+                    }
+                    return checked;
+                }));
+            }
+            start.countDown();
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += future.get(2, TimeUnit.MINUTES);
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -2,7 +2,9 @@ package se.oskar.fhir.plugin;
 
 import com.gitb.vs.ValidateRequest;
 import com.gitb.vs.ValidationResponse;
+import com.gitb.types.v1.TAR;
 import com.gitb.types.v1.TestResultType;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.io.TempDir;
@@ -10,10 +12,15 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class EnhancedValidatorTest {
 
@@ -96,7 +103,8 @@ public class EnhancedValidatorTest {
         ValidateRequest request = new ValidateRequest(input);
         ValidationResponse response = plugin.validate(request);
         
-        assertEquals(TestResultType.SUCCESS, response.getReport().getResult());
+        // The US Core package is not available offline, so the IG cannot be resolved
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
         
         // Verify that IG and profile info is included in reports
         boolean hasIGInfo = response.getReport().getReports().stream()
@@ -106,6 +114,77 @@ public class EnhancedValidatorTest {
         
         assertTrue(hasIGInfo, "Should include IG information");
         assertTrue(hasProfileInfo, "Should include profile information");
+
+        boolean hasIGError = response.getReport().getReports().stream()
+            .anyMatch(r -> "ERROR".equals(r.getType())
+                && r.getDescription().equals("Implementation Guide package not available offline: http://hl7.org/fhir/us/core/ImplementationGuide/hl7.fhir.us.core"));
+        assertTrue(hasIGError, "Should report the unresolved IG");
+    }
+
+    @Test
+    void testValidationEnginesAreCachedPerIgAndProfile() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        ValidationEngineCache cache = new ValidationEngineCache(FhirContexts.r4(),
+            IgPackageStore.open(IgPackageStoreTest.settings(packageDir)));
+
+        ValidationEngine first = cache.getEngine("example.fhir.ig", IgPackageStoreTest.PROFILE_URL);
+        ValidationEngine second = cache.getEngine("example.fhir.ig", IgPackageStoreTest.PROFILE_URL);
+        ValidationEngine igOnly = cache.getEngine("example.fhir.ig", null);
+
+        assertSame(first, second);
+        assertNotSame(first, igOnly);
+        assertSame(first.getValidationSupport(), igOnly.getValidationSupport());
+        assertEquals(2, cache.size());
+
+        // Unresolved IGs and profiles are request inputs and are not kept
+        ValidationEngine unknownIg = cache.getEngine("http://example.org/ig", null);
+        assertFalse(unknownIg.isIgResolved());
+        assertNotSame(unknownIg, cache.getEngine("http://example.org/ig", null));
+        ValidationEngine unknownProfile = cache.getEngine("example.fhir.ig", "http://example.org/profile");
+        assertFalse(unknownProfile.isProfileResolved());
+        assertSame(first.getValidationSupport(), unknownProfile.getValidationSupport());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testRandomIgInputsDoNotGrowTheEngineCache() {
+        ValidationEngineCache cache = new ValidationEngineCache(FhirContexts.r4());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(cache.getEngine("example.random.ig" + i, "http://example.org/profile" + i).isIgResolved());
+        }
+        assertEquals(0, cache.size());
+        assertTrue(cache.getEngine(null, null).isIgResolved());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testUnknownIgReusesTheChainBuiltWithoutAnIg() {
+        ValidationEngineCache cache = new ValidationEngineCache(FhirContexts.r4());
+
+        ValidationEngine first = cache.getEngine("example.unknown.ig", null);
+        ValidationEngine second = cache.getEngine("example.unknown.ig", null);
+
+        assertFalse(first.isIgResolved());
+        assertNotSame(first, second);
+        // The support chain is built once and shared with the engine without an IG
+        assertSame(first.getValidationSupport(), second.getValidationSupport());
+        assertSame(first.getValidationSupport(), cache.getEngine(null, null).getValidationSupport());
+    }
+
+    @Test
+    void testPluginsShareTheWarmedUpContext() {
+        FhirJsonValidatorPlugin other = new FhirJsonValidatorPlugin();
+
+        assertSame(plugin.getFhirContext(), other.getFhirContext());
+        // Startup time covers the warm-up; the context itself was created by the first plugin
+        assertTrue(other.getStartupTimeMillis() >= 0);
+        assertTrue(plugin.getStartupTimeMillis() >= 0);
+
+        ValidatorSettings coldSettings = new ValidatorSettings();
+        coldSettings.setWarmUp(false);
+        FhirJsonValidatorPlugin cold = new FhirJsonValidatorPlugin(coldSettings);
+        assertSame(plugin.getFhirContext(), cold.getFhirContext());
     }
 
     @Test
@@ -146,6 +225,92 @@ public class EnhancedValidatorTest {
         assertEquals(TestResultType.FAILURE, response.getReport().getResult());
     }
     
+    @Test
+    void testSyntaxErrorIsLocated() throws IOException {
+        Path file = tempDir.resolve("syntax-error-test.json");
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\n  \"id\":\"example\"\n  \"active\":true}");
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertEquals("contentToValidate:3:4", response.getReport().getReports().get(0).getLocation());
+    }
+
+    @Test
+    void testContentThatIsNotAResourceIsRejectedBeforeParsing() {
+        TAR noType = validateInline("{\"id\":\"a\",\"name\":[{\"family\":\"Doe\"}]}", "application/fhir+json");
+        assertEquals(TestResultType.FAILURE, noType.getResult());
+        assertEquals("contentToValidate:1:1", noType.getReports().get(0).getLocation());
+        assertTrue(noType.getReports().get(0).getDescription().contains("resourceType"));
+
+        TAR unknown = validateInline("{\"id\":\"a\",\n  \"resourceType\":\"Widget\"}", "application/fhir+json");
+        assertEquals("contentToValidate:2:18", unknown.getReports().get(0).getLocation());
+        assertTrue(unknown.getReports().get(0).getDescription().contains("Widget"));
+
+        TAR array = validateInline("[{\"resourceType\":\"Patient\"}]", "application/fhir+json");
+        assertTrue(array.getReports().get(0).getDescription().endsWith("found an array"));
+        Map<String, Object> french = new HashMap<>();
+        french.put("contentToValidate", "[]");
+        french.put("locale", "fr");
+        assertTrue(plugin.validate(new ValidateRequest(french)).getReport().getReports().get(0).getDescription()
+            .endsWith("trouvé un tableau"));
+
+        TAR trailing = validateInline("{\"resourceType\":\"Patient\"}\n{}", "application/fhir+json");
+        assertEquals(TestResultType.FAILURE, trailing.getResult());
+        assertEquals("contentToValidate:2:1", trailing.getReports().get(0).getLocation());
+
+        // Syntax errors after resourceType are found by the check as well
+        TAR truncated = validateInline("{\"resourceType\":\"Patient\",\"id\":", "application/fhir+json");
+        assertEquals(TestResultType.FAILURE, truncated.getResult());
+        assertTrue(truncated.getReports().get(0).getDescription().startsWith("Failed to parse JSON as FHIR resource"));
+    }
+
+    @Test
+    void testLenientParsingReportsEveryProblem() throws IOException {
+        Path file = tempDir.resolve("lenient-test.json");
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"x\",\"foo\":1,\n"
+            + "\"name\":[{\"family\":\"A\",\"bar\":true}],\n"
+            + "\"gender\":\"nope\",\"birthDate\":\"19x\",\n"
+            + "\"active\":\"yes\"}");
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        input.put("lenientParsing", "true");
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        List<String> problems = response.getReport().getReports().stream()
+            .filter(r -> "ERROR".equals(r.getType()) || "WARNING".equals(r.getType()))
+            .map(r -> r.getType() + " " + r.getLocation() + " " + r.getDescription())
+            .collect(Collectors.toList());
+        assertEquals(List.of(
+            "WARNING contentToValidate:1:36 Unknown element 'foo'",
+            "WARNING contentToValidate:2:23 Unknown element 'bar'",
+            "ERROR contentToValidate:3:1 Invalid value 'nope' for element 'gender': Unknown AdministrativeGender code 'nope'",
+            "ERROR contentToValidate:3:17 Invalid value '19x' for element 'birthDate': Invalid date/time format: \"19x\"",
+            "ERROR contentToValidate:4:1 Invalid value 'yes' for element 'active': Invalid boolean string: 'yes'"), problems);
+        assertFalse(response.getReport().getReports().stream().anyMatch(r -> r.getDescription().contains("successfully parsed")));
+
+        // Unknown elements alone are warnings; the content still parses
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"x\",\"foo\":1}");
+        ValidationResponse warned = plugin.validate(new ValidateRequest(input));
+        assertEquals(TestResultType.WARNING, warned.getReport().getResult());
+        assertTrue(warned.getReport().getReports().stream().anyMatch(r -> r.getDescription().contains("successfully parsed")));
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"x\",\"foo\":1,\n"
+            + "\"name\":[{\"family\":\"A\",\"bar\":true}],\n"
+            + "\"gender\":\"nope\",\"birthDate\":\"19x\",\n"
+            + "\"active\":\"yes\"}");
+
+        // Without the input, the same content fails on the first invalid value
+        input.remove("lenientParsing");
+        response = plugin.validate(new ValidateRequest(input));
+        assertEquals(1, response.getReport().getReports().stream().filter(r -> "ERROR".equals(r.getType())).count());
+    }
+
     @Test
     void testITBStandardInputs() throws IOException {
         // Test that the plugin handles standard ITB inputs correctly
@@ -168,4 +333,282 @@ public class EnhancedValidatorTest {
         
         assertEquals(TestResultType.SUCCESS, response.getReport().getResult());
     }
+
+    @Test
+    void testContentLargerThanMaximumIsRejected() throws IOException {
+        String jsonContent = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+        File tempFile = tempDir.resolve("too-large-test.json").toFile();
+        Files.write(tempFile.toPath(), jsonContent.getBytes());
+
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setMaxContentSize(16);
+        FhirJsonValidatorPlugin limitedPlugin = new FhirJsonValidatorPlugin(settings);
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", tempFile.getAbsolutePath());
+
+        ValidationResponse response = limitedPlugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> r.getDescription().contains("exceeds the maximum")));
+    }
+
+    @Test
+    void testInlineContentIsValidatedInPlace() {
+        String json = "{\"resourceType\":\"Patient\",\"id\":\"example\",\"gender\":\"male\"}";
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        String base64 = Base64.getMimeEncoder(16, "\r\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(bytes);
+        ByteBuffer slice = ByteBuffer.wrap(("xx" + json + "yy").getBytes(StandardCharsets.UTF_8), 2, bytes.length).slice();
+
+        for (Object content : List.of("  " + json, base64, bytes, slice)) {
+            Map<String, Object> input = new HashMap<>();
+            input.put("contentToValidate", content);
+
+            ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+            assertEquals(TestResultType.SUCCESS, response.getReport().getResult(), content.getClass().getSimpleName());
+        }
+        // The buffer is read through a view and can be validated again
+        assertEquals(bytes.length, slice.remaining());
+
+        Map<String, Object> invalid = new HashMap<>();
+        invalid.put("contentToValidate", Base64.getEncoder().encodeToString("{\"resourceType\":\"Patient\",".getBytes(StandardCharsets.UTF_8)));
+        ValidationResponse response = plugin.validate(new ValidateRequest(invalid));
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertTrue(response.getReport().getReports().get(0).getDescription().contains("parse"));
+    }
+
+    @Test
+    void testContentDetectionPrefersFilesOverBase64() throws IOException {
+        // "abcd" is valid base64, but names an existing file here and a missing one otherwise
+        Path file = tempDir.resolve("abcd");
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"example\"}");
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        assertEquals(TestResultType.SUCCESS, plugin.validate(new ValidateRequest(input)).getReport().getResult());
+
+        input.put("contentToValidate", "abcd");
+        ValidationResponse missing = plugin.validate(new ValidateRequest(input));
+        assertEquals(TestResultType.FAILURE, missing.getReport().getResult());
+        assertTrue(missing.getReport().getReports().get(0).getDescription().contains("abcd"));
+    }
+
+    @Test
+    void testInlineBase64IsCheckedAgainstTheMaximumSize() {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setWarmUp(false);
+        settings.setMaxContentSize(32);
+        FhirJsonValidatorPlugin limited = new FhirJsonValidatorPlugin(settings);
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", Base64.getEncoder().encodeToString(
+            "{\"resourceType\":\"Patient\",\"id\":\"example\",\"gender\":\"male\"}".getBytes(StandardCharsets.UTF_8)));
+
+        ValidationResponse response = limited.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertTrue(response.getReport().getReports().get(0).getDescription().contains("exceeds the maximum"));
+    }
+
+    @Test
+    void testInlineStringIsCheckedAgainstTheMaximumSizeInBytes() throws IOException {
+        // 40 chars, 60 bytes in UTF-8
+        String json = "{\"resourceType\":\"Patient\",\"id\":\"" + "é".repeat(20) + "\"}";
+        int bytes = json.getBytes(StandardCharsets.UTF_8).length;
+
+        assertEquals(bytes, ContentInput.utf8Length(json));
+        assertEquals(4, ContentInput.utf8Length("😀"));
+        ContentInput.ofString(json).open(bytes).close();
+        assertThrows(ContentInput.ContentTooLargeException.class, () -> ContentInput.ofString(json).open(json.length()));
+    }
+
+    @Test
+    void testFhirVersionIsSelectedFromTheContentType() {
+        // ActorDefinition only exists in R5
+        String actor = "{\"resourceType\":\"ActorDefinition\",\"id\":\"a\",\"status\":\"active\",\"type\":\"person\"}";
+
+        assertEquals(TestResultType.FAILURE, validateInline(actor, "application/fhir+json").getResult());
+        assertEquals(TestResultType.SUCCESS, validateInline(actor, "application/fhir+json; fhirVersion=5.0").getResult());
+        assertSame(FhirContexts.forVersion(FhirVersionEnum.R5), FhirContexts.forVersion(FhirVersionEnum.R5));
+        assertSame(plugin.getFhirContext(), FhirContexts.forVersion(FhirVersionEnum.R4));
+
+        TAR unsupported = validateInline(actor, "application/fhir+json; fhirVersion=3.0");
+        assertEquals(TestResultType.FAILURE, unsupported.getResult());
+        assertEquals("contentType:0:0", unsupported.getReports().get(0).getLocation());
+        assertTrue(unsupported.getReports().get(0).getDescription().contains("3.0"));
+
+        TAR r4b = validateInline("{\"resourceType\":\"Patient\",\"id\":\"a\"}", "application/fhir+json; fhirVersion=4.3");
+        if (FhirVersionEnum.R4B.isPresentOnClasspath()) {
+            assertEquals(TestResultType.SUCCESS, r4b.getResult());
+        } else {
+            assertEquals(TestResultType.FAILURE, r4b.getResult());
+            assertTrue(r4b.getReports().get(0).getDescription().contains("R4B is not available"));
+        }
+    }
+
+    @Test
+    void testFhirVersionIsSniffedFromMetaProfile() {
+        String actor = "{\"resourceType\":\"ActorDefinition\",\"id\":\"a\","
+            + "\"meta\":{\"profile\":[\"http://hl7.org/fhir/StructureDefinition/ActorDefinition|5.0.0\"]},"
+            + "\"status\":\"active\",\"type\":\"person\"}";
+
+        assertEquals(TestResultType.SUCCESS, validateInline(actor, "application/fhir+json").getResult());
+        // The MIME parameter wins over the profiles
+        assertEquals(TestResultType.FAILURE, validateInline(actor, "application/fhir+json; fhirVersion=4.0").getResult());
+    }
+
+    private TAR validateInline(String json, String contentType) {
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", json);
+        input.put("contentType", contentType);
+        return plugin.validate(new ValidateRequest(input)).getReport();
+    }
+
+    @Test
+    void testLargeContentIsReadThroughMemoryMap() throws IOException {
+        // Padding pushes the file over the memory-map threshold without making it expensive to parse
+        String jsonContent = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+        byte[] padding = new byte[(int) ContentInput.MEMORY_MAP_THRESHOLD];
+        java.util.Arrays.fill(padding, (byte) ' ');
+        Path largeFile = tempDir.resolve("large-test.json");
+        Files.write(largeFile, jsonContent.getBytes());
+        Files.write(largeFile, padding, java.nio.file.StandardOpenOption.APPEND);
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", largeFile.toString());
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.SUCCESS, response.getReport().getResult());
+    }
+
+    @Test
+    void testBundleStreamingReportsEntryLocations() throws IOException {
+        String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["
+            + "{\"fullUrl\":\"urn:uuid:1\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"a\"}},"
+            + "{\"fullUrl\":\"urn:uuid:2\",\"resource\":{\"resourceType\":\"NotAResource\",\"id\":\"b\"}},"
+            + "{\"fullUrl\":\"urn:uuid:3\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"c\",\"status\":\"final\"}}]}";
+        Path bundleFile = tempDir.resolve("bundle-streaming-test.json");
+        Files.write(bundleFile, bundle.getBytes());
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", bundleFile.toString());
+        input.put("bundleStreaming", "true");
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertEquals(1, response.getReport().getReports().stream().filter(r -> "ERROR".equals(r.getType())).count());
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> "ERROR".equals(r.getType()) && "Bundle.entry[1].resource".equals(r.getLocation())));
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> r.getDescription().contains("entry by entry")));
+    }
+
+    @Test
+    void testBundleStreamingStopsAtTheFindingBudget() throws IOException {
+        StringBuilder bundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[");
+        for (int i = 0; i < 50; i++) {
+            bundle.append(i == 0 ? "" : ",").append("{\"resource\":{\"resourceType\":\"NotAResource\"}}");
+        }
+        Path bundleFile = tempDir.resolve("bundle-budget-test.json");
+        Files.writeString(bundleFile, bundle.append("]}").toString());
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", bundleFile.toString());
+        input.put("bundleStreaming", "true");
+        input.put("maxFindings", "2");
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertEquals(2, response.getReport().getReports().stream().filter(r -> "ERROR".equals(r.getType())).count());
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> r.getDescription().equals("Bundle validated entry by entry: 2 entries")));
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> "maxFindings:0:0".equals(r.getLocation()) && r.getDescription().contains("truncated")));
+    }
+
+    @Test
+    void testInvalidMaxFindingsIsReported() throws IOException {
+        Path file = tempDir.resolve("max-findings-patient.json");
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"example\"}");
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        input.put("maxFindings", "many");
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertEquals("maxFindings:0:0", response.getReport().getReports().get(0).getLocation());
+    }
+
+    @Test
+    void testBundleStreamingFallsBackForOtherResources() throws IOException {
+        String jsonContent = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+        Path file = tempDir.resolve("bundle-streaming-patient.json");
+        Files.write(file, jsonContent.getBytes());
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        input.put("bundleStreaming", "true");
+
+        ValidationResponse response = plugin.validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.SUCCESS, response.getReport().getResult());
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> r.getDescription().contains("successfully parsed")));
+    }
+
+    @Test
+    void testBundleStreamingValidatesDocumentBundlesAndEntryWrappers() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        FhirJsonValidatorPlugin corePlugin = new FhirJsonValidatorPlugin(IgPackageStoreTest.settings(packageDir));
+        String composition = "{\"fullUrl\":\"urn:uuid:6a0f4a5e-0000-4000-8000-000000000001\","
+            + "\"resource\":{\"resourceType\":\"Composition\",\"id\":\"c\",\"status\":\"final\"}}";
+        String patient = "{\"fullUrl\":\"urn:uuid:6a0f4a5e-0000-4000-8000-000000000002\","
+            + "\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p\"}}";
+
+        // The Bundle is checked with its entries in place, so a valid document passes
+        assertEquals(List.of(), streamedErrors(corePlugin, "document", composition, patient));
+
+        // Invariants over the entry resources are checked while the entries stream by
+        assertEquals(List.of("Bundle A document Bundle must have a Composition as its first resource (bdl-11)"),
+            streamedErrors(corePlugin, "document", patient, composition));
+        assertEquals(List.of("Bundle fullUrl urn:uuid:6a0f4a5e-0000-4000-8000-000000000002 is used by several entries "
+            + "with the same version (bdl-7)"), streamedErrors(corePlugin, "collection", patient, patient));
+
+        // Entry elements other than the resource are validated too
+        String request = "{\"fullUrl\":\"urn:uuid:6a0f4a5e-0000-4000-8000-000000000003\","
+            + "\"request\":{\"method\":\"FETCH\",\"url\":\"Patient\"}}";
+        String empty = "{\"fullUrl\":\"urn:uuid:6a0f4a5e-0000-4000-8000-000000000004\"}";
+        List<String> errors = streamedErrors(corePlugin, "transaction", request, empty);
+        assertEquals(2, errors.size(), errors.toString());
+        assertEquals("Bundle.entry[1] Bundle entry has no resource, request or response (bdl-5)", errors.get(0));
+        assertTrue(errors.get(1).startsWith("Bundle Failed to parse JSON as FHIR resource") && errors.get(1).contains("FETCH"),
+            errors.get(1));
+    }
+
+    private static List<String> streamedErrors(FhirJsonValidatorPlugin plugin, String type, String... entries) {
+        String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"" + type + "\",\"entry\":[" + String.join(",", entries) + "]}";
+        Map<String, Object> input = new HashMap<>();
+        input.put("ig", "hl7.fhir.r4.core");
+        input.put("bundleStreaming", "true");
+        return plugin.validate(input, ContentInput.ofString(bundle)).getReport().getReports().stream()
+            .filter(item -> "ERROR".equals(item.getType()))
+            .map(item -> item.getLocation() + " " + item.getDescription())
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    void testBundleEntryLocationRelocation() {
+        assertEquals("Bundle.entry[3].resource.name[0]",
+            BundleEntryValidator.relocate(BundleEntryValidator.entryPrefix(3), "Patient.name[0]"));
+        assertEquals("Bundle.entry[3].resource", BundleEntryValidator.relocate(BundleEntryValidator.entryPrefix(3), "Patient"));
+        assertEquals("Bundle.entry[3].resource", BundleEntryValidator.relocate(BundleEntryValidator.entryPrefix(3), null));
+    }
 }
@@ -0,0 +1,64 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class FhirVersionsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testMimeParameterIsParsed() {
+        assertNull(FhirVersions.mimeParameter("application/fhir+json"));
+        assertEquals("5.0", FhirVersions.mimeParameter("application/fhir+json; fhirVersion=5.0"));
+        assertEquals("4.3", FhirVersions.mimeParameter("application/fhir+json;charset=utf-8; FHIRVERSION=\"4.3\""));
+
+        assertEquals(FhirVersionEnum.R4, FhirVersions.parse("4.0"));
+        assertEquals(FhirVersionEnum.R4, FhirVersions.parse("4.0.1"));
+        assertEquals(FhirVersionEnum.R4B, FhirVersions.parse("R4B"));
+        assertEquals(FhirVersionEnum.R5, FhirVersions.parse("5.0.0"));
+        assertNull(FhirVersions.parse("3.0"));
+        assertNull(FhirVersions.parse("4.01"));
+    }
+
+    @Test
+    void testVersionIsSniffedFromMetaProfile() throws IOException {
+        IgPackageStore empty = IgPackageStore.empty();
+
+        assertEquals(FhirVersionEnum.R5, sniff("{\"resourceType\":\"Patient\",\"id\":\"a\",\"meta\":{\"versionId\":\"1\","
+            + "\"profile\":[\"http://example.org/unknown\",\"http://hl7.org/fhir/StructureDefinition/Patient|5.0.0\"]}}", empty));
+        assertEquals(FhirVersionEnum.R4B, sniff("{\"resourceType\":\"Patient\","
+            + "\"meta\":{\"profile\":[\"http://hl7.org/fhir/R4B/StructureDefinition/Patient\"]}}", empty));
+        assertNull(sniff("{\"resourceType\":\"Patient\",\"meta\":{\"profile\":[\"http://example.org/unknown\"]}}", empty));
+        // meta after the content is not looked for
+        assertNull(sniff("{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Doe\"}],"
+            + "\"meta\":{\"profile\":[\"http://hl7.org/fhir/StructureDefinition/Patient|5.0.0\"]}}", empty));
+        assertNull(sniff("not json", empty));
+    }
+
+    @Test
+    void testVersionIsTakenFromTheDefiningPackage() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        IgPackageStore store = IgPackageStore.open(IgPackageStoreTest.settings(packageDir));
+
+        assertEquals(FhirVersionEnum.R4, sniff("{\"resourceType\":\"Patient\","
+            + "\"meta\":{\"profile\":[\"" + IgPackageStoreTest.PROFILE_URL + "\"]}}", store));
+
+        // The package declares 4.0.1, so it is only resolved for R4
+        assertEquals(1, store.resolve("example.fhir.ig", FhirVersionEnum.R4).size());
+        assertTrue(store.resolve("example.fhir.ig", FhirVersionEnum.R5).isEmpty());
+    }
+
+    private static FhirVersionEnum sniff(String json, IgPackageStore store) throws IOException {
+        return FhirVersions.sniff(new StringReader(json), store);
+    }
+}
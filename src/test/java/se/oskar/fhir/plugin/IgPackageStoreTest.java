@@ -0,0 +1,300 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+public class IgPackageStoreTest {
+
+    static final String PROFILE_URL = "http://example.org/fhir/StructureDefinition/example-patient";
+    static final String VALUE_SET_URL = "http://example.org/fhir/ValueSet/example-codes";
+    static final String ALL_CODES_URL = "http://example.org/fhir/ValueSet/all-codes";
+    static final String CODE_SYSTEM_URL = "http://example.org/codes";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPackageIsIndexedAndResolved() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+
+        IgPackageStore store = IgPackageStore.open(settings(packageDir));
+
+        assertEquals(1, store.getPackages().size());
+        assertTrue(Files.exists(packageDir.resolve(".index/example.fhir.ig-1.0.0.idx")));
+        assertTrue(Files.exists(packageDir.resolve(".index/example.fhir.ig-1.0.0.pack")));
+
+        assertEquals(1, store.resolve("example.fhir.ig").size());
+        assertEquals(1, store.resolve("example.fhir.ig#1.0.0").size());
+        assertEquals(1, store.resolve("http://example.org/fhir/ImplementationGuide/example.fhir.ig").size());
+        assertTrue(store.resolve("hl7.fhir.us.core").isEmpty());
+    }
+
+    @Test
+    void testResourcesAreParsedLazilyFromThePack() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+
+        IgPackageStore store = IgPackageStore.open(settings(packageDir));
+        PackageValidationSupport support = new PackageValidationSupport(FhirContext.forR4(), store.resolve("example.fhir.ig"));
+
+        StructureDefinition profile = (StructureDefinition) support.fetchStructureDefinition(PROFILE_URL);
+        assertNotNull(profile);
+        assertEquals("ExamplePatient", profile.getName());
+        assertSame(profile, support.fetchStructureDefinition(PROFILE_URL + "|1.0.0"));
+        assertNotNull(support.fetchResource(ValueSet.class, VALUE_SET_URL));
+        assertNull(support.fetchValueSet(PROFILE_URL));
+        assertNull(support.fetchCodeSystem("http://example.org/unknown"));
+    }
+
+    @Test
+    void testResourcesOfDifferentTypesMayShareAUrl() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        String url = "http://example.org/fhir/shared";
+        try (OutputStream out = Files.newOutputStream(packageDir.resolve("example.fhir.shared-1.0.0.tgz"));
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            addEntry(tar, "package/package.json", "{\"name\":\"example.fhir.shared\",\"version\":\"1.0.0\",\"fhirVersions\":[\"4.0.1\"]}");
+            addEntry(tar, "package/CodeSystem-shared.json", "{\"resourceType\":\"CodeSystem\",\"id\":\"shared\",\"url\":\"" + url
+                + "\",\"version\":\"1.0.0\",\"status\":\"active\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\"}]}");
+            addEntry(tar, "package/ValueSet-shared.json", "{\"resourceType\":\"ValueSet\",\"id\":\"shared\",\"url\":\"" + url
+                + "\",\"version\":\"1.0.0\",\"status\":\"active\",\"compose\":{\"include\":[{\"system\":\"" + url + "\"}]}}");
+        }
+
+        IgPackageStore store = IgPackageStore.open(settings(packageDir));
+        PackageValidationSupport support = new PackageValidationSupport(FhirContext.forR4(), store.resolve("example.fhir.shared"));
+
+        assertEquals("CodeSystem", support.fetchCodeSystem(url).fhirType());
+        assertEquals("ValueSet", support.fetchValueSet(url).fhirType());
+        assertEquals("ValueSet", support.fetchValueSet(url + "|1.0.0").fhirType());
+        assertNotNull(support.fetchResource(ValueSet.class, url));
+        assertTrue(support.isValueSetSupported(null, url));
+        // Without a type, the first resource in the package answers
+        assertEquals("CodeSystem", store.resolve("example.fhir.shared").get(0).findEntry(url).getResourceType());
+    }
+
+    @Test
+    void testVersionedUrlResolvesThatVersionAndBaseDefinitionsAreNotListedAsNonBase() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        String manifest = "{\"name\":\"example.fhir.ig.next\",\"version\":\"2.0.0\",\"fhirVersions\":[\"4.0.1\"]}";
+        String profile = "{\"resourceType\":\"StructureDefinition\",\"id\":\"example-patient\",\"url\":\"" + PROFILE_URL + "\","
+            + "\"version\":\"2.0.0\",\"name\":\"ExamplePatientNext\",\"status\":\"active\",\"kind\":\"resource\","
+            + "\"abstract\":false,\"type\":\"Patient\"}";
+        try (OutputStream out = Files.newOutputStream(packageDir.resolve("example.fhir.ig.next-2.0.0.tgz"));
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            addEntry(tar, "package/package.json", manifest);
+            addEntry(tar, "package/StructureDefinition-example-patient.json", profile);
+        }
+
+        IgPackageStore store = IgPackageStore.open(settings(packageDir));
+        List<IgPackage> packages = new ArrayList<>(store.resolve("example.fhir.ig"));
+        packages.addAll(store.resolve("example.fhir.ig.next"));
+        PackageValidationSupport support = new PackageValidationSupport(FhirContext.forR4(), packages);
+
+        // The first package has the URL too, but not in the requested version
+        assertEquals("ExamplePatientNext", ((StructureDefinition) support.fetchStructureDefinition(PROFILE_URL + "|2.0.0")).getName());
+        assertEquals("ExamplePatient", ((StructureDefinition) support.fetchStructureDefinition(PROFILE_URL + "|1.0.0")).getName());
+        assertEquals("ExamplePatient", ((StructureDefinition) support.fetchStructureDefinition(PROFILE_URL)).getName());
+        assertEquals(2, support.<StructureDefinition>fetchAllStructureDefinitions().stream()
+            .filter(definition -> PROFILE_URL.equals(definition.getUrl())).count());
+
+        List<String> nonBase = support.<StructureDefinition>fetchAllNonBaseStructureDefinitions().stream()
+            .map(StructureDefinition::getUrl)
+            .distinct()
+            .collect(Collectors.toList());
+        assertEquals(List.of(PROFILE_URL), nonBase);
+        assertTrue(support.<StructureDefinition>fetchAllStructureDefinitions().stream()
+            .anyMatch(definition -> "http://hl7.org/fhir/StructureDefinition/Patient".equals(definition.getUrl())));
+    }
+
+    @Test
+    void testExistingIndexIsReusedUntilPackageChanges() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        Path packageFile = packageDir.resolve("example.fhir.ig-1.0.0.tgz");
+        writeExamplePackage(packageFile);
+        Path indexFile = packageDir.resolve(".index/example.fhir.ig-1.0.0.idx");
+
+        IgPackageStore.open(settings(packageDir));
+        FileTime indexed = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(indexFile, indexed);
+
+        IgPackageStore.open(settings(packageDir));
+        assertEquals(indexed, Files.getLastModifiedTime(indexFile));
+
+        Files.setLastModifiedTime(packageFile, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        IgPackageStore.open(settings(packageDir));
+        assertNotEquals(indexed, Files.getLastModifiedTime(indexFile));
+    }
+
+    @Test
+    void testEngineResolvesProfileFromOfflinePackage() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+
+        ValidationEngineCache cache = new ValidationEngineCache(FhirContext.forR4(), IgPackageStore.open(settings(packageDir)));
+
+        ValidationEngine engine = cache.getEngine("example.fhir.ig", PROFILE_URL);
+        assertTrue(engine.isIgResolved());
+        assertTrue(engine.isProfileResolved());
+
+        ValidationEngine unknown = cache.getEngine("hl7.fhir.us.core", null);
+        assertFalse(unknown.isIgResolved());
+    }
+
+    @Test
+    void testProfileConstraintViolationIsReportedAtItsLocation() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings(packageDir));
+
+        String patient = "{\"resourceType\":\"Patient\",\"id\":\"example\",\"gender\":\"male\"}";
+        Map<String, Object> input = new HashMap<>();
+        input.put("ig", "example.fhir.ig");
+        // The base definitions alone accept the resource
+        assertEquals(TestResultType.SUCCESS, plugin.validate(input, ContentInput.ofString(patient)).getReport().getResult());
+
+        input.put("profile", PROFILE_URL);
+        TAR report = plugin.validate(input, ContentInput.ofString(patient)).getReport();
+        assertEquals(TestResultType.FAILURE, report.getResult());
+        List<TestAssertionReportType> errors = report.getReports().stream()
+            .filter(item -> ReportItems.ERROR.equals(item.getType()))
+            .collect(Collectors.toList());
+        assertEquals(1, errors.size());
+        assertEquals("Patient", errors.get(0).getLocation());
+        assertTrue(errors.get(0).getDescription().startsWith("Patient.name: minimum required = 1, but only found 0"),
+            errors.get(0).getDescription());
+    }
+
+    static ValidatorSettings settings(Path packageDir) {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setPackageDirectory(packageDir);
+        return settings;
+    }
+
+    static void writeExamplePackage(Path file) throws IOException {
+        String manifest = "{\"name\":\"example.fhir.ig\",\"version\":\"1.0.0\",\"canonical\":\"http://example.org/fhir\","
+            + "\"fhirVersions\":[\"4.0.1\"],\"dependencies\":{\"hl7.fhir.r4.core\":\"4.0.1\"}}";
+        String profile = "{\"resourceType\":\"StructureDefinition\",\"id\":\"example-patient\",\"url\":\"" + PROFILE_URL + "\","
+            + "\"version\":\"1.0.0\",\"name\":\"ExamplePatient\",\"status\":\"active\",\"kind\":\"resource\",\"abstract\":false,"
+            + "\"type\":\"Patient\",\"baseDefinition\":\"http://hl7.org/fhir/StructureDefinition/Patient\",\"derivation\":\"constraint\","
+            + "\"differential\":{\"element\":[{\"id\":\"Patient.name\",\"path\":\"Patient.name\",\"min\":1}]}}";
+        String valueSet = "{\"resourceType\":\"ValueSet\",\"id\":\"example-codes\",\"url\":\"" + VALUE_SET_URL + "\","
+            + "\"status\":\"active\",\"compose\":{\"include\":[{\"system\":\"" + CODE_SYSTEM_URL + "\","
+            + "\"concept\":[{\"code\":\"a\"},{\"code\":\"b\"}]}]}}";
+        String allCodes = "{\"resourceType\":\"ValueSet\",\"id\":\"all-codes\",\"url\":\"" + ALL_CODES_URL + "\","
+            + "\"status\":\"active\",\"compose\":{\"include\":[{\"system\":\"" + CODE_SYSTEM_URL + "\"}]}}";
+        String codeSystem = "{\"resourceType\":\"CodeSystem\",\"id\":\"codes\",\"url\":\"" + CODE_SYSTEM_URL + "\","
+            + "\"status\":\"active\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\",\"display\":\"Alpha\"},"
+            + "{\"code\":\"b\",\"display\":\"Beta\"},{\"code\":\"c\",\"display\":\"Gamma\"}]}";
+
+        try (OutputStream out = Files.newOutputStream(file);
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            addEntry(tar, "package/package.json", manifest);
+            addEntry(tar, "package/StructureDefinition-example-patient.json", profile);
+            addEntry(tar, "package/ValueSet-example-codes.json", valueSet);
+            addEntry(tar, "package/ValueSet-all-codes.json", allCodes);
+            addEntry(tar, "package/CodeSystem-codes.json", codeSystem);
+            addEntry(tar, "package/other/ignored.json", valueSet);
+        }
+    }
+
+    /**
+     * Writes a minimal stand-in for hl7.fhir.r4.core: snapshots of Patient and of the types
+     * its first few elements use, enough for the instance validator to check profiles on Patient.
+     */
+    static void writeCorePackage(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file);
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(out))) {
+            addEntry(tar, "package/package.json",
+                "{\"name\":\"hl7.fhir.r4.core\",\"version\":\"4.0.1\",\"fhirVersions\":[\"4.0.1\"]}");
+            addEntry(tar, "package/StructureDefinition-Patient.json", coreDefinition("Patient", "resource", "DomainResource",
+                element("Patient", "*", null), element("Patient.id", "1", "id"), element("Patient.active", "1", "boolean"),
+                element("Patient.name", "*", "HumanName"), element("Patient.gender", "1", "code"),
+                element("Patient.birthDate", "1", "date")));
+            addEntry(tar, "package/StructureDefinition-HumanName.json", coreDefinition("HumanName", "complex-type", "Element",
+                element("HumanName", "*", null), element("HumanName.id", "1", "string"),
+                element("HumanName.family", "1", "string"), element("HumanName.given", "*", "string")));
+            addEntry(tar, "package/StructureDefinition-Resource.json", coreDefinition("Resource", "resource", null,
+                element("Resource", "*", null), element("Resource.id", "1", "id")));
+            addEntry(tar, "package/StructureDefinition-Bundle.json", coreDefinition("Bundle", "resource", "Resource",
+                element("Bundle", "*", null,
+                    "bdl-7", "(type = 'history') or entry.where(fullUrl.exists()).select(fullUrl&resource.meta.versionId).isDistinct()",
+                    "bdl-11", "type = 'document' implies entry.first().resource.is(Composition)",
+                    "bdl-12", "type = 'message' implies entry.first().resource.is(MessageHeader)"),
+                element("Bundle.id", "1", "id"), element("Bundle.type", "1", "code"),
+                element("Bundle.entry", "*", "BackboneElement", "bdl-5", "resource.exists() or request.exists() or response.exists()"),
+                element("Bundle.entry.fullUrl", "1", "uri"), element("Bundle.entry.resource", "1", "Resource"),
+                element("Bundle.entry.request", "1", "BackboneElement"), element("Bundle.entry.request.method", "1", "code"),
+                element("Bundle.entry.request.url", "1", "uri"), element("Bundle.entry.response", "1", "BackboneElement"),
+                element("Bundle.entry.response.status", "1", "string")));
+            addEntry(tar, "package/StructureDefinition-Composition.json", coreDefinition("Composition", "resource", "DomainResource",
+                element("Composition", "*", null), element("Composition.id", "1", "id"), element("Composition.status", "1", "code"),
+                element("Composition.title", "1", "string")));
+            for (String type : List.of("string", "id", "boolean", "code", "date", "uri")) {
+                addEntry(tar, "package/StructureDefinition-" + type + ".json", coreDefinition(type, "primitive-type", "Element",
+                    element(type, "*", null), element(type + ".id", "1", "http://hl7.org/fhirpath/System.String"),
+                    element(type + ".value", "1", "http://hl7.org/fhirpath/System.String")));
+            }
+        }
+    }
+
+    /**
+     * @param base the type specialized, or null for the abstract Resource
+     */
+    private static String coreDefinition(String type, String kind, String base, String... elements) {
+        return "{\"resourceType\":\"StructureDefinition\",\"id\":\"" + type + "\","
+            + "\"url\":\"http://hl7.org/fhir/StructureDefinition/" + type + "\",\"version\":\"4.0.1\",\"name\":\"" + type + "\","
+            + "\"status\":\"active\",\"fhirVersion\":\"4.0.1\",\"kind\":\"" + kind + "\",\"abstract\":" + (base == null)
+            + ",\"type\":\"" + type + "\","
+            + (base == null ? "" : "\"baseDefinition\":\"http://hl7.org/fhir/StructureDefinition/" + base + "\",\"derivation\":\"specialization\",")
+            + "\"snapshot\":{\"element\":[" + String.join(",", elements) + "]}}";
+    }
+
+    /**
+     * @param constraints pairs of invariant key and FHIRPath expression
+     */
+    private static String element(String path, String max, String type, String... constraints) {
+        StringBuilder invariants = new StringBuilder();
+        for (int i = 0; i < constraints.length; i += 2) {
+            invariants.append(i == 0 ? ",\"constraint\":[" : ",").append("{\"key\":\"").append(constraints[i])
+                .append("\",\"severity\":\"error\",\"human\":\"").append(constraints[i]).append("\",\"expression\":\"")
+                .append(constraints[i + 1]).append("\"}").append(i + 2 == constraints.length ? "]" : "");
+        }
+        return "{\"id\":\"" + path + "\",\"path\":\"" + path + "\",\"min\":0,\"max\":\"" + max + "\","
+            + "\"base\":{\"path\":\"" + path + "\",\"min\":0,\"max\":\"" + max + "\"}"
+            + (type == null ? "" : ",\"type\":[{\"code\":\"" + type + "\"}]") + invariants + "}";
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tar.putArchiveEntry(entry);
+        tar.write(bytes);
+        tar.closeArchiveEntry();
+    }
+}
@@ -0,0 +1,486 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestResultType;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load generator for capacity planning: replays the sample resources of the ITB test suite
+ * and synthetic large Patients and Bundles against the plugin from a number of threads, at a
+ * fixed rate or as fast as possible, and reports latency percentiles, throughput and heap use.
+ * <p>
+ * With a target rate, every request has an intended start time and its latency is measured
+ * from there, so requests delayed by earlier slow ones count as slow (no coordinated omission).
+ * Configured with {@code -Dload.*} system properties, see {@link Options}; the
+ * {@code fhir.validator.*} properties apply to the plugin as usual. With
+ * {@code -Dload.maxP99Millis} or {@code -Dload.minThroughput} set, a run that misses them
+ * exits with status 1, so it can gate a build.
+ */
+public class LoadTestRunner {
+
+  public static void main(String[] args) {
+    try {
+      Options options = Options.fromSystemProperties();
+      Summary summary = run(options, System.out);
+      List<String> violations = summary.check(options);
+      violations.forEach(violation -> System.out.println("GATE FAILED: " + violation));
+      if (!violations.isEmpty()) {
+        System.exit(1);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  static Summary run(Options options, PrintStream out) throws IOException, InterruptedException {
+    List<Payload> payloads = payloads(options);
+    InMemoryValidationMetrics phases = new InMemoryValidationMetrics();
+    WarmedUpMetrics metrics = new WarmedUpMetrics(phases);
+    ValidatorSettings settings = ValidatorSettings.fromSystemProperties();
+    settings.setMetrics(metrics);
+    FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+    out.printf("=== Load test: %d threads, %s, %d s (+%d s warm-up), %d workloads ===%n", options.concurrency,
+        options.rate > 0 ? options.rate + " req/s" : "unthrottled", options.durationSeconds, options.warmUpSeconds,
+        payloads.size());
+
+    HeapSampler heap = new HeapSampler();
+    long start = System.nanoTime();
+    long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmUpSeconds);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+    long interval = options.rate > 0 ? (long) (1_000_000_000.0 / options.rate) : 0;
+    AtomicLong sequence = new AtomicLong();
+    Map<TestResultType, AtomicLong> results = new EnumMap<>(TestResultType.class);
+    for (TestResultType result : TestResultType.values()) {
+      results.put(result, new AtomicLong());
+    }
+
+    List<Samples> samples = new ArrayList<>();
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < options.concurrency; i++) {
+      Samples worker = new Samples();
+      samples.add(worker);
+      Thread thread = new Thread(() -> {
+        while (true) {
+          long n = sequence.getAndIncrement();
+          long intended = interval > 0 ? start + n * interval : System.nanoTime();
+          if (intended >= end) {
+            return;
+          }
+          long wait;
+          while ((wait = intended - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+          Payload payload = payloads.get((int) (n % payloads.size()));
+          TestResultType result = plugin.validate(payload.input, ContentInput.ofString(payload.content)).getReport().getResult();
+          long latency = System.nanoTime() - intended;
+          if (intended >= measureStart) {
+            worker.add(payload.index, latency);
+            results.get(result).incrementAndGet();
+          }
+        }
+      }, "load-" + i);
+      workers.add(thread);
+    }
+
+    heap.start();
+    for (Thread worker : workers) {
+      worker.start();
+    }
+    LockSupport.parkNanos(measureStart - System.nanoTime());
+    metrics.measuring = true;
+    heap.reset();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsed = Math.max(System.nanoTime(), end) - measureStart;
+    heap.stop();
+
+    Summary summary = new Summary(payloads, samples, elapsed);
+    out.printf("%-24s %8s %10s %10s %10s %10s%n", "workload", "count", "p50 ms", "p99 ms", "p999 ms", "max ms");
+    for (Payload payload : payloads) {
+      summary.printRow(out, payload.name, summary.latencies(payload.index));
+    }
+    summary.printRow(out, "all", summary.all);
+    StringBuilder counts = new StringBuilder();
+    results.forEach((result, count) -> counts.append(' ').append(result).append('=').append(count.get()));
+    out.printf("throughput: %.1f req/s%s  results:%s%n", summary.throughput,
+        options.rate > 0 ? String.format(" (target %d)", options.rate) : "", counts);
+    out.printf("heap: peak %.1f MB, live after GC %.1f MB, max %.1f MB; GC: %d collections, %d ms%n",
+        mb(heap.peakUsed.get()), mb(heap.liveAfterGc()), mb(Runtime.getRuntime().maxMemory()),
+        heap.collections(), heap.collectionMillis());
+    out.println();
+    phases.dump(out);
+    summary.heapPeakBytes = heap.peakUsed.get();
+    return summary;
+  }
+
+  /**
+   * The JSON files of the resource directory, then a large Patient and a large Bundle.
+   */
+  private static List<Payload> payloads(Options options) throws IOException {
+    List<Payload> payloads = new ArrayList<>();
+    if (options.resourceDirectory != null && Files.isDirectory(options.resourceDirectory)) {
+      try (Stream<Path> files = Files.list(options.resourceDirectory)) {
+        for (Path file : files.filter(f -> f.getFileName().toString().endsWith(".json")).sorted().collect(Collectors.toList())) {
+          payloads.add(new Payload(payloads.size(), file.getFileName().toString(), Files.readString(file), options));
+        }
+      }
+    }
+    if (options.patientNames > 0) {
+      payloads.add(new Payload(payloads.size(), "large-patient", largePatient("large", options.patientNames), options));
+    }
+    if (options.bundleEntries > 0) {
+      payloads.add(new Payload(payloads.size(), "bundle-" + options.bundleEntries, bundle(options.bundleEntries), options));
+    }
+    if (payloads.isEmpty()) {
+      throw new IllegalArgumentException("Nothing to validate: no resources in " + options.resourceDirectory
+          + " and no synthetic payloads");
+    }
+    return payloads;
+  }
+
+  /**
+   * A Patient with many names, identifiers, telecoms and addresses, about 250 bytes per name.
+   */
+  static String largePatient(String id, int names) {
+    StringBuilder json = new StringBuilder(names * 256);
+    json.append("{\"resourceType\":\"Patient\",\"id\":\"").append(id).append("\",\"identifier\":[");
+    for (int i = 0; i < names; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"system\":\"http://example.org/mrn\",\"value\":\"").append(id).append('-')
+          .append(i).append("\"}");
+    }
+    json.append("],\"name\":[");
+    for (int i = 0; i < names; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"use\":\"official\",\"family\":\"Doe").append(i)
+          .append("\",\"given\":[\"John\",\"Quincy\"]}");
+    }
+    json.append("],\"telecom\":[");
+    for (int i = 0; i < names; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"system\":\"phone\",\"value\":\"+46 8 123 ").append(1000 + i)
+          .append("\",\"use\":\"home\"}");
+    }
+    json.append("],\"gender\":\"male\",\"birthDate\":\"1980-01-01\",\"address\":[");
+    for (int i = 0; i < names; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"line\":[\"Storgatan ").append(i + 1)
+          .append("\"],\"city\":\"Stockholm\",\"postalCode\":\"111 22\",\"country\":\"SE\"}");
+    }
+    return json.append("]}").toString();
+  }
+
+  static String bundle(int entries) {
+    StringBuilder json = new StringBuilder(entries * 300);
+    json.append("{\"resourceType\":\"Bundle\",\"id\":\"load\",\"type\":\"collection\",\"entry\":[");
+    for (int i = 0; i < entries; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"fullUrl\":\"urn:uuid:00000000-0000-0000-0000-")
+          .append(String.format("%012d", i)).append("\",\"resource\":").append(largePatient("p" + i, 1)).append('}');
+    }
+    return json.append("]}").toString();
+  }
+
+  private static double mb(long bytes) {
+    return bytes / (1024.0 * 1024.0);
+  }
+
+  /**
+   * Settings of a run, read from {@code load.*} system properties.
+   */
+  static final class Options {
+    /** {@code load.resources}: directory of sample resources; default {@code itb-test-suite/resources}. */
+    Path resourceDirectory = Path.of("itb-test-suite", "resources");
+    /** {@code load.concurrency}: number of client threads; default 8. */
+    int concurrency = 8;
+    /** {@code load.rate}: target requests per second over all threads; 0 (default) for as fast as possible. */
+    int rate;
+    /** {@code load.durationSeconds}: measured time; default 30. */
+    int durationSeconds = 30;
+    /** {@code load.warmUpSeconds}: time under load before measuring; default 10. */
+    int warmUpSeconds = 10;
+    /** {@code load.patientNames}: names (and identifiers, ...) of the large Patient; 0 to leave it out; default 500. */
+    int patientNames = 500;
+    /** {@code load.bundleEntries}: entries of the Bundle; 0 to leave it out; default 1000. */
+    int bundleEntries = 1000;
+    /** {@code load.bundleStreaming}: validate Bundles entry by entry; default false. */
+    boolean bundleStreaming;
+    /** {@code load.ig} and {@code load.profile}: IG and profile to validate every payload against. */
+    String ig;
+    String profile;
+    /** {@code load.maxP99Millis}: gate on the overall p99 latency; 0 (default) for none. */
+    double maxP99Millis;
+    /** {@code load.minThroughput}: gate on requests per second; 0 (default) for none. */
+    double minThroughput;
+
+    static Options fromSystemProperties() {
+      Options options = new Options();
+      String resources = System.getProperty("load.resources");
+      if (resources != null) {
+        options.resourceDirectory = resources.trim().isEmpty() ? null : Path.of(resources.trim());
+      }
+      options.concurrency = Integer.getInteger("load.concurrency", options.concurrency);
+      options.rate = Integer.getInteger("load.rate", options.rate);
+      options.durationSeconds = Integer.getInteger("load.durationSeconds", options.durationSeconds);
+      options.warmUpSeconds = Integer.getInteger("load.warmUpSeconds", options.warmUpSeconds);
+      options.patientNames = Integer.getInteger("load.patientNames", options.patientNames);
+      options.bundleEntries = Integer.getInteger("load.bundleEntries", options.bundleEntries);
+      options.bundleStreaming = Boolean.getBoolean("load.bundleStreaming");
+      options.ig = System.getProperty("load.ig");
+      options.profile = System.getProperty("load.profile");
+      options.maxP99Millis = Double.parseDouble(System.getProperty("load.maxP99Millis", "0"));
+      options.minThroughput = Double.parseDouble(System.getProperty("load.minThroughput", "0"));
+      return options;
+    }
+  }
+
+  /**
+   * One workload: the content and the inputs it is validated with.
+   */
+  private static final class Payload {
+    private final int index;
+    private final String name;
+    private final String content;
+    private final Map<String, Object> input = new HashMap<>();
+
+    private Payload(int index, String name, String content, Options options) {
+      this.index = index;
+      this.name = name;
+      this.content = content;
+      input.put("contentToValidate", name);
+      if (options.bundleStreaming) {
+        input.put("bundleStreaming", "true");
+      }
+      if (options.ig != null) {
+        input.put("ig", options.ig);
+      }
+      if (options.profile != null) {
+        input.put("profile", options.profile);
+      }
+    }
+  }
+
+  /**
+   * Latencies recorded by one client thread, with the workload of each.
+   */
+  private static final class Samples {
+    private long[] latencies = new long[1024];
+    private int[] workloads = new int[1024];
+    private int size;
+
+    private void add(int workload, long latency) {
+      if (size == latencies.length) {
+        latencies = Arrays.copyOf(latencies, size * 2);
+        workloads = Arrays.copyOf(workloads, size * 2);
+      }
+      latencies[size] = latency;
+      workloads[size] = workload;
+      size++;
+    }
+  }
+
+  /**
+   * Exact latency percentiles of the measured requests, overall and per workload.
+   */
+  static final class Summary {
+    private final long[] all;
+    private final long[][] byWorkload;
+    final double throughput;
+    long heapPeakBytes;
+
+    private Summary(List<Payload> payloads, List<Samples> samples, long elapsedNanos) {
+      int total = samples.stream().mapToInt(s -> s.size).sum();
+      all = new long[total];
+      int[] counts = new int[payloads.size()];
+      int next = 0;
+      for (Samples s : samples) {
+        System.arraycopy(s.latencies, 0, all, next, s.size);
+        next += s.size;
+        for (int i = 0; i < s.size; i++) {
+          counts[s.workloads[i]]++;
+        }
+      }
+      byWorkload = new long[payloads.size()][];
+      for (int w = 0; w < counts.length; w++) {
+        byWorkload[w] = new long[counts[w]];
+      }
+      int[] filled = new int[payloads.size()];
+      for (Samples s : samples) {
+        for (int i = 0; i < s.size; i++) {
+          byWorkload[s.workloads[i]][filled[s.workloads[i]]++] = s.latencies[i];
+        }
+      }
+      Arrays.sort(all);
+      for (long[] latencies : byWorkload) {
+        Arrays.sort(latencies);
+      }
+      throughput = total / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    long count() {
+      return all.length;
+    }
+
+    long[] latencies(int workload) {
+      return byWorkload[workload];
+    }
+
+    /**
+     * The given percentile (0 to 1) of the overall latencies, in nanoseconds.
+     */
+    long percentileNanos(double percentile) {
+      return percentile(all, percentile);
+    }
+
+    /**
+     * Gates of the options that this run misses.
+     */
+    List<String> check(Options options) {
+      List<String> violations = new ArrayList<>();
+      double p99 = percentileNanos(0.99) / 1_000_000.0;
+      if (options.maxP99Millis > 0 && p99 > options.maxP99Millis) {
+        violations.add(String.format("p99 %.3f ms exceeds %.3f ms", p99, options.maxP99Millis));
+      }
+      if (options.minThroughput > 0 && throughput < options.minThroughput) {
+        violations.add(String.format("throughput %.1f req/s is below %.1f req/s", throughput, options.minThroughput));
+      }
+      return violations;
+    }
+
+    private void printRow(PrintStream out, String name, long[] latencies) {
+      out.printf("%-24s %8d %10.3f %10.3f %10.3f %10.3f%n", name, latencies.length,
+          percentile(latencies, 0.5) / 1_000_000.0, percentile(latencies, 0.99) / 1_000_000.0,
+          percentile(latencies, 0.999) / 1_000_000.0,
+          (latencies.length == 0 ? 0 : latencies[latencies.length - 1]) / 1_000_000.0);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile * sorted.length);
+      return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+  }
+
+  /**
+   * Passes phase timings on once the warm-up is over.
+   */
+  private static final class WarmedUpMetrics implements ValidationMetrics {
+    private final ValidationMetrics delegate;
+    private volatile boolean measuring;
+
+    private WarmedUpMetrics(ValidationMetrics delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void recordPhase(Phase phase, long nanos) {
+      if (measuring) {
+        delegate.recordPhase(phase, nanos);
+      }
+    }
+
+    @Override
+    public void recordResult(TestResultType result, long nanos) {
+      if (measuring) {
+        delegate.recordResult(result, nanos);
+      }
+    }
+
+    @Override
+    public void recordFindings(String type, int count) {
+      if (measuring) {
+        delegate.recordFindings(type, count);
+      }
+    }
+  }
+
+  /**
+   * Samples the used heap every 50 ms and tracks collections from the last reset.
+   */
+  private static final class HeapSampler {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "heap-sampler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    private final LongAccumulator peakUsed = new LongAccumulator(Math::max, 0);
+    private long collectionsAtReset;
+    private long collectionMillisAtReset;
+
+    private void start() {
+      scheduler.scheduleAtFixedRate(
+          () -> peakUsed.accumulate(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()),
+          0, 50, TimeUnit.MILLISECONDS);
+    }
+
+    private void reset() {
+      peakUsed.reset();
+      collectionsAtReset = totalCollections();
+      collectionMillisAtReset = totalCollectionMillis();
+    }
+
+    private void stop() {
+      scheduler.shutdownNow();
+    }
+
+    private long collections() {
+      return totalCollections() - collectionsAtReset;
+    }
+
+    private long collectionMillis() {
+      return totalCollectionMillis() - collectionMillisAtReset;
+    }
+
+    /**
+     * Heap in use right after the last collection of each pool, an estimate of the live set.
+     */
+    private long liveAfterGc() {
+      long live = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+        if (usage != null) {
+          live += usage.getUsed();
+        }
+      }
+      return live;
+    }
+
+    private static long totalCollections() {
+      long total = 0;
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        total += Math.max(0, collector.getCollectionCount());
+      }
+      return total;
+    }
+
+    private static long totalCollectionMillis() {
+      long total = 0;
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        total += Math.max(0, collector.getCollectionTime());
+      }
+      return total;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package se.oskar.fhir.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+public class LoadTestRunnerTest {
+
+    @Test
+    void testShortRunReportsLatenciesAndAppliesGates() throws Exception {
+        LoadTestRunner.Options options = new LoadTestRunner.Options();
+        options.concurrency = 2;
+        options.rate = 50;
+        options.durationSeconds = 1;
+        options.warmUpSeconds = 0;
+        options.patientNames = 10;
+        options.bundleEntries = 10;
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        LoadTestRunner.Summary summary = LoadTestRunner.run(options, new PrintStream(output, true, StandardCharsets.UTF_8));
+
+        String printed = output.toString(StandardCharsets.UTF_8);
+        assertTrue(printed.contains("patient-basic.json"), printed);
+        assertTrue(printed.contains("bundle-10"), printed);
+        assertTrue(summary.count() > 0);
+        assertTrue(summary.percentileNanos(0.5) <= summary.percentileNanos(0.99));
+        assertTrue(summary.percentileNanos(0.99) <= summary.percentileNanos(0.999));
+
+        assertEquals(0, summary.check(options).size());
+        options.maxP99Millis = 1e-6;
+        options.minThroughput = 1e6;
+        assertEquals(2, summary.check(options).size());
+    }
+
+    @Test
+    void testSyntheticPayloadsAreValidJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode patient = mapper.readTree(LoadTestRunner.largePatient("x", 3));
+        assertEquals(3, patient.get("name").size());
+        JsonNode bundle = mapper.readTree(LoadTestRunner.bundle(4));
+        assertEquals(4, bundle.get("entry").size());
+        assertEquals("Patient", bundle.get("entry").get(3).get("resource").get("resourceType").asText());
+    }
+}
@@ -0,0 +1,38 @@
+package se.oskar.fhir.plugin;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCatalogTest {
+
+    @Test
+    void testArgumentsAreSubstituted() {
+        assertEquals("Content size of 2048 bytes exceeds the maximum of 1024 bytes",
+            MessageCatalog.forLocale("en").format("error.content.too.large", 2048L, 1024L));
+        assertEquals("Profil spécifié : http://example.org/profile",
+            MessageCatalog.forLocale("fr").format("info.profile.specified", "http://example.org/profile"));
+    }
+
+    @Test
+    void testApostrophesAreKept() {
+        assertEquals("Le profil n'a pas pu être résolu : x",
+            MessageCatalog.forLocale("fr").format("error.profile.not.found", "x"));
+    }
+
+    @Test
+    void testLocalesResolveToCachedHandles() {
+        assertSame(MessageCatalog.forLocale("fr"), MessageCatalog.forLocale("fr-CA"));
+        // Unknown languages use the English base bundle, whatever the JVM default locale is
+        assertSame(MessageCatalog.forLocale("en"), MessageCatalog.forLocale("xx"));
+        assertSame(MessageCatalog.forLocale("en"), MessageCatalog.forLocale(null));
+    }
+
+    @Test
+    void testUnknownKeysAndMissingArguments() {
+        MessageCatalog.Messages messages = MessageCatalog.forLocale("en");
+
+        assertEquals("no.such.key", messages.format("no.such.key", "ignored"));
+        assertEquals("Profile specified: {0}", messages.format("info.profile.specified"));
+        assertEquals("Profile specified: null", messages.format("info.profile.specified", (Object) null));
+    }
+}
@@ -0,0 +1,192 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.ValidateRequest;
+import com.gitb.vs.ValidationResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+public class NdjsonValidatorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testNdjsonReportsInvalidLinesInOrder() throws IOException {
+        // Many more lines than the pipeline window, with every 100th line broken
+        Path ndjson = tempDir.resolve("Patient.ndjson");
+        try (Writer writer = Files.newBufferedWriter(ndjson)) {
+            for (int line = 1; line <= 2000; line++) {
+                if (line % 100 == 0) {
+                    writer.write("{\"resourceType\":\"Patient\",\"id\":\n");
+                } else {
+                    writer.write("{\"resourceType\":\"Patient\",\"id\":\"p" + line + "\"}\n");
+                }
+            }
+        }
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", ndjson.toString());
+        input.put("contentType", "application/fhir+ndjson");
+
+        ValidationResponse response = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        List<String> errorLocations = response.getReport().getReports().stream()
+            .filter(r -> "ERROR".equals(r.getType()))
+            .map(TestAssertionReportType::getLocation)
+            .collect(Collectors.toList());
+        assertEquals(20, errorLocations.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("contentToValidate:" + ((i + 1) * 100) + ":0", errorLocations.get(i));
+        }
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> r.getDescription().contains("line by line")));
+    }
+
+    @Test
+    void testFindingBudgetStopsTheNdjsonPipeline() throws IOException {
+        Path ndjson = tempDir.resolve("broken.ndjson");
+        try (Writer writer = Files.newBufferedWriter(ndjson)) {
+            for (int line = 1; line <= 2000; line++) {
+                writer.write(line % 100 == 0 ? "{\"resourceType\":\"Patient\",\"id\":\n" : "{\"resourceType\":\"Patient\"}\n");
+            }
+        }
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", ndjson.toString());
+        input.put("contentType", "application/fhir+ndjson");
+
+        input.put("failFast", "true");
+        List<TestAssertionReportType> failFast = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input)).getReport().getReports();
+        assertEquals(List.of("contentToValidate:100:0"), errorLocations(failFast));
+        assertTrue(failFast.stream().anyMatch(r -> "INFO".equals(r.getType()) && "failFast:0:0".equals(r.getLocation())
+            && r.getDescription().contains("truncated")));
+
+        input.remove("failFast");
+        input.put("maxFindings", "3");
+        List<TestAssertionReportType> limited = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input)).getReport().getReports();
+        assertEquals(List.of("contentToValidate:100:0", "contentToValidate:200:0", "contentToValidate:300:0"), errorLocations(limited));
+        assertTrue(limited.stream().anyMatch(r -> "maxFindings:0:0".equals(r.getLocation())
+            && r.getDescription().equals("Validation stopped after 3 findings; the report is truncated")));
+
+        // A budget that is not used up leaves the report complete
+        input.put("maxFindings", "20");
+        List<TestAssertionReportType> complete = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input)).getReport().getReports();
+        assertEquals(20, errorLocations(complete).size());
+        assertFalse(complete.stream().anyMatch(r -> r.getDescription().contains("truncated")));
+    }
+
+    @Test
+    void testBudgetUsedUpByTheLastFindingIsNotTruncated() throws IOException {
+        Path ndjson = tempDir.resolve("broken.ndjson");
+        try (Writer writer = Files.newBufferedWriter(ndjson)) {
+            for (int line = 1; line <= 300; line++) {
+                writer.write(line % 100 == 0 ? "{\"resourceType\":\"Patient\",\"id\":\n" : "{\"resourceType\":\"Patient\"}\n");
+            }
+        }
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", ndjson.toString());
+        input.put("contentType", "application/fhir+ndjson");
+        input.put("maxFindings", "3");
+        // Finishing a session asks the budget too, after the last line
+        input.put("sessionId", "exact");
+
+        List<TestAssertionReportType> exact = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input)).getReport().getReports();
+        assertEquals(List.of("contentToValidate:100:0", "contentToValidate:200:0", "contentToValidate:300:0"), errorLocations(exact));
+        assertFalse(exact.stream().anyMatch(r -> "INFO".equals(r.getType()) && r.getDescription().contains("truncated")));
+    }
+
+    @Test
+    void testBlankLinesAreSkippedButCounted() throws IOException {
+        Path ndjson = tempDir.resolve("mixed.ndjson");
+        Files.writeString(ndjson, "{\"resourceType\":\"Patient\",\"id\":\"a\"}\n\n\n{\"resourceType\":\"Unknown\"}\n");
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", ndjson.toString());
+        input.put("contentType", "application/fhir+ndjson");
+
+        ValidationResponse response = new FhirJsonValidatorPlugin().validate(new ValidateRequest(input));
+
+        assertEquals(TestResultType.FAILURE, response.getReport().getResult());
+        assertTrue(response.getReport().getReports().stream()
+            .anyMatch(r -> "ERROR".equals(r.getType()) && "contentToValidate:4:0".equals(r.getLocation())));
+    }
+
+    @Test
+    void testValidationFindingsAreLocatedAtTheirLineAndElement() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        IgPackageStoreTest.writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(IgPackageStoreTest.settings(packageDir));
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentType", "application/fhir+ndjson");
+        input.put("ig", "example.fhir.ig");
+        input.put("profile", IgPackageStoreTest.PROFILE_URL);
+        String ndjson = "{\"resourceType\":\"Patient\",\"id\":\"a\",\"name\":[{\"family\":\"A\"}]}\n"
+            + "{\"resourceType\":\"Patient\",\"id\":\"b\"}\n";
+        List<TestAssertionReportType> errors = plugin.validate(input, ContentInput.ofString(ndjson)).getReport().getReports()
+            .stream()
+            .filter(r -> "ERROR".equals(r.getType()))
+            .collect(Collectors.toList());
+
+        assertEquals(1, errors.size());
+        assertEquals("contentToValidate:2:0/Patient", errors.get(0).getLocation());
+        assertTrue(errors.get(0).getDescription().startsWith("Patient.name: minimum required = 1, but only found 0"),
+            errors.get(0).getDescription());
+        assertFalse(errors.get(0).getDescription().contains("["), errors.get(0).getDescription());
+    }
+
+    @Test
+    void testOversizedLinesAndFailingValidationsAreReportedWithoutStallingThePipeline() throws Exception {
+        String patient = "{\"resourceType\":\"Patient\",\"id\":\"p\"}";
+        String oversized = "{\"resourceType\":\"Patient\",\"id\":\"" + "x".repeat(500) + "\"}";
+        StringBuilder ndjson = new StringBuilder();
+        for (int line = 1; line <= 600; line++) {
+            ndjson.append(line == 2 ? oversized : patient).append(line % 2 == 0 ? "\r\n" : "\n");
+        }
+
+        // An Error thrown by the validator must not keep the line from being reported
+        ResourceValidator failing = resource -> {
+            throw new StackOverflowError("too deep");
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            NdjsonValidator validator = new NdjsonValidator(FhirContexts.r4(), failing, executor, 100, "en",
+                ValidationMetrics.NOOP);
+            List<TestAssertionReportType> findings = new ArrayList<>();
+            assertEquals(600, validator.validate(new StringReader(ndjson.toString()), findings::add));
+
+            assertEquals(600, findings.size());
+            assertEquals("contentToValidate:2:0", findings.get(1).getLocation());
+            assertTrue(findings.get(1).getDescription().contains(String.valueOf(oversized.length())),
+                findings.get(1).getDescription());
+            assertEquals("contentToValidate:600:0", findings.get(599).getLocation());
+            assertTrue(findings.get(599).getDescription().contains("too deep"), findings.get(599).getDescription());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> errorLocations(List<TestAssertionReportType> items) {
+        return items.stream()
+            .filter(r -> "ERROR".equals(r.getType()))
+            .map(TestAssertionReportType::getLocation)
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,148 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class ProfileSetValidatorTest {
+
+    private static final String BASE = "http://example.org/fhir/StructureDefinition/base";
+    private static final String NATIONAL = "http://example.org/fhir/StructureDefinition/national";
+    private static final String CORE_PATIENT = "http://hl7.org/fhir/StructureDefinition/Patient";
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+    private static final String PATIENT_WITH_INVALID_ID = "{\"resourceType\":\"Patient\",\"id\":\"bad_id!\"}";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testFindingsAreKeptOnceAndTaggedWithEveryProfile() {
+        List<SingleValidationMessage> marked = List.of(
+            message(ResultSeverityEnum.ERROR, "Patient", "Unparseable"),
+            marker(NATIONAL),
+            message(ResultSeverityEnum.ERROR, "Patient.gender", "Unknown code"),
+            message(ResultSeverityEnum.WARNING, "Patient", "No narrative"),
+            marker(BASE),
+            message(ResultSeverityEnum.WARNING, "Patient", "No narrative"),
+            message(ResultSeverityEnum.ERROR, "Patient.gender", "Unknown code"),
+            message(ResultSeverityEnum.ERROR, "Patient.identifier", "minimum required = 1, but only found 0"));
+
+        // Tags follow the requested order, not the order the profiles ran in
+        List<SingleValidationMessage> merged = ProfileSetValidator.merge(List.of(BASE, NATIONAL), marked,
+            MessageCatalog.forLocale("en"));
+
+        assertEquals(List.of("Unparseable",
+            "Unknown code [profiles " + BASE + ", " + NATIONAL + "]",
+            "No narrative [profiles " + BASE + ", " + NATIONAL + "]",
+            "minimum required = 1, but only found 0 [profile " + BASE + "]"),
+            messages(merged));
+        assertEquals("Patient.identifier", merged.get(3).getLocationString());
+        assertEquals(ResultSeverityEnum.ERROR, merged.get(3).getSeverity());
+
+        // The same finding at another location is another finding
+        List<SingleValidationMessage> french = ProfileSetValidator.merge(List.of(BASE, NATIONAL), List.of(
+            marker(BASE), message(ResultSeverityEnum.ERROR, "Patient", "a"),
+            marker(NATIONAL), message(ResultSeverityEnum.ERROR, "Patient.contained[0]", "a")),
+            MessageCatalog.forLocale("fr"));
+        assertEquals(List.of("a [profil " + BASE + "]", "a [profil " + NATIONAL + "]"), messages(french));
+    }
+
+    @Test
+    void testEveryProfileRunsAndItsFindingsAreTagged() throws Exception {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        IgPackageStoreTest.writeCorePackage(packageDir.resolve("hl7.fhir.r4.core-4.0.1.tgz"));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(IgPackageStoreTest.settings(packageDir));
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("ig", "example.fhir.ig");
+        input.put("profile", List.of(CORE_PATIENT, IgPackageStoreTest.PROFILE_URL));
+        TAR report = plugin.validate(input, ContentInput.ofString(PATIENT)).getReport();
+
+        List<String> errors = report.getReports().stream()
+            .filter(item -> ReportItems.ERROR.equals(item.getType()))
+            .map(TestAssertionReportType::getDescription)
+            .collect(Collectors.toList());
+        assertEquals(1, errors.size(), errors.toString());
+        assertTrue(errors.get(0).startsWith("Patient.name: minimum required = 1, but only found 0"), errors.get(0));
+        assertTrue(errors.get(0).endsWith(" [profile " + IgPackageStoreTest.PROFILE_URL + "]"), errors.get(0));
+
+        // A finding of the base definitions is reported by both profiles and tagged with both
+        ValidationEngineCache cache = new ValidationEngineCache(FhirContexts.r4(),
+            IgPackageStore.open(IgPackageStoreTest.settings(packageDir)));
+        List<ValidationEngine> engines = List.of(cache.getEngine("example.fhir.ig", CORE_PATIENT),
+            cache.getEngine("example.fhir.ig", IgPackageStoreTest.PROFILE_URL));
+        IBaseResource resource = FhirContexts.r4().newJsonParser().parseResource(PATIENT_WITH_INVALID_ID);
+        List<String> messages = messages(new ProfileSetValidator(FhirContexts.r4(), engines, "en").validate(resource));
+        assertTrue(messages.stream().anyMatch(message -> message.endsWith(" [profile " + IgPackageStoreTest.PROFILE_URL + "]")),
+            messages.toString());
+        assertTrue(messages.stream().anyMatch(message -> message.endsWith(
+            " [profiles " + CORE_PATIENT + ", " + IgPackageStoreTest.PROFILE_URL + "]")), messages.toString());
+        assertTrue(messages.stream().noneMatch(message -> message.equals(IgPackageStoreTest.PROFILE_URL)), messages.toString());
+    }
+
+    @Test
+    void testProfileInputTakesSeveralProfiles() throws IOException {
+        assertEquals(List.of(BASE, NATIONAL), FhirJsonValidatorPlugin.getProfiles(BASE + ", " + NATIONAL + " " + BASE));
+        assertEquals(List.of(BASE, NATIONAL), FhirJsonValidatorPlugin.getProfiles(List.of(BASE, " " + NATIONAL)));
+        assertEquals(List.of(), FhirJsonValidatorPlugin.getProfiles(" "));
+        assertEquals(List.of(), FhirJsonValidatorPlugin.getProfiles(null));
+
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(IgPackageStoreTest.settings(packageDir));
+
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", "{\"resourceType\":\"Patient\",\"id\":\"example\"}");
+        input.put("ig", "example.fhir.ig");
+        input.put("profile", List.of(IgPackageStoreTest.PROFILE_URL, NATIONAL, BASE));
+        TAR report = plugin.validate(input, ContentInput.of(input.get("contentToValidate"))).getReport();
+
+        List<String> descriptions = report.getReports().stream()
+            .map(TestAssertionReportType::getDescription)
+            .collect(Collectors.toList());
+        assertEquals(3, descriptions.stream().filter(description -> description.startsWith("Profile specified")).count());
+        // Every unresolved profile is reported, the resolved one is not
+        assertEquals(List.of("Profile could not be resolved: " + NATIONAL, "Profile could not be resolved: " + BASE),
+            report.getReports().stream()
+                .filter(item -> ReportItems.ERROR.equals(item.getType()))
+                .map(TestAssertionReportType::getDescription)
+                .collect(Collectors.toList()));
+    }
+
+    private static List<String> messages(ValidationResult result) {
+        return messages(result.getMessages());
+    }
+
+    private static List<String> messages(List<SingleValidationMessage> messages) {
+        return messages.stream().map(SingleValidationMessage::getMessage).collect(Collectors.toList());
+    }
+
+    private static SingleValidationMessage marker(String profile) {
+        SingleValidationMessage marker = message(ResultSeverityEnum.INFORMATION, null, profile);
+        marker.setMessageId(ProfileRunInstanceValidator.PROFILE_RUN_MESSAGE_ID);
+        return marker;
+    }
+
+    private static SingleValidationMessage message(ResultSeverityEnum severity, String location, String text) {
+        SingleValidationMessage message = new SingleValidationMessage();
+        message.setSeverity(severity);
+        message.setLocationString(location);
+        message.setMessage(text);
+        return message;
+    }
+}
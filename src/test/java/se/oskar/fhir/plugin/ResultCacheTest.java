@@ -0,0 +1,139 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.ValidateRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ResultCacheTest {
+
+    private static final String INVALID_JSON = "{\"resourceType\":\"Patient\",\"id\":";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testRepeatedRequestIsAnsweredFromCache() throws IOException {
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(cachingSettings(Duration.ofMinutes(1)));
+        Map<String, Object> input = input(write("invalid.json", INVALID_JSON));
+
+        TAR first = plugin.validate(new ValidateRequest(input)).getReport();
+        TAR second = plugin.validate(new ValidateRequest(input)).getReport();
+
+        assertEquals(1, plugin.getResultCacheMisses());
+        assertEquals(1, plugin.getResultCacheHits());
+        assertEquals(TestResultType.FAILURE, second.getResult());
+        assertEquals(first.getReports().size(), second.getReports().size());
+        assertEquals(first.getReports().get(0).getDescription(), second.getReports().get(0).getDescription());
+
+        // Callers get copies, so changing a report does not change the cached one
+        second.getReports().clear();
+        assertEquals(first.getReports().size(), plugin.validate(new ValidateRequest(input)).getReport().getReports().size());
+    }
+
+    @Test
+    void testContentAndInputsArePartOfTheKey() throws IOException {
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(cachingSettings(Duration.ofMinutes(1)));
+        Path file = write("patient.json", INVALID_JSON);
+        Map<String, Object> input = input(file);
+        plugin.validate(new ValidateRequest(input));
+
+        Map<String, Object> french = new HashMap<>(input);
+        french.put("locale", "fr");
+        assertTrue(plugin.validate(new ValidateRequest(french)).getReport().getReports().get(0).getDescription().startsWith("Échec"));
+
+        Files.writeString(file, "{\"resourceType\":\"Patient\",\"id\":\"example\"}");
+        assertEquals(TestResultType.SUCCESS, plugin.validate(new ValidateRequest(input)).getReport().getResult());
+
+        assertEquals(0, plugin.getResultCacheHits());
+        assertEquals(3, plugin.getResultCacheMisses());
+    }
+
+    @Test
+    void testResultsExpire() throws Exception {
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(cachingSettings(Duration.ofMillis(50)));
+        Map<String, Object> input = input(write("invalid.json", INVALID_JSON));
+
+        plugin.validate(new ValidateRequest(input));
+        Thread.sleep(200);
+        plugin.validate(new ValidateRequest(input));
+
+        assertEquals(0, plugin.getResultCacheHits());
+        assertEquals(2, plugin.getResultCacheMisses());
+    }
+
+    @Test
+    void testChangedPackagesInvalidateResults() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        Path packageFile = packageDir.resolve("example.fhir.ig-1.0.0.tgz");
+        IgPackageStoreTest.writeExamplePackage(packageFile);
+        ValidatorSettings settings = IgPackageStoreTest.settings(packageDir);
+        settings.setResultCacheSize(100);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+        Map<String, Object> input = input(write("invalid.json", INVALID_JSON));
+
+        plugin.validate(new ValidateRequest(input));
+        plugin.validate(new ValidateRequest(input));
+        assertEquals(1, plugin.getResultCacheHits());
+
+        Files.setLastModifiedTime(packageFile, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        plugin.reloadPackages();
+        plugin.validate(new ValidateRequest(input));
+
+        assertEquals(1, plugin.getResultCacheHits());
+        assertEquals(2, plugin.getResultCacheMisses());
+    }
+
+    @Test
+    void testContentAboveTheCacheSizeLimitIsNotReadForAKey() throws IOException {
+        ValidatorSettings settings = cachingSettings(Duration.ofMinutes(1));
+        settings.setResultCacheMaxContentSize(INVALID_JSON.length() - 1);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+        Map<String, Object> input = input(write("invalid.json", INVALID_JSON));
+
+        assertEquals(TestResultType.FAILURE, plugin.validate(new ValidateRequest(input)).getReport().getResult());
+        assertEquals(TestResultType.FAILURE, plugin.validate(new ValidateRequest(input)).getReport().getResult());
+
+        assertEquals(0, plugin.getResultCacheHits());
+        assertEquals(0, plugin.getResultCacheMisses());
+    }
+
+    @Test
+    void testCacheIsDisabledByDefault() throws IOException {
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(new ValidatorSettings());
+        Map<String, Object> input = input(write("invalid.json", INVALID_JSON));
+
+        plugin.validate(new ValidateRequest(input));
+        plugin.validate(new ValidateRequest(input));
+
+        assertEquals(0, plugin.getResultCacheHits());
+        assertEquals(0, plugin.getResultCacheMisses());
+    }
+
+    private static ValidatorSettings cachingSettings(Duration timeToLive) {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setResultCacheSize(100);
+        settings.setResultCacheTtl(timeToLive);
+        return settings;
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.writeString(tempDir.resolve(name), content);
+    }
+
+    private static Map<String, Object> input(Path file) {
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        return input;
+    }
+}
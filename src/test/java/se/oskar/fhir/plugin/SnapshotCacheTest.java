@@ -0,0 +1,121 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class SnapshotCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testGeneratedSnapshotsAreLoadedByTheNextNode() throws IOException {
+        FhirContext fhirContext = FhirContexts.r4();
+        IgPackageStore store = openExampleStore();
+        Path directory = SnapshotCache.directory(store.getIndexDirectory(), store.resolve("example.fhir.ig"));
+        CountingGenerator generator = new CountingGenerator(fhirContext);
+
+        SnapshotCache first = new SnapshotCache(fhirContext, generator, directory);
+        StructureDefinition generated = (StructureDefinition) first.generateSnapshot(null, differential(), null, null, null);
+        assertEquals(1, generator.calls.get());
+        assertEquals(1, first.getGeneratedCount());
+        assertEquals(2, generated.getSnapshot().getElement().size());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(file -> file.toString().endsWith(".json")).count());
+        }
+
+        // A new node with the same packages reads the snapshot instead of generating it
+        SnapshotCache second = new SnapshotCache(fhirContext, generator, directory);
+        StructureDefinition loaded = (StructureDefinition) second.generateSnapshot(null, differential(), null, null, null);
+        assertEquals(1, generator.calls.get());
+        assertEquals(1, second.getLoadedCount());
+        assertEquals(0, second.getGeneratedCount());
+        assertEquals("Patient.name", loaded.getSnapshot().getElement().get(1).getPath());
+        assertEquals(1, loaded.getSnapshot().getElement().get(1).getMin());
+
+        // Another version of the profile is another snapshot
+        second.generateSnapshot(null, differential().setVersion("2.0.0"), null, null, null);
+        assertEquals(2, generator.calls.get());
+    }
+
+    @Test
+    void testPackagesAndHapiVersionNameTheDirectory() throws IOException {
+        IgPackageStore store = openExampleStore();
+        Path directory = SnapshotCache.directory(store.getIndexDirectory(), store.resolve("example.fhir.ig"));
+
+        assertEquals(directory, SnapshotCache.directory(store.getIndexDirectory(), store.resolve("example.fhir.ig")));
+        assertNotEquals(directory, SnapshotCache.directory(store.getIndexDirectory(), List.of()));
+        assertTrue(directory.getFileName().toString().endsWith(ca.uhn.fhir.util.VersionUtil.getVersion()));
+    }
+
+    @Test
+    void testUnreadableSnapshotIsGeneratedAgain() throws IOException {
+        FhirContext fhirContext = FhirContexts.r4();
+        Path directory = tempDir.resolve("snapshots");
+        CountingGenerator generator = new CountingGenerator(fhirContext);
+        new SnapshotCache(fhirContext, generator, directory).generateSnapshot(null, differential(), null, null, null);
+        try (Stream<Path> files = Files.list(directory)) {
+            Files.writeString(files.findFirst().orElseThrow(), "{\"resourceType\":");
+        }
+
+        SnapshotCache cache = new SnapshotCache(fhirContext, generator, directory);
+        assertNotNull(cache.generateSnapshot(null, differential(), null, null, null));
+        assertEquals(2, generator.calls.get());
+        assertEquals(0, cache.getLoadedCount());
+    }
+
+    private static StructureDefinition differential() {
+        StructureDefinition profile = new StructureDefinition();
+        profile.setUrl(IgPackageStoreTest.PROFILE_URL);
+        profile.setVersion("1.0.0");
+        profile.setType("Patient");
+        profile.getDifferential().addElement().setPath("Patient.name").setMin(1).setId("Patient.name");
+        return profile;
+    }
+
+    private IgPackageStore openExampleStore() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        return IgPackageStore.open(IgPackageStoreTest.settings(packageDir));
+    }
+
+    /**
+     * Stands in for the snapshot generator, which would need the core definitions.
+     */
+    private static final class CountingGenerator implements IValidationSupport {
+        private final FhirContext fhirContext;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private CountingGenerator(FhirContext fhirContext) {
+            this.fhirContext = fhirContext;
+        }
+
+        @Override
+        public FhirContext getFhirContext() {
+            return fhirContext;
+        }
+
+        @Override
+        public IBaseResource generateSnapshot(ValidationSupportContext theValidationSupportContext, IBaseResource theInput,
+                String theUrl, String theWebUrl, String theProfileName) {
+            calls.incrementAndGet();
+            StructureDefinition profile = ((StructureDefinition) theInput).copy();
+            profile.getSnapshot().addElement().setPath("Patient").setMin(0).setId("Patient");
+            profile.getDifferential().getElement().forEach(element -> profile.getSnapshot().addElement(element.copy()));
+            return profile;
+        }
+    }
+}
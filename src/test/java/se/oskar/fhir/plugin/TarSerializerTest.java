@@ -0,0 +1,77 @@
+package se.oskar.fhir.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestResultType;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import static org.junit.jupiter.api.Assertions.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public class TarSerializerTest {
+
+    @Test
+    void testCountersFollowTheItemsAdded() {
+        TAR report = sampleReport();
+
+        assertEquals(TestResultType.FAILURE, report.getResult());
+        assertEquals(1, report.getCounters().getNrOfAssertions());
+        assertEquals(2, report.getCounters().getNrOfErrors());
+        assertEquals(1, report.getCounters().getNrOfWarnings());
+        // Repeated descriptions share one instance
+        assertSame(report.getReports().get(1).getDescription(), report.getReports().get(2).getDescription());
+    }
+
+    @Test
+    void testXmlIsWrittenAsGitbTar() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarSerializer.writeXml(sampleReport(), out);
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+        Element root = document.getDocumentElement();
+        assertEquals(TarSerializer.TR_NAMESPACE, root.getNamespaceURI());
+        assertEquals("TAR", root.getLocalName());
+        assertEquals("FAILURE", root.getAttribute("result"));
+        assertEquals("2", root.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "nrOfErrors").item(0).getTextContent());
+
+        NodeList errors = root.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "error");
+        assertEquals(2, errors.getLength());
+        Element first = (Element) errors.item(0);
+        assertEquals("Value <b> & \"c\" is invalid", first.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "description").item(0).getTextContent());
+        assertEquals("contentToValidate:3:7", first.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "location").item(0).getTextContent());
+        assertEquals(1, root.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "warning").getLength());
+        assertEquals(1, root.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "info").getLength());
+    }
+
+    @Test
+    void testJsonKeepsItemOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarSerializer.writeJson(sampleReport(), out);
+
+        JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+        assertEquals("FAILURE", json.get("result").asText());
+        assertEquals(1, json.get("counters").get("nrOfWarnings").asInt());
+        assertEquals(4, json.get("reports").size());
+        assertEquals("INFO", json.get("reports").get(0).get("type").asText());
+        assertEquals("Value <b> & \"c\" is invalid", json.get("reports").get(1).get("description").asText());
+        assertEquals("WARNING", json.get("reports").get(3).get("type").asText());
+    }
+
+    private static TAR sampleReport() {
+        TAR report = new TAR();
+        report.setResult(TestResultType.SUCCESS);
+        ReportItems.add(report, ReportItems.create(ReportItems.INFO, "Parsed", "contentToValidate:0:0"));
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR, new String("Value <b> & \"c\" is invalid"), "contentToValidate:3:7"));
+        ReportItems.add(report, ReportItems.create(ReportItems.ERROR, new String("Value <b> & \"c\" is invalid"), "contentToValidate:9:7"));
+        ReportItems.add(report, ReportItems.create(ReportItems.WARNING, "Check this", "contentToValidate:12:1"));
+        return report;
+    }
+}
@@ -0,0 +1,91 @@
+package se.oskar.fhir.plugin;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static se.oskar.fhir.plugin.IgPackageStoreTest.ALL_CODES_URL;
+import static se.oskar.fhir.plugin.IgPackageStoreTest.CODE_SYSTEM_URL;
+import static se.oskar.fhir.plugin.IgPackageStoreTest.VALUE_SET_URL;
+
+public class TerminologyIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testValueSetsArePreExpandedAndPersisted() throws IOException {
+        IgPackageStore store = openExampleStore();
+        ValidationEngine engine = new ValidationEngineCache(FhirContexts.r4(), store).getEngine("example.fhir.ig", null);
+
+        try (Stream<Path> files = Files.list(store.getIndexDirectory())) {
+            assertEquals(1, files.filter(file -> file.getFileName().toString().endsWith(".tidx")).count());
+        }
+
+        IValidationSupport support = engine.getValidationSupport();
+        ValidationSupportContext context = new ValidationSupportContext(support);
+        ConceptValidationOptions options = new ConceptValidationOptions();
+        IValidationSupport.CodeValidationResult member = support.validateCode(context, options, CODE_SYSTEM_URL, "a", null, VALUE_SET_URL);
+        assertNotNull(member);
+        assertNull(member.getSeverity());
+        assertEquals("Alpha", member.getDisplay());
+
+        IValidationSupport.CodeValidationResult notMember = support.validateCode(context, options, CODE_SYSTEM_URL, "c", null, VALUE_SET_URL);
+        assertEquals(IValidationSupport.IssueSeverity.ERROR, notMember.getSeverity());
+
+        // The whole-code-system ValueSet is expanded from the CodeSystem in the package
+        assertNull(support.validateCode(context, options, CODE_SYSTEM_URL, "c", null, ALL_CODES_URL).getSeverity());
+        assertEquals(IValidationSupport.IssueSeverity.WARNING,
+            support.validateCode(context, options, CODE_SYSTEM_URL, "b", "Wrong", ALL_CODES_URL).getSeverity());
+    }
+
+    @Test
+    void testIndexIsReadBackInsteadOfExpandedAgain() throws IOException {
+        IgPackageStore store = openExampleStore();
+        new ValidationEngineCache(FhirContexts.r4(), store).getEngine("example.fhir.ig", null);
+
+        // Nothing could be expanded without the package contents, so everything below comes from disk
+        IValidationSupport nothing = new IndexedTerminologySupport(FhirContexts.r4());
+        TerminologyIndex index = TerminologyIndex.loadOrBuild(store.getIndexDirectory(), store.resolve("example.fhir.ig"), nothing, nothing);
+
+        assertEquals(2, index.getValueSetCount());
+        assertEquals(3, index.getConceptCount());
+        assertNotNull(index.find(VALUE_SET_URL + "|1.0.0", CODE_SYSTEM_URL, "b"));
+        assertNull(index.find(VALUE_SET_URL, CODE_SYSTEM_URL, "c"));
+        assertEquals(CODE_SYSTEM_URL, index.inferSystem(ALL_CODES_URL, "c"));
+    }
+
+    @Test
+    void testIndexIsBuiltForOtherFhirVersions() throws IOException {
+        FhirContext r5 = FhirContexts.forVersion(FhirVersionEnum.R5);
+        List<IgPackage> packages = openExampleStore().resolve("example.fhir.ig");
+        PackageValidationSupport packageSupport = new PackageValidationSupport(r5, packages);
+        ValidationSupportChain chain = new ValidationSupportChain(packageSupport, new InMemoryTerminologyServerValidationSupport(r5));
+
+        TerminologyIndex index = TerminologyIndex.build(packages, packageSupport, chain);
+
+        assertEquals(2, index.getValueSetCount());
+        assertEquals("Alpha", index.find(VALUE_SET_URL, CODE_SYSTEM_URL, "a").getDisplay());
+        assertNull(index.find(VALUE_SET_URL, CODE_SYSTEM_URL, "c"));
+        assertNotNull(index.find(ALL_CODES_URL, CODE_SYSTEM_URL, "c"));
+    }
+
+    private IgPackageStore openExampleStore() throws IOException {
+        Path packageDir = Files.createDirectories(tempDir.resolve("packages"));
+        IgPackageStoreTest.writeExamplePackage(packageDir.resolve("example.fhir.ig-1.0.0.tgz"));
+        return IgPackageStore.open(IgPackageStoreTest.settings(packageDir));
+    }
+}
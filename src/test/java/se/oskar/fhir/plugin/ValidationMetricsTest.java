@@ -0,0 +1,95 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TestResultType;
+import com.gitb.vs.ValidateRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ValidationMetricsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPhasesResultsAndFindingsAreRecorded() throws IOException {
+        InMemoryValidationMetrics metrics = new InMemoryValidationMetrics();
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setMetrics(metrics);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        plugin.validate(request(Files.writeString(tempDir.resolve("valid.json"), "{\"resourceType\":\"Patient\",\"id\":\"example\"}")));
+        plugin.validate(request(Files.writeString(tempDir.resolve("invalid.json"), "{\"resourceType\":\"Widget\",\"id\":\"example\"}")));
+
+        assertEquals(1, metrics.getResultCount(TestResultType.SUCCESS));
+        assertEquals(1, metrics.getResultCount(TestResultType.FAILURE));
+        assertEquals(0, metrics.getResultCount(TestResultType.WARNING));
+        assertEquals(1, metrics.getFindingCount(ReportItems.INFO));
+        assertEquals(1, metrics.getFindingCount(ReportItems.ERROR));
+        assertEquals(2, metrics.getRequests().getCount());
+        assertEquals(2, metrics.getPhase(ValidationMetrics.Phase.READ).getCount());
+        assertEquals(2, metrics.getPhase(ValidationMetrics.Phase.STRUCTURE).getCount());
+        // The unknown resource type is rejected by the structural check and never parsed
+        assertEquals(1, metrics.getPhase(ValidationMetrics.Phase.PARSE).getCount());
+        // No IG or profile was requested, so nothing was validated beyond parsing
+        assertEquals(0, metrics.getPhase(ValidationMetrics.Phase.PROFILE).getCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metrics.dump(new PrintStream(out, true, StandardCharsets.UTF_8));
+        String dump = out.toString(StandardCharsets.UTF_8);
+        assertTrue(dump.contains("parse"));
+        assertTrue(dump.contains("FAILURE=1"));
+        assertTrue(dump.contains("ERROR=1"));
+    }
+
+    @Test
+    void testSyntaxErrorAfterResourceTypeIsRejectedBeforeParsing() {
+        InMemoryValidationMetrics metrics = new InMemoryValidationMetrics();
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setMetrics(metrics);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        // resourceType is on line 2, the missing comma on line 35
+        TestResultType result = plugin.validate(request(Path.of("itb-test-suite", "resources", "invalid-json.json")))
+            .getReport().getResult();
+
+        assertEquals(TestResultType.FAILURE, result);
+        assertEquals(1, metrics.getPhase(ValidationMetrics.Phase.STRUCTURE).getCount());
+        assertEquals(0, metrics.getPhase(ValidationMetrics.Phase.PARSE).getCount());
+    }
+
+    @Test
+    void testHistogramPercentiles() {
+        InMemoryValidationMetrics.Histogram histogram = new InMemoryValidationMetrics().getRequests();
+        for (int i = 0; i < 990; i++) {
+            histogram.record(100_000); // 0.1 ms
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50_000_000); // 50 ms
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(50_000_000, histogram.getMaxNanos());
+        // Buckets are powers of two, so percentiles are within a factor of two
+        long p50 = histogram.getPercentileNanos(0.5);
+        assertTrue(p50 >= 100_000 && p50 <= 200_000, "p50 " + p50);
+        long p999 = histogram.getPercentileNanos(0.999);
+        assertTrue(p999 >= 25_000_000 && p999 <= 50_000_000, "p999 " + p999);
+        assertEquals(0, new InMemoryValidationMetrics().getRequests().getPercentileNanos(0.99));
+    }
+
+    private static ValidateRequest request(Path file) {
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", file.toString());
+        return new ValidateRequest(input);
+    }
+}
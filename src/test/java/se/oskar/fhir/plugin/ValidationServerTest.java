@@ -0,0 +1,283 @@
+package se.oskar.fhir.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gitb.vs.ValidationResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import static org.junit.jupiter.api.Assertions.*;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ValidationServerTest {
+
+    private static final String VALID_PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\",\"gender\":\"male\"}";
+    private static final String INVALID_PATIENT = "{\"resourceType\":\"Patient\",\"id\":";
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private ValidationServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop(Duration.ZERO);
+        }
+    }
+
+    @Test
+    void testConcurrentClientsAreServed() throws Exception {
+        ValidatorSettings settings = settings();
+        settings.setServerQueueTimeout(Duration.ofSeconds(30));
+        server = start(new FhirJsonValidatorPlugin(settings), settings);
+
+        int clients = 8;
+        int requestsPerClient = 25;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            results.add(pool.submit(() -> {
+                int failures = 0;
+                for (int i = 0; i < requestsPerClient; i++) {
+                    boolean valid = i % 5 != 0;
+                    HttpResponse<String> response = post("/validate?locale=en", "application/fhir+json", valid ? VALID_PATIENT : INVALID_PATIENT);
+                    assertEquals(200, response.statusCode());
+                    JsonNode report = new ObjectMapper().readTree(response.body());
+                    assertEquals(valid ? "SUCCESS" : "FAILURE", report.get("result").asText());
+                    if (!valid) {
+                        failures++;
+                        assertEquals(1, report.get("counters").get("nrOfErrors").asInt());
+                    }
+                }
+                return failures;
+            }));
+        }
+        int failures = 0;
+        for (Future<Integer> result : results) {
+            failures += result.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+
+        assertEquals(clients * requestsPerClient / 5, failures);
+    }
+
+    @Test
+    void testSoapValidateRequest() throws Exception {
+        ValidatorSettings settings = settings();
+        server = start(new FhirJsonValidatorPlugin(settings), settings);
+
+        String envelope = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns:v1=\"http://www.gitb.com/vs/v1/\" xmlns:v11=\"http://www.gitb.com/core/v1/\">"
+            + "<soapenv:Body><v1:ValidateRequest>"
+            + "<input name=\"contentToValidate\" embeddingMethod=\"BASE64\"><v11:value>"
+            + Base64.getEncoder().encodeToString(INVALID_PATIENT.getBytes(StandardCharsets.UTF_8))
+            + "</v11:value></input>"
+            + "<input name=\"contentType\" embeddingMethod=\"STRING\"><v11:value>application/fhir+json</v11:value></input>"
+            + "</v1:ValidateRequest></soapenv:Body></soapenv:Envelope>";
+
+        HttpResponse<String> response = post("/ws/validation", "text/xml", envelope);
+
+        assertEquals(200, response.statusCode());
+        Document document = parse(response.body());
+        assertEquals("FAILURE", document.getElementsByTagNameNS(ValidationServer.VS_NAMESPACE, "report").item(0)
+            .getAttributes().getNamedItem("result").getNodeValue());
+        assertEquals(1, document.getElementsByTagNameNS(TarSerializer.TR_NAMESPACE, "error").getLength());
+
+        String unsupported = envelope.replace("embeddingMethod=\"BASE64\"", "embeddingMethod=\"URI\"");
+        HttpResponse<String> fault = post("/ws/validation", "text/xml", unsupported);
+        assertEquals(500, fault.statusCode());
+        assertTrue(fault.body().contains("Unsupported embeddingMethod URI"));
+    }
+
+    @Test
+    void testModuleDefinitionAndWsdl() throws Exception {
+        ValidatorSettings settings = settings();
+        server = start(new FhirJsonValidatorPlugin(settings), settings);
+
+        String envelope = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns:v1=\"http://www.gitb.com/vs/v1/\"><soapenv:Header/>"
+            + "<soapenv:Body><v1:GetModuleDefinitionRequest/></soapenv:Body></soapenv:Envelope>";
+        HttpResponse<String> response = post("/ws/validation", "text/xml", envelope);
+
+        assertEquals(200, response.statusCode());
+        Document document = parse(response.body());
+        assertEquals(1, document.getElementsByTagNameNS(ValidationServer.VS_NAMESPACE, "GetModuleDefinitionResponse").getLength());
+        NodeList params = document.getElementsByTagNameNS(ValidationServer.CORE_NAMESPACE, "param");
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < params.getLength(); i++) {
+            names.add(((Element) params.item(i)).getAttribute("name"));
+        }
+        assertEquals("contentToValidate", names.get(0));
+        assertEquals("R", ((Element) params.item(0)).getAttribute("use"));
+        assertTrue(names.containsAll(List.of("contentType", "ig", "profile", "sessionId", "locale")), names.toString());
+
+        HttpResponse<String> wsdl = client.send(HttpRequest.newBuilder(uri("/ws/validation?wsdl")).GET().build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, wsdl.statusCode());
+        Document definitions = parse(wsdl.body());
+        NodeList operations = definitions.getElementsByTagNameNS("http://schemas.xmlsoap.org/wsdl/", "operation");
+        assertEquals("getModuleDefinition", ((Element) operations.item(0)).getAttribute("name"));
+        assertEquals("validate", ((Element) operations.item(1)).getAttribute("name"));
+        Element address = (Element) definitions.getElementsByTagNameNS("http://schemas.xmlsoap.org/wsdl/soap/", "address").item(0);
+        assertEquals("http://localhost:" + server.getPort() + "/ws/validation", address.getAttribute("location"));
+    }
+
+    @Test
+    void testServerBodyLimitIsSeparateFromContentLimit() throws Exception {
+        ValidatorSettings settings = settings();
+        settings.setServerMaxBodySize(100);
+        server = start(new FhirJsonValidatorPlugin(settings), settings);
+
+        assertEquals(200, post("/validate", "application/fhir+json", VALID_PATIENT).statusCode());
+        HttpResponse<String> rejected = post("/validate", "application/fhir+json", VALID_PATIENT + " ".repeat(200));
+        assertEquals(413, rejected.statusCode());
+        assertTrue(rejected.body().contains("100"), rejected.body());
+    }
+
+    @Test
+    void testRepeatedQueryParametersAreCollected() throws Exception {
+        Map<String, Object> parameters = ValidationServer.queryParameters(
+            "profile=http%3A%2F%2Fexample.org%2Fa&ig=example.fhir.ig&profile=http%3A%2F%2Fexample.org%2Fb&profile=c");
+
+        assertEquals(List.of("http://example.org/a", "http://example.org/b", "c"), parameters.get("profile"));
+        assertEquals("example.fhir.ig", parameters.get("ig"));
+        assertEquals(List.of("http://example.org/a", "http://example.org/b", "c"),
+            FhirJsonValidatorPlugin.getProfiles(parameters.get("profile")));
+    }
+
+    @Test
+    void testMalformedQueryParameterIsABadRequest() {
+        ValidationServer.BadRequestException rejected = assertThrows(ValidationServer.BadRequestException.class,
+            () -> ValidationServer.queryParameters("profile=a&ig=%zz"));
+        assertTrue(rejected.getMessage().startsWith("Malformed query parameter %zz"), rejected.getMessage());
+        assertThrows(ValidationServer.BadRequestException.class, () -> ValidationServer.queryParameters("ig%E=a"));
+    }
+
+    @Test
+    void testRepeatedSoapInputsAreCollected() throws Exception {
+        String envelope = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns:v1=\"http://www.gitb.com/vs/v1/\" xmlns:v11=\"http://www.gitb.com/core/v1/\">"
+            + "<soapenv:Body><v1:ValidateRequest>"
+            + "<input name=\"contentToValidate\" embeddingMethod=\"STRING\"><v11:value>{}</v11:value></input>"
+            + "<input name=\"profile\" embeddingMethod=\"STRING\"><v11:value>http://example.org/a</v11:value></input>"
+            + "<input name=\"ig\" embeddingMethod=\"STRING\"><v11:value>example.fhir.ig</v11:value></input>"
+            + "<input name=\"profile\" embeddingMethod=\"BASE64\"><v11:value>"
+            + Base64.getEncoder().encodeToString("http://example.org/b".getBytes(StandardCharsets.UTF_8))
+            + "</v11:value></input>"
+            + "</v1:ValidateRequest></soapenv:Body></soapenv:Envelope>";
+
+        Map<String, Object> input = new HashMap<>();
+        byte[] content = ValidationServer.readSoapInputs(envelope.getBytes(StandardCharsets.UTF_8), input);
+
+        assertEquals("{}", new String(content, StandardCharsets.UTF_8));
+        assertEquals(List.of("http://example.org/a", "http://example.org/b"), input.get("profile"));
+        assertEquals("example.fhir.ig", input.get("ig"));
+        assertEquals(List.of("http://example.org/a", "http://example.org/b"),
+            FhirJsonValidatorPlugin.getProfiles(input.get("profile")));
+    }
+
+    @Test
+    void testSizeLimitMethodAndShutdown() throws Exception {
+        ValidatorSettings settings = settings();
+        settings.setMaxContentSize(100);
+        server = start(new FhirJsonValidatorPlugin(settings), settings);
+
+        assertEquals(413, post("/validate", "application/fhir+json", VALID_PATIENT + " ".repeat(200)).statusCode());
+        assertEquals(405, client.send(HttpRequest.newBuilder(uri("/validate")).GET().build(),
+            HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(200, client.send(HttpRequest.newBuilder(uri("/health")).GET().build(),
+            HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        server.stop(Duration.ofSeconds(1));
+        assertThrows(IOException.class, () -> post("/validate", "application/fhir+json", VALID_PATIENT));
+        server = null;
+    }
+
+    @Test
+    void testRequestsBeyondTheLimitAreTurnedAway() throws Exception {
+        ValidatorSettings settings = settings();
+        settings.setServerMaxConcurrentRequests(1);
+        settings.setServerQueueTimeout(Duration.ZERO);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FhirJsonValidatorPlugin blocking = new FhirJsonValidatorPlugin(settings) {
+            @Override
+            ValidationResponse validate(Map<String, Object> input, ContentInput.Source source) {
+                entered.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.validate(input, source);
+            }
+        };
+        server = start(blocking, settings);
+
+        CompletableFuture<HttpResponse<String>> first = client.sendAsync(request("/validate", "application/fhir+json", VALID_PATIENT),
+            HttpResponse.BodyHandlers.ofString());
+        assertTrue(entered.await(30, TimeUnit.SECONDS));
+
+        HttpResponse<String> rejected = post("/validate", "application/fhir+json", VALID_PATIENT);
+        assertEquals(503, rejected.statusCode());
+        assertEquals("1", rejected.headers().firstValue("Retry-After").orElse(null));
+
+        release.countDown();
+        assertEquals(200, first.get(30, TimeUnit.SECONDS).statusCode());
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static ValidatorSettings settings() {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setWarmUp(false);
+        settings.setServerPort(0);
+        return settings;
+    }
+
+    private static ValidationServer start(FhirJsonValidatorPlugin plugin, ValidatorSettings settings) throws IOException {
+        ValidationServer server = new ValidationServer(plugin, settings);
+        server.start();
+        return server;
+    }
+
+    private HttpResponse<String> post(String path, String contentType, String body) throws IOException, InterruptedException {
+        return client.send(request(path, contentType, body), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest request(String path, String contentType, String body) {
+        return HttpRequest.newBuilder(uri(path))
+            .header("Content-Type", contentType)
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getPort() + path);
+    }
+}
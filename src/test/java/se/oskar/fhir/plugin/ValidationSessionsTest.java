@@ -0,0 +1,135 @@
+package se.oskar.fhir.plugin;
+
+import com.gitb.types.v1.TAR;
+import com.gitb.types.v1.TestAssertionReportType;
+import com.gitb.types.v1.TestResultType;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class ValidationSessionsTest {
+
+    private static final String PATIENT = "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"%s\"}}";
+    private static final String BROKEN = "{\"resource\":{\"resourceType\":\"NotAResource\",\"id\":\"b\"}}";
+
+    @Test
+    void testOnlyChangedBundleEntriesAreValidatedAgain() {
+        InMemoryValidationMetrics metrics = new InMemoryValidationMetrics();
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setMetrics(metrics);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+
+        TAR first = validate(plugin, bundle(patient("a"), BROKEN, patient("c")), "application/fhir+json", "en");
+        assertEquals(List.of("Bundle.entry[1].resource"), errorLocations(first));
+        assertEquals(4, plugin.getSessionUnitsValidated());
+        long parsed = metrics.getPhase(ValidationMetrics.Phase.PARSE).getCount();
+
+        // A new entry in front moves the others; only it and the Bundle shell, whose entry
+        // wrappers changed, are parsed again, the other entries are reused
+        String edited = bundle(patient("new"), patient("a"), BROKEN, patient("c"));
+        TAR second = validate(plugin, edited, "application/fhir+json", "en");
+        assertEquals(6, plugin.getSessionUnitsValidated());
+        assertEquals(3, plugin.getSessionUnitsReused());
+        assertEquals(parsed + 2, metrics.getPhase(ValidationMetrics.Phase.PARSE).getCount());
+        assertEquals(List.of("Bundle.entry[2].resource"), errorLocations(second));
+        assertEquals(describe(validate(new FhirJsonValidatorPlugin(), edited, "application/fhir+json", "en", null)),
+            describe(second));
+
+        // Findings depend on the locale, so another one starts the session over
+        validate(plugin, edited, "application/fhir+json", "fr");
+        assertEquals(3, plugin.getSessionUnitsReused());
+        assertEquals(11, plugin.getSessionUnitsValidated());
+    }
+
+    @Test
+    void testOnlyChangedNdjsonLinesAreValidatedAgain() {
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(new ValidatorSettings());
+        String lines = "{\"resourceType\":\"Patient\",\"id\":\"a\"}\n{\"resourceType\":\"NotAResource\"}\n";
+
+        validate(plugin, lines, "application/fhir+ndjson", "en");
+        TAR second = validate(plugin, "{\"resourceType\":\"Patient\",\"id\":\"x\"}\n" + lines, "application/fhir+ndjson", "en");
+
+        assertEquals(3, plugin.getSessionUnitsValidated());
+        assertEquals(2, plugin.getSessionUnitsReused());
+        assertEquals(List.of("contentToValidate:3:0"), errorLocations(second));
+    }
+
+    @Test
+    void testRequestsWithoutSessionAreNotTracked() {
+        ValidatorSettings settings = new ValidatorSettings();
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+        String bundle = bundle(patient("a"), BROKEN);
+
+        validate(plugin, bundle, "application/fhir+json", "en", null);
+        validate(plugin, bundle, "application/fhir+json", "en", null);
+        assertEquals(0, plugin.getSessionUnitsValidated());
+        assertEquals(0, plugin.getSessionUnitsReused());
+
+        settings.setMaxSessions(0);
+        FhirJsonValidatorPlugin disabled = new FhirJsonValidatorPlugin(settings);
+        validate(disabled, bundle, "application/fhir+json", "en");
+        assertEquals(TestResultType.FAILURE, validate(disabled, bundle, "application/fhir+json", "en").getResult());
+        assertEquals(0, disabled.getSessionUnitsReused());
+    }
+
+    @Test
+    void testSessionRequestsBypassTheResultCache() {
+        ValidatorSettings settings = new ValidatorSettings();
+        settings.setResultCacheSize(100);
+        FhirJsonValidatorPlugin plugin = new FhirJsonValidatorPlugin(settings);
+        String bundle = bundle(patient("a"), BROKEN);
+
+        // Cached without a session, the same content still starts and then reuses the session
+        validate(plugin, bundle, "application/fhir+json", "en", null);
+        validate(plugin, bundle, "application/fhir+json", "en");
+        TAR second = validate(plugin, bundle, "application/fhir+json", "en");
+
+        assertEquals(3, plugin.getSessionUnitsValidated());
+        assertEquals(3, plugin.getSessionUnitsReused());
+        assertEquals(List.of("Bundle.entry[1].resource"), errorLocations(second));
+        assertEquals(0, plugin.getResultCacheHits());
+        assertEquals(1, plugin.getResultCacheMisses());
+    }
+
+    private static TAR validate(FhirJsonValidatorPlugin plugin, String content, String contentType, String locale) {
+        return validate(plugin, content, contentType, locale, "editor-1");
+    }
+
+    private static TAR validate(FhirJsonValidatorPlugin plugin, String content, String contentType, String locale,
+            String sessionId) {
+        Map<String, Object> input = new HashMap<>();
+        input.put("contentToValidate", content);
+        input.put("contentType", contentType);
+        input.put("bundleStreaming", "true");
+        input.put("locale", locale);
+        if (sessionId != null) {
+            input.put("sessionId", sessionId);
+        }
+        return plugin.validate(input, ContentInput.of(content)).getReport();
+    }
+
+    private static String bundle(String... entries) {
+        return "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":[" + String.join(",", entries) + "]}";
+    }
+
+    private static String patient(String id) {
+        return String.format(PATIENT, id);
+    }
+
+    private static List<String> errorLocations(TAR report) {
+        return report.getReports().stream()
+            .filter(item -> ReportItems.ERROR.equals(item.getType()))
+            .map(TestAssertionReportType::getLocation)
+            .collect(Collectors.toList());
+    }
+
+    private static List<String> describe(TAR report) {
+        return report.getReports().stream()
+            .map(item -> item.getType() + " " + item.getLocation() + " " + item.getDescription())
+            .collect(Collectors.toList());
+    }
+}